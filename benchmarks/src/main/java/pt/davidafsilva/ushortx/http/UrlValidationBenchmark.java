@@ -0,0 +1,115 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.commons.validator.routines.UrlValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link NoProtocolUrlValidator} benchmarks, over corpora of valid and invalid urls
+ *
+ * @author David Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlValidationBenchmark {
+
+  // the validator under benchmark
+  private static final UrlValidator URL_VALIDATOR = new NoProtocolUrlValidator();
+
+  // the url corpus
+  @Param({"valid", "invalid"})
+  public String corpus;
+
+  // the corpus urls
+  private String[] urls;
+
+  @Setup
+  public void setup() throws IOException {
+    try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        getClass().getResourceAsStream("/" + corpus + "-urls.txt"), StandardCharsets.UTF_8))) {
+      urls = reader.lines()
+          .filter(line -> !line.isEmpty())
+          .toArray(String[]::new);
+    }
+  }
+
+  /**
+   * The position of each benchmark thread within the corpus
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    // the next url index
+    private int index;
+
+    /**
+     * Returns the next url of the corpus, wrapping around at its end
+     *
+     * @param urls the corpus urls
+     * @return the next url
+     */
+    private String next(final String[] urls) {
+      final String url = urls[index];
+      index = (index + 1) % urls.length;
+      return url;
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean isValid(final Cursor cursor) {
+    return URL_VALIDATOR.isValid(cursor.next(urls));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean isValidContended(final Cursor cursor) {
+    return URL_VALIDATOR.isValid(cursor.next(urls));
+  }
+}
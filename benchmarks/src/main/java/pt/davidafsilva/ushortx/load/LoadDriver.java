@@ -0,0 +1,278 @@
+package pt.davidafsilva.ushortx.load;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.HdrHistogram.Histogram;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * The load driver verticle. It preloads the short links through the bulk shorten endpoint and
+ * then issues a mix of redirect and shorten requests at a constant rate (open loop).
+ *
+ * The latency of each request is measured from the time it was supposed to be sent, and not
+ * from the time it was actually sent, hence a stalled server is not hidden by a stalled client
+ * (coordinated omission).
+ *
+ * @author David Silva
+ */
+final class LoadDriver extends AbstractVerticle {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadDriver.class);
+
+  // the operation names
+  private static final String REDIRECT = "redirect";
+  private static final String SHORTEN = "shorten";
+
+  // the latency histograms, in microseconds, per operation
+  private final Map<String, Histogram> latencies = new HashMap<>();
+  // the status code counts per operation
+  private final Map<String, Map<Integer, Long>> statuses = new HashMap<>();
+
+  // the http client
+  private HttpClient client;
+  // the driver context
+  private Context context;
+  // the preloaded hashes, by popularity rank
+  private String[] hashes;
+  // the key popularity distribution
+  private ZipfDistribution popularity;
+  // the number of outstanding requests
+  private long outstanding;
+  // the number of failed requests (connection errors)
+  private long errors;
+  // the sequence of the shortened urls
+  private long shortenSequence;
+  // the handler to be called once the outstanding requests complete
+  private Handler<Void> drainHandler;
+
+  @Override
+  public void start(final Future<Void> startFuture) {
+    context = vertx.getOrCreateContext();
+    client = vertx.createHttpClient(new HttpClientOptions()
+        .setDefaultHost("localhost")
+        .setDefaultPort(config().getInteger("http_port", 8080))
+        .setKeepAlive(true)
+        .setMaxPoolSize(config().getInteger("connections", 32)));
+    resetStatistics();
+
+    // preload the keys through the bulk endpoint
+    final int keys = config().getInteger("keys", 10_000);
+    popularity = new ZipfDistribution(keys, config().getDouble("zipf_exponent", 1.0));
+    hashes = new String[keys];
+    final Buffer body = Buffer.buffer();
+    for (int i = 0; i < keys; i++) {
+      body.appendString("http://load-" + i + ".example.com/key\n");
+    }
+    LOGGER.info(String.format("preloading %d keys..", keys));
+    client.post("/s", response -> response.bodyHandler(buffer -> {
+      int loaded = 0;
+      for (final String line : buffer.toString().split("\n")) {
+        final JsonObject result = new JsonObject(line);
+        if (result.containsKey("shortened")) {
+          final String shortened = result.getString("shortened");
+          hashes[result.getInteger("index")] =
+              shortened.substring(shortened.lastIndexOf('/') + 1);
+          loaded++;
+        }
+      }
+      if (loaded == keys) {
+        startFuture.complete();
+      } else {
+        startFuture.fail(String.format("only %d out of %d keys were preloaded", loaded, keys));
+      }
+    })).exceptionHandler(startFuture::fail).end(body);
+  }
+
+  /**
+   * Runs the warmup and the measured phases, completing with the measured results
+   *
+   * @return the future measured results
+   */
+  CompletableFuture<JsonObject> run() {
+    final CompletableFuture<JsonObject> results = new CompletableFuture<>();
+    final long warmup = TimeUnit.SECONDS.toNanos(config().getLong("warmup", 10L));
+    final long duration = TimeUnit.SECONDS.toNanos(config().getLong("duration", 30L));
+    context.runOnContext(v -> phase(warmup, warmupEnd -> {
+      LOGGER.info("warmup completed, measuring..");
+      resetStatistics();
+      final long start = System.nanoTime();
+      phase(duration, end -> results.complete(results(System.nanoTime() - start)));
+    }));
+    return results;
+  }
+
+  /**
+   * Issues the requests at the configured rate, for the specified duration
+   *
+   * @param duration    the phase duration, in nanoseconds
+   * @param doneHandler the handler to be called once all the phase requests complete
+   */
+  private void phase(final long duration, final Handler<Void> doneHandler) {
+    final long interval = TimeUnit.SECONDS.toNanos(1) / config().getInteger("rate", 2_000);
+    final long end = System.nanoTime() + duration;
+    final long[] nextIntended = {System.nanoTime()};
+    vertx.setPeriodic(1, timer -> {
+      // catch up with every request that should have been sent by now
+      final long now = System.nanoTime();
+      while (nextIntended[0] <= now && nextIntended[0] < end) {
+        issue(nextIntended[0]);
+        nextIntended[0] += interval;
+      }
+      if (nextIntended[0] >= end) {
+        vertx.cancelTimer(timer);
+        whenDrained(doneHandler);
+      }
+    });
+  }
+
+  /**
+   * Issues a single request, either a redirect or a shorten one
+   *
+   * @param intended the time, in nanoseconds, the request was supposed to be sent
+   */
+  private void issue(final long intended) {
+    final boolean read = ThreadLocalRandom.current().nextDouble() <
+        config().getDouble("read_ratio", 0.95);
+    final String operation = read ? REDIRECT : SHORTEN;
+    final HttpClientRequest request = read
+        ? client.get("/" + hashes[popularity.next()])
+        : client.post("/s/load-" + shortenSequence++ + ".example.com");
+    outstanding++;
+    request.handler(response -> response.bodyHandler(body ->
+        completed(operation, intended, response.statusCode())))
+        .exceptionHandler(cause -> {
+          errors++;
+          completed(operation, intended, 0);
+        })
+        .end();
+  }
+
+  /**
+   * Records the completion of a request
+   *
+   * @param operation the request operation
+   * @param intended  the time, in nanoseconds, the request was supposed to be sent
+   * @param status    the response status code, 0 on connection errors
+   */
+  private void completed(final String operation, final long intended, final int status) {
+    latencies.get(operation).recordValue(
+        Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended)));
+    statuses.get(operation).merge(status, 1L, Long::sum);
+    if (--outstanding == 0 && drainHandler != null) {
+      final Handler<Void> handler = drainHandler;
+      drainHandler = null;
+      handler.handle(null);
+    }
+  }
+
+  /**
+   * Calls the specified handler once there are no outstanding requests
+   *
+   * @param handler the handler to be called
+   */
+  private void whenDrained(final Handler<Void> handler) {
+    if (outstanding == 0) {
+      handler.handle(null);
+    } else {
+      drainHandler = handler;
+    }
+  }
+
+  /**
+   * Resets the latency histograms and counters
+   */
+  private void resetStatistics() {
+    for (final String operation : new String[]{REDIRECT, SHORTEN}) {
+      latencies.put(operation, new Histogram(3));
+      statuses.put(operation, new HashMap<>());
+    }
+    errors = 0;
+  }
+
+  /**
+   * Creates the results of the measured phase
+   *
+   * @param elapsed the elapsed time of the measured phase, in nanoseconds
+   * @return the results json
+   */
+  private JsonObject results(final long elapsed) {
+    final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+    final Histogram total = new Histogram(3);
+    final JsonObject operations = new JsonObject();
+    latencies.forEach((operation, histogram) -> {
+      total.add(histogram);
+      final JsonObject statusCounts = new JsonObject();
+      statuses.get(operation).forEach((status, count) ->
+          statusCounts.put(String.valueOf(status), count));
+      operations.put(operation, summary(histogram, seconds).put("statuses", statusCounts));
+    });
+    return new JsonObject()
+        .put("config", config().copy())
+        .put("elapsed_seconds", seconds)
+        .put("errors", errors)
+        .put("total", summary(total, seconds))
+        .put("operations", operations);
+  }
+
+  /**
+   * Summarizes the specified latency histogram
+   *
+   * @param histogram the latency histogram
+   * @param seconds   the elapsed time, in seconds
+   * @return the summary json
+   */
+  private static JsonObject summary(final Histogram histogram, final double seconds) {
+    return new JsonObject()
+        .put("count", histogram.getTotalCount())
+        .put("throughput", histogram.getTotalCount() / seconds)
+        .put("latency_us", new JsonObject()
+            .put("mean", histogram.getMean())
+            .put("p50", histogram.getValueAtPercentile(50))
+            .put("p90", histogram.getValueAtPercentile(90))
+            .put("p99", histogram.getValueAtPercentile(99))
+            .put("p999", histogram.getValueAtPercentile(99.9))
+            .put("max", histogram.getMaxValue()));
+  }
+}
@@ -0,0 +1,132 @@
+package pt.davidafsilva.ushortx.load;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.http.RestVerticle;
+import pt.davidafsilva.ushortx.persistence.DatabaseVerticle;
+
+/**
+ * The end-to-end load generator. It starts both the {@link RestVerticle} and the
+ * {@link DatabaseVerticle} in this JVM, drives a configurable mix of redirect and shorten
+ * requests with a separate vertx instance (see {@link LoadDriver}) and writes the measured
+ * throughput and latency percentiles as json.
+ *
+ * The configuration is an optional json file, given as the single argument, with the
+ * properties: {@code http_port}, {@code rate} (requests/s), {@code warmup} and
+ * {@code duration} (seconds), {@code connections}, {@code read_ratio}, {@code keys},
+ * {@code zipf_exponent}, {@code output} (the results file) and {@code server} (the
+ * configuration of both verticles).
+ *
+ * @author David Silva
+ */
+public final class LoadGenerator {
+
+  // the ushortx logger, turned down so that the per-request logging is not measured
+  private static final java.util.logging.Logger USHORTX_LOGGER =
+      java.util.logging.Logger.getLogger("pt.davidafsilva.ushortx");
+
+  /**
+   * Runs the load generator
+   *
+   * @param args the optional configuration file path
+   * @throws Exception if the load generation fails
+   */
+  public static void main(final String[] args) throws Exception {
+    final JsonObject config = args.length == 0 ? new JsonObject() : new JsonObject(
+        new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+    USHORTX_LOGGER.setLevel(Level.WARNING);
+
+    // start the servers
+    final int port = config.getInteger("http_port", 8080);
+    final JsonObject serverConfig = config.getJsonObject("server", new JsonObject()).copy()
+        .put("http_port", port);
+    final Vertx serverVertx = Vertx.vertx();
+    await(serverVertx, DatabaseVerticle.class.getName(), serverConfig);
+    await(serverVertx, RestVerticle.class.getName(), serverConfig);
+
+    // drive the load
+    final Vertx clientVertx = Vertx.vertx();
+    final LoadDriver driver = new LoadDriver();
+    final CompletableFuture<String> deployment = new CompletableFuture<>();
+    clientVertx.deployVerticle(driver, new DeploymentOptions().setConfig(config.copy()
+        .put("http_port", port)), result -> complete(deployment, result));
+    deployment.get(5, TimeUnit.MINUTES);
+    final JsonObject results = driver.run().get();
+
+    // write the results
+    final String output = config.getString("output", "load-results.json");
+    Files.write(Paths.get(output), results.encodePrettily().getBytes(StandardCharsets.UTF_8));
+    System.out.println(results.encodePrettily());
+    System.out.println("results written to " + output);
+
+    clientVertx.close();
+    serverVertx.close();
+  }
+
+  /**
+   * Deploys the specified verticle and waits for it
+   *
+   * @param vertx    the vertx instance
+   * @param verticle the verticle class name
+   * @param config   the verticle configuration
+   * @throws Exception if the verticle is not deployed
+   */
+  private static void await(final Vertx vertx, final String verticle, final JsonObject config)
+      throws Exception {
+    final CompletableFuture<String> deployment = new CompletableFuture<>();
+    vertx.deployVerticle(verticle, new DeploymentOptions().setConfig(config),
+        result -> complete(deployment, result));
+    deployment.get(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Completes the specified future with the given result
+   *
+   * @param future the future to complete
+   * @param result the result
+   * @param <T>    the result type
+   */
+  private static <T> void complete(final CompletableFuture<T> future,
+      final AsyncResult<T> result) {
+    if (result.succeeded()) {
+      future.complete(result.result());
+    } else {
+      future.completeExceptionally(result.cause());
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.FindUrlRequest;
+import pt.davidafsilva.ushortx.protocol.Protocol;
+import pt.davidafsilva.ushortx.protocol.SaveUrlRequest;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+
+/**
+ * The {@link DatabaseVerticle} benchmarks, against an embedded H2 database and an in-process
+ * vertx instance. The event bus round trip to an echo consumer is measured as well, as the
+ * baseline of the persistence operations.
+ *
+ * @author David Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseVerticleBenchmark {
+
+  // the echo address
+  private static final String ECHO_ADDRESS = "ushortx-benchmark-echo";
+  // the number of urls stored before the benchmark
+  private static final int PRELOADED_URLS = 10_000;
+  // the number of preload saves in flight, kept below the admission queue bound
+  private static final int PRELOAD_WINDOW = 500;
+
+  // the save batch size, 0 disables batching
+  @Param({"0", "50"})
+  public int batchSize;
+
+  // the url store, see the persistence storage configuration
+  @Param({"jdbc", "log"})
+  public String storage;
+
+  // whether the jdbc store runs on a pinned connection
+  @Param({"false", "true"})
+  public boolean pinnedConnection;
+
+  // the vertx instance
+  private Vertx vertx;
+  // the storage directory of the log store
+  private Path storagePath;
+  // the identifiers of the preloaded urls
+  private long[] ids;
+  // the sequence of the saved urls
+  private final AtomicLong urlSequence = new AtomicLong();
+
+  @Setup
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    Protocol.registerCodecs(vertx.eventBus());
+    vertx.eventBus().consumer(ECHO_ADDRESS, message -> message.reply(message.body()));
+
+    // deploy the verticle against a private in-memory database or storage directory
+    storagePath = Files.createTempDirectory("ushortx-benchmark");
+    final CompletableFuture<String> deployment = new CompletableFuture<>();
+    vertx.deployVerticle(DatabaseVerticle.class.getName(), new DeploymentOptions()
+        .setConfig(new JsonObject()
+            .put("storage", storage)
+            .put("url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+            .put("batch_size", batchSize)
+            .put("pinned_connection", pinnedConnection)
+            .put("storage_path", storagePath.toString())), result -> {
+      if (result.succeeded()) {
+        deployment.complete(result.result());
+      } else {
+        deployment.completeExceptionally(result.cause());
+      }
+    });
+    deployment.get(30, TimeUnit.SECONDS);
+
+    // preload the urls to lookup, one window at a time so that none is shed
+    ids = new long[PRELOADED_URLS];
+    for (int start = 0; start < PRELOADED_URLS; start += PRELOAD_WINDOW) {
+      final int end = Math.min(PRELOADED_URLS, start + PRELOAD_WINDOW);
+      final CompletableFuture<?>[] saves = new CompletableFuture<?>[end - start];
+      for (int i = start; i < end; i++) {
+        final int index = i;
+        saves[i - start] = this.<UrlReply>send("ushortx-persistence-save",
+            new SaveUrlRequest("http://preloaded.example.com/" + i))
+            .thenAccept(reply -> ids[index] = reply.id());
+      }
+      CompletableFuture.allOf(saves).get(60, TimeUnit.SECONDS);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    final CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(result -> closed.complete(null));
+    closed.get(30, TimeUnit.SECONDS);
+    try (final Stream<Path> files = Files.walk(storagePath)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public JsonObject eventBusRoundTrip() throws Exception {
+    return request(ECHO_ADDRESS, new JsonObject().put("id", 1L));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public JsonObject eventBusRoundTripContended() throws Exception {
+    return request(ECHO_ADDRESS, new JsonObject().put("id", 1L));
+  }
+
+  @Benchmark
+  @Threads(1)
+  public UrlReply findById() throws Exception {
+    return findRandom();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public UrlReply findByIdContended() throws Exception {
+    return findRandom();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public UrlReply save() throws Exception {
+    return request("ushortx-persistence-save",
+        new SaveUrlRequest("http://benchmark.example.com/" + urlSequence.incrementAndGet()));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public UrlReply saveContended() throws Exception {
+    return save();
+  }
+
+  /**
+   * Looks up a random preloaded url
+   *
+   * @return the lookup reply
+   * @throws Exception if the lookup fails
+   */
+  private UrlReply findRandom() throws Exception {
+    final long id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    return request("ushortx-persistence-findById", new FindUrlRequest(id));
+  }
+
+  /**
+   * Sends the specified request and waits for its reply
+   *
+   * @param address the address to send the request to
+   * @param body    the request body
+   * @param <T>     the reply body type
+   * @return the reply body
+   * @throws Exception if the request fails
+   */
+  private <T> T request(final String address, final Object body) throws Exception {
+    return this.<T>send(address, body).get(30, TimeUnit.SECONDS);
+  }
+
+
+  /**
+   * Sends the specified request
+   *
+   * @param address the address to send the request to
+   * @param body    the request body
+   * @param <T>     the reply body type
+   * @return the future reply body
+   */
+  private <T> CompletableFuture<T> send(final String address, final Object body) {
+    final CompletableFuture<T> reply = new CompletableFuture<>();
+    vertx.eventBus().send(address, body, (AsyncResult<Message<T>> result) -> {
+      if (result.succeeded()) {
+        reply.complete(result.result().body());
+      } else {
+        reply.completeExceptionally(result.cause());
+      }
+    });
+    return reply;
+  }
+}
@@ -0,0 +1,131 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.hashids.Hashids;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link Hash} encoding and decoding benchmarks, across several identifier magnitudes, along
+ * with the {@link Hashids} ones as the baseline
+ *
+ * @author David Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+  // the benchmark salt
+  private static final String SALT = "ushortx benchmark salt";
+  // an hash that does not decode to an identifier, such as the ones used by scanners
+  private static final String INVALID_HASH = "invalid-hash!";
+
+  // the identifier to encode
+  @Param({"1", "1000", "1000000", "1000000000", "1000000000000000"})
+  public long id;
+
+  // the hash of the identifier
+  private String hash;
+  // the baseline hash facility
+  private Hashids hashids;
+
+  @Setup
+  public void setup() {
+    hash = Hash.generate(SALT, id);
+    hashids = new Hashids(SALT);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String encode() {
+    return Hash.generate(SALT, id);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public String encodeContended() {
+    return Hash.generate(SALT, id);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Optional<Long> decode() {
+    return Hash.reverse(SALT, hash);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public Optional<Long> decodeContended() {
+    return Hash.reverse(SALT, hash);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Optional<Long> decodeInvalid() {
+    return Hash.reverse(SALT, INVALID_HASH);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String encodeHashids() {
+    return hashids.encode(id);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long[] decodeHashids() {
+    return hashids.decode(hash);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long[] decodeInvalidHashids() {
+    try {
+      return hashids.decode(INVALID_HASH);
+    } catch (final RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-benchmarks
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.impl.codecs.JsonObjectMessageCodec;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The wire round trip (encoding and decoding, as done between clustered nodes) of the protocol
+ * url reply, against the equivalent json object with the vertx json codec as the baseline
+ *
+ * @author David Silva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class ProtocolCodecBenchmark {
+
+  // the vertx json codec
+  private static final JsonObjectMessageCodec JSON_CODEC = new JsonObjectMessageCodec();
+
+  // the reply id and url
+  private final long id = 1_234_567L;
+  private final String url = "http://www.example.com/some/path/to/a/page?with=query&params=1";
+
+  @Benchmark
+  public UrlReply urlReply() {
+    final Buffer buffer = Buffer.buffer();
+    UrlReply.CODEC.encodeToWire(buffer, new UrlReply(id, url));
+    return UrlReply.CODEC.decodeFromWire(0, buffer);
+  }
+
+  @Benchmark
+  public JsonObject jsonReply() {
+    final Buffer buffer = Buffer.buffer();
+    JSON_CODEC.encodeToWire(buffer, new JsonObject().put("id", id).put("url", url));
+    return JSON_CODEC.decodeFromWire(0, buffer);
+  }
+}
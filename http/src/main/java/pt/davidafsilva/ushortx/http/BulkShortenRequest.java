@@ -0,0 +1,240 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import pt.davidafsilva.ushortx.protocol.Failure;
+
+/**
+ * A streamed bulk shorten request. The urls are parsed from the request body as it arrives,
+ * shortened with at most a bounded number of outstanding persistence requests and the results
+ * are streamed back as newline-delimited json, in completion order.
+ *
+ * The request body is paused whenever the outstanding requests limit is reached or the
+ * response write queue is full, and resumed as soon as there's room again.
+ *
+ * @author David Silva
+ */
+final class BulkShortenRequest {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkShortenRequest.class);
+
+  // the http request
+  private final HttpServerRequest request;
+  // the http response
+  private final HttpServerResponse response;
+  // the maximum number of outstanding persistence requests
+  private final int maxInFlight;
+  // the url validator, returning the normalized url if valid
+  private final Function<String, Optional<String>> validator;
+  // the url shortener, completing with the shortened url
+  private final BiConsumer<String, Handler<AsyncResult<String>>> shortener;
+  // the parsed urls waiting to be shortened, bounded by the urls of a single body chunk
+  private final Queue<IndexedUrl> queue = new ArrayDeque<>();
+
+  // the index of the next parsed url
+  private long nextIndex;
+  // the number of outstanding persistence requests
+  private int inFlight;
+  // whether or not the request body is paused
+  private boolean paused;
+  // whether or not the request body was fully read
+  private boolean ended;
+  // whether or not the response was already ended or closed
+  private boolean closed;
+
+  /**
+   * Creates a new bulk shorten request
+   *
+   * @param request     the http request
+   * @param maxInFlight the maximum number of outstanding persistence requests
+   * @param validator   the url validator, returning the normalized url if valid
+   * @param shortener   the url shortener, completing with the shortened url
+   */
+  BulkShortenRequest(final HttpServerRequest request, final int maxInFlight,
+      final Function<String, Optional<String>> validator,
+      final BiConsumer<String, Handler<AsyncResult<String>>> shortener) {
+    this.request = request;
+    this.response = request.response();
+    this.maxInFlight = maxInFlight;
+    this.validator = validator;
+    this.shortener = shortener;
+  }
+
+  /**
+   * Starts processing the request body
+   */
+  void start() {
+    final String contentType = request.getHeader("Content-Type");
+    final boolean json = contentType != null && contentType.startsWith("application/json");
+    final UrlStreamParser parser = new UrlStreamParser(json, this::onUrl, this::onError);
+
+    response.setChunked(true)
+        .putHeader("Content-Type", "application/x-ndjson")
+        .closeHandler(v -> closed = true)
+        .drainHandler(v -> process());
+    request.handler(parser)
+        .exceptionHandler(this::onError)
+        .endHandler(v -> {
+          parser.end();
+          ended = true;
+          process();
+        });
+  }
+
+  /**
+   * Handles a parsed url
+   *
+   * @param url the parsed url, empty if it exceeded the maximum length
+   */
+  private void onUrl(final Optional<String> url) {
+    queue.add(new IndexedUrl(nextIndex++, url.orElse(null)));
+    process();
+  }
+
+  /**
+   * Handles a malformed request body or a request failure
+   *
+   * @param cause the failure cause
+   */
+  private void onError(final Throwable cause) {
+    LOGGER.warn("bulk shorten request failed", cause);
+    queue.clear();
+    write(new JsonObject().put("error", cause.getMessage()));
+    ended = true;
+    process();
+  }
+
+  /**
+   * Sends the queued urls while there's room for it, ending the response whenever everything
+   * was processed and pausing/resuming the request body accordingly.
+   */
+  private void process() {
+    while (!queue.isEmpty() && inFlight < maxInFlight && !closed) {
+      shorten(queue.poll());
+    }
+
+    if (ended && queue.isEmpty() && inFlight == 0) {
+      if (!closed) {
+        closed = true;
+        response.end();
+      }
+    } else if (!ended) {
+      final boolean full = inFlight >= maxInFlight || response.writeQueueFull();
+      if (full && !paused) {
+        paused = true;
+        request.pause();
+      } else if (!full && paused) {
+        paused = false;
+        request.resume();
+      }
+    }
+  }
+
+  /**
+   * Validates and shortens the specified url, writing the result to the response
+   *
+   * @param url the url to shorten
+   */
+  private void shorten(final IndexedUrl url) {
+    final Optional<String> validUrl = url.url == null ? Optional.empty()
+        : validator.apply(url.url);
+    if (!validUrl.isPresent()) {
+      write(url.toJson().put("error", "invalid url"));
+      return;
+    }
+
+    inFlight++;
+    shortener.accept(validUrl.get(), result -> {
+      inFlight--;
+      if (result.succeeded()) {
+        write(url.toJson().put("shortened", result.result()));
+      } else {
+        write(url.toJson().put("error", Failure.of(result.cause()) == Failure.OVERLOADED
+            ? "overloaded, retry later" : "unable to save url"));
+      }
+      process();
+    });
+  }
+
+  /**
+   * Writes the specified json object as a line of the response, if still open
+   *
+   * @param json the json object to write
+   */
+  private void write(final JsonObject json) {
+    if (!closed) {
+      response.write(json.encode() + "\n");
+    }
+  }
+
+  /**
+   * A parsed url and its position within the request body
+   */
+  private static final class IndexedUrl {
+
+    // the position within the request body
+    private final long index;
+    // the original url, null if it exceeded the maximum length
+    private final String url;
+
+    /**
+     * Creates a new indexed url
+     *
+     * @param index the position within the request body
+     * @param url   the original url
+     */
+    private IndexedUrl(final long index, final String url) {
+      this.index = index;
+      this.url = url;
+    }
+
+    /**
+     * Creates the base json of the result line for this url
+     *
+     * @return the result line json
+     */
+    private JsonObject toJson() {
+      return new JsonObject()
+          .put("index", index)
+          .put("original", url);
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * The snapshot of the hottest redirects of a {@link UrlCache}, which is written on shutdown and
+ * loaded on startup, before the http server starts listening, so that a restarted instance
+ * starts warm. Whenever there is no snapshot, the cache may be prewarmed with the most recently
+ * created urls of each persistence shard instead, requested through
+ * {@code ushortx-persistence-recent}.
+ *
+ * The snapshot is written to a temporary file which then replaces the previous snapshot, hence
+ * the instances sharing the same snapshot never read a partially written one. The snapshot holds
+ * the epoch of each persistence shard store, requested through {@code ushortx-persistence-epoch}
+ * on load, and is discarded whenever those differ (e.g. a store recreated from scratch), since
+ * its mappings would no longer be valid. Without the epochs, the snapshot is neither loaded nor
+ * saved.
+ *
+ * @author David Silva
+ */
+final class CacheSnapshot {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshot.class);
+
+  // the recent urls address
+  private static final String RECENT_ADDRESS = "ushortx-persistence-recent";
+  // the store epoch address
+  private static final String EPOCH_ADDRESS = "ushortx-persistence-epoch";
+
+  // the snapshot format:
+  // [magic: int][shards: int]([epoch: long])*[count: int]([id: long][length: int][url: utf-8])*
+  private static final int MAGIC = 0x55534e51;
+
+  // the snapshot file, if enabled
+  private final Optional<Path> path;
+  // the max. number of mappings written to the snapshot
+  private final int maxSize;
+  // the number of recent urls loaded from each shard without a snapshot, 0 disables it
+  private final int recent;
+
+  // the store epoch of each shard, once requested, null if unavailable
+  private volatile long[] epochs;
+
+  /**
+   * Creates a new snapshot
+   *
+   * @param path    the snapshot file, if enabled
+   * @param maxSize the max. number of mappings written to the snapshot
+   * @param recent  the number of recent urls loaded from each shard without a snapshot
+   */
+  CacheSnapshot(final Optional<Path> path, final int maxSize, final int recent) {
+    this.path = path;
+    this.maxSize = maxSize;
+    this.recent = recent;
+  }
+
+  /**
+   * Creates a new snapshot based on the specified verticle configuration
+   *
+   * @param config the verticle configuration
+   * @return the created snapshot
+   */
+  static CacheSnapshot fromConfig(final JsonObject config) {
+    return new CacheSnapshot(
+        Optional.ofNullable(config.getString("cache_snapshot_path")).map(Paths::get),
+        config.getInteger("cache_snapshot_size", 10_000),
+        config.getInteger("cache_prewarm_recent", 0));
+  }
+
+  /**
+   * Loads the snapshot into the specified cache, on a worker thread, or the recent urls of each
+   * shard if there is no valid snapshot. The failures are logged and do not fail the load.
+   *
+   * @param vertx       the vertx instance
+   * @param cache       the cache to load
+   * @param shards      the persistence shard addresses
+   * @param doneHandler the handler to be called once loaded
+   */
+  void load(final Vertx vertx, final UrlCache cache, final PersistenceShards shards,
+      final Handler<Void> doneHandler) {
+    if (!path.isPresent()) {
+      loadSnapshot(vertx, cache, shards, doneHandler);
+      return;
+    }
+
+    // the snapshot is only valid for the same stores
+    final List<String> addresses = shards.all(EPOCH_ADDRESS);
+    final long[] shardEpochs = new long[addresses.size()];
+    final int[] pending = {addresses.size()};
+    final boolean[] failed = {false};
+    for (int shard = 0; shard < addresses.size(); shard++) {
+      final int index = shard;
+      vertx.eventBus().send(addresses.get(shard), null, (AsyncResult<Message<Long>> result) -> {
+        if (result.succeeded()) {
+          shardEpochs[index] = result.result().body();
+        } else if (!failed[0]) {
+          failed[0] = true;
+          LOGGER.warn("unable to request the store epochs, skipping the cache snapshot",
+              result.cause());
+        }
+        if (--pending[0] == 0) {
+          epochs = failed[0] ? null : shardEpochs;
+          loadSnapshot(vertx, cache, shards, doneHandler);
+        }
+      });
+    }
+  }
+
+  /**
+   * Loads the snapshot into the specified cache, on a worker thread, or the recent urls of each
+   * shard if there is no valid snapshot
+   *
+   * @param vertx       the vertx instance
+   * @param cache       the cache to load
+   * @param shards      the persistence shard addresses
+   * @param doneHandler the handler to be called once loaded
+   */
+  private void loadSnapshot(final Vertx vertx, final UrlCache cache,
+      final PersistenceShards shards, final Handler<Void> doneHandler) {
+    final long[] expectedEpochs = epochs;
+    vertx.<Boolean>executeBlocking(future -> future.complete(read(cache, expectedEpochs)), false,
+        result -> {
+          if (result.failed()) {
+            LOGGER.warn("unable to load the cache snapshot", result.cause());
+          }
+          if ((result.failed() || !result.result()) && recent > 0) {
+            loadRecent(vertx, cache, shards, doneHandler);
+          } else {
+            doneHandler.handle(null);
+          }
+        });
+  }
+
+  /**
+   * Reads the snapshot into the specified cache, if taken from the stores of the given epochs
+   *
+   * @param cache  the cache to load
+   * @param epochs the store epoch of each shard, null if unavailable
+   * @return {@code true} if the snapshot was read, {@code false} otherwise
+   */
+  private boolean read(final UrlCache cache, final long[] epochs) {
+    if (epochs == null || !path.isPresent() || !Files.isRegularFile(path.get())) {
+      return false;
+    }
+
+    int loaded = 0;
+    try (final FileChannel channel = FileChannel.open(path.get())) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC) {
+        LOGGER.warn("ignoring the invalid cache snapshot " + path.get());
+        return false;
+      }
+      final long[] snapshotEpochs = new long[buffer.getInt()];
+      for (int shard = 0; shard < snapshotEpochs.length; shard++) {
+        snapshotEpochs[shard] = buffer.getLong();
+      }
+      if (!Arrays.equals(epochs, snapshotEpochs)) {
+        LOGGER.warn("ignoring the cache snapshot " + path.get() + " of other stores");
+        return false;
+      }
+      final int count = buffer.getInt();
+      for (; loaded < count; loaded++) {
+        final long id = buffer.getLong();
+        final byte[] url = new byte[buffer.getInt()];
+        buffer.get(url);
+        cache.put(id, new String(url, StandardCharsets.UTF_8));
+      }
+    } catch (final IOException | BufferUnderflowException | NegativeArraySizeException e) {
+      LOGGER.warn("the cache snapshot " + path.get() + " is truncated", e);
+    }
+    LOGGER.info("loaded " + loaded + " redirects from the cache snapshot");
+    return true;
+  }
+
+  /**
+   * Loads the recent urls of each shard into the specified cache
+   *
+   * @param vertx       the vertx instance
+   * @param cache       the cache to load
+   * @param shards      the persistence shard addresses
+   * @param doneHandler the handler to be called once every shard replied
+   */
+  private void loadRecent(final Vertx vertx, final UrlCache cache,
+      final PersistenceShards shards, final Handler<Void> doneHandler) {
+    final List<String> addresses = shards.all(RECENT_ADDRESS);
+    final int[] pending = {addresses.size()};
+    addresses.forEach(address -> vertx.eventBus().send(address,
+        new JsonObject().put("limit", recent),
+        (AsyncResult<Message<JsonObject>> result) -> {
+          if (result.succeeded()) {
+            final JsonArray urls = result.result().body().getJsonArray("urls");
+            for (int i = 0; i < urls.size(); i++) {
+              final JsonObject entry = urls.getJsonObject(i);
+              cache.put(entry.getLong("id"), entry.getString("url"));
+            }
+            LOGGER.info("prewarmed the cache with " + urls.size() + " recent urls of " + address);
+          } else {
+            LOGGER.warn("unable to prewarm the cache with the recent urls of " + address,
+                result.cause());
+          }
+          if (--pending[0] == 0) {
+            doneHandler.handle(null);
+          }
+        }));
+  }
+
+  /**
+   * Writes the hottest mappings of the specified cache to the snapshot, on a worker thread, unless
+   * the store epochs are unavailable
+   *
+   * @param vertx       the vertx instance
+   * @param cache       the cache to snapshot
+   * @param doneHandler the handler to be called once written
+   */
+  void save(final Vertx vertx, final UrlCache cache, final Handler<AsyncResult<Void>> doneHandler) {
+    final long[] storeEpochs = epochs;
+    if (!path.isPresent() || maxSize <= 0 || storeEpochs == null) {
+      doneHandler.handle(Future.succeededFuture());
+      return;
+    }
+
+    final Map<Long, String> hottest = cache.hottest(maxSize);
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        write(storeEpochs, hottest);
+        future.complete();
+      } catch (final IOException e) {
+        future.fail(e);
+      }
+    }, false, result -> {
+      if (result.succeeded()) {
+        LOGGER.info("saved " + hottest.size() + " redirects to the cache snapshot");
+      } else {
+        LOGGER.warn("unable to save the cache snapshot", result.cause());
+      }
+      doneHandler.handle(result);
+    });
+  }
+
+  /**
+   * Writes the specified mappings to a temporary file, which then replaces the snapshot
+   *
+   * @param epochs   the store epoch of each shard
+   * @param mappings the mappings to write
+   * @throws IOException if an I/O error occurs
+   */
+  private void write(final long[] epochs, final Map<Long, String> mappings) throws IOException {
+    final Path snapshot = path.get().toAbsolutePath();
+    final Path temporary = Files.createTempFile(snapshot.getParent(),
+        snapshot.getFileName().toString(), ".tmp");
+    try {
+      try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(epochs.length);
+        for (final long epoch : epochs) {
+          output.writeLong(epoch);
+        }
+        output.writeInt(mappings.size());
+        for (final Map.Entry<Long, String> mapping : mappings.entrySet()) {
+          final byte[] url = mapping.getValue().getBytes(StandardCharsets.UTF_8);
+          output.writeLong(mapping.getKey());
+          output.writeInt(url.length);
+          output.write(url);
+        }
+      }
+      Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
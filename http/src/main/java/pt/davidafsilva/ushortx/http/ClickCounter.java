@@ -0,0 +1,227 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import pt.davidafsilva.ushortx.protocol.RecordClicksRequest;
+
+/**
+ * The redirect counter of a {@link RestVerticle} instance. The clicks are counted in memory, by
+ * identifier, and their deltas are flushed periodically to the owning persistence shards, with one
+ * {@link RecordClicksRequest} per shard. Since each verticle instance counts on its own event
+ * loop, the counters are striped by event loop and never contended, and the counts are kept
+ * in primitive {@link ClickCounts}, hence a redirect allocates nothing.
+ *
+ * The clicks counted since the last flush are lost on a crash, which is bounded by the flush
+ * interval. The deltas of a failed flush are counted again, unless that would exceed the max.
+ * number of pending identifiers, in which case they are dropped.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context, except
+ * for the metrics ({@link #pendingSize()} and {@link #dropped()}), which are estimates, and for
+ * {@link #pending(long, Handler)}, which reads the counts on the owning context.
+ *
+ * @author David Silva
+ */
+final class ClickCounter {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClickCounter.class);
+
+  // the records address
+  private static final String CLICKS_ADDRESS = "ushortx-persistence-clicks";
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the owning verticle context
+  private final Context context;
+  // the persistence shard addresses
+  private final PersistenceShards shards;
+  // the max. number of pending identifiers, after which the clicks are flushed right away
+  private final int maxPending;
+  // the flush timer, if enabled
+  private final long flushTimer;
+
+  // the pending clicks, by identifier
+  private final ClickCounts pending = new ClickCounts();
+  // the number of dropped clicks
+  private volatile long dropped;
+
+  /**
+   * Creates a new counter
+   *
+   * @param vertx         the vertx instance
+   * @param shards        the persistence shard addresses
+   * @param flushInterval the time, in milliseconds, between flushes, {@code 0} disables the
+   *                      counting
+   * @param maxPending    the max. number of pending identifiers
+   */
+  ClickCounter(final Vertx vertx, final PersistenceShards shards, final long flushInterval,
+      final int maxPending) {
+    this.vertx = vertx;
+    this.context = vertx.getOrCreateContext();
+    this.shards = shards;
+    this.maxPending = maxPending;
+    this.flushTimer = flushInterval <= 0 ? -1 : vertx.setPeriodic(flushInterval, id -> flush());
+  }
+
+  /**
+   * Creates a new counter based on the specified verticle configuration
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @param shards the persistence shard addresses
+   * @return the created counter
+   */
+  static ClickCounter fromConfig(final Vertx vertx, final JsonObject config,
+      final PersistenceShards shards) {
+    return new ClickCounter(vertx, shards,
+        config.getLong("clicks_flush_interval", 1_000L),
+        config.getInteger("clicks_max_pending", 10_000));
+  }
+
+  /**
+   * Counts a redirect of the specified identifier
+   *
+   * @param id the url identifier
+   */
+  void click(final long id) {
+    if (flushTimer == -1) {
+      return;
+    }
+    pending.add(id, 1);
+    // flush right away once the max. number of pending identifiers is reached
+    if (pending.size() >= maxPending) {
+      flush();
+    }
+  }
+
+  /**
+   * Requests the clicks of the specified identifier that are not flushed yet, which are read on
+   * the owning context, hence the counters of the other instances may be requested as well
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the pending clicks, on the caller context
+   */
+  void pending(final long id, final Handler<Long> handler) {
+    final Context caller = vertx.getOrCreateContext();
+    context.runOnContext(v -> {
+      final long clicks = pending.get(id);
+      caller.runOnContext(w -> handler.handle(clicks));
+    });
+  }
+
+  /**
+   * Returns the number of identifiers with pending clicks
+   *
+   * @return the number of pending identifiers
+   */
+  int pendingSize() {
+    return pending.size();
+  }
+
+  /**
+   * Returns the number of clicks that were dropped after failed flushes
+   *
+   * @return the number of dropped clicks
+   */
+  long dropped() {
+    return dropped;
+  }
+
+  /**
+   * Flushes the pending clicks to their shards
+   */
+  void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    // group the pending clicks by shard, as slots of the pending counts
+    final Map<String, IntStream.Builder> byShard = new HashMap<>();
+    for (int slot = 0; slot < pending.capacity(); slot++) {
+      if (pending.countAt(slot) != 0) {
+        byShard.computeIfAbsent(shards.byId(CLICKS_ADDRESS, pending.idAt(slot)),
+            address -> IntStream.builder()).add(slot);
+      }
+    }
+
+    byShard.forEach((address, shardSlots) -> {
+      final int[] slots = shardSlots.build().toArray();
+      final long[] ids = new long[slots.length];
+      final long[] counts = new long[slots.length];
+      for (int i = 0; i < slots.length; i++) {
+        ids[i] = pending.idAt(slots[i]);
+        counts[i] = pending.countAt(slots[i]);
+      }
+      vertx.eventBus().send(address, new RecordClicksRequest(ids, counts),
+          HttpMetrics.timeRequest(CLICKS_ADDRESS, result -> {
+            if (result.failed()) {
+              LOGGER.warn("unable to flush the clicks of " + ids.length + " urls",
+                  result.cause());
+              restore(ids, counts);
+            }
+          }));
+    });
+    pending.clear();
+  }
+
+  /**
+   * Counts again the clicks of a failed flush, dropping those that exceed the max. number of
+   * pending identifiers
+   *
+   * @param ids    the url identifiers
+   * @param clicks the number of clicks of each identifier
+   */
+  private void restore(final long[] ids, final long[] clicks) {
+    for (int i = 0; i < ids.length; i++) {
+      if (pending.get(ids[i]) != 0 || pending.size() < maxPending - 1) {
+        pending.add(ids[i], clicks[i]);
+      } else {
+        dropped += clicks[i];
+      }
+    }
+  }
+
+  /**
+   * Stops the periodic flushes and flushes the pending clicks
+   */
+  void close() {
+    if (flushTimer != -1) {
+      vertx.cancelTimer(flushTimer);
+      flush();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * The click counts of a {@link ClickCounter}, by identifier, kept in an open addressing table of
+ * primitive longs, so that counting a click allocates nothing. The table is grown, by doubling,
+ * once half full and is reused across flushes.
+ *
+ * This class is not thread-safe, except for {@link #size()}, which may be read from any thread.
+ *
+ * @author David Silva
+ */
+final class ClickCounts {
+
+  // the initial capacity, a power of two
+  private static final int INITIAL_CAPACITY = 64;
+
+  // the identifiers, at the slots with a count
+  private long[] ids = new long[INITIAL_CAPACITY];
+  // the counts, zero at the empty slots
+  private long[] counts = new long[INITIAL_CAPACITY];
+  // the number of identifiers
+  private volatile int size;
+
+  /**
+   * Adds the specified number of clicks to the count of the given identifier
+   *
+   * @param id     the url identifier
+   * @param clicks the number of clicks to add, positive
+   */
+  void add(final long id, final long clicks) {
+    final int slot = slot(id);
+    if (counts[slot] == 0) {
+      ids[slot] = id;
+      size++;
+      counts[slot] = clicks;
+      if (size > counts.length / 2) {
+        grow();
+      }
+    } else {
+      counts[slot] += clicks;
+    }
+  }
+
+  /**
+   * Returns the count of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the count, {@code 0} if none
+   */
+  long get(final long id) {
+    return counts[slot(id)];
+  }
+
+  /**
+   * Returns the number of identifiers with a count
+   *
+   * @return the number of identifiers
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Checks whether or not there is any count
+   *
+   * @return {@code true} if there is no count, {@code false} otherwise
+   */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the capacity of the table, the upper bound of the slots
+   *
+   * @return the capacity
+   */
+  int capacity() {
+    return counts.length;
+  }
+
+  /**
+   * Returns the identifier at the specified slot
+   *
+   * @param slot the slot
+   * @return the identifier, meaningless if the slot has no count
+   */
+  long idAt(final int slot) {
+    return ids[slot];
+  }
+
+  /**
+   * Returns the count at the specified slot
+   *
+   * @param slot the slot
+   * @return the count, {@code 0} if the slot is empty
+   */
+  long countAt(final int slot) {
+    return counts[slot];
+  }
+
+  /**
+   * Removes every count, keeping the capacity
+   */
+  void clear() {
+    Arrays.fill(counts, 0);
+    size = 0;
+  }
+
+  /**
+   * Finds the slot of the specified identifier, which is either the one holding it or the empty
+   * slot where it would be added
+   *
+   * @param id the url identifier
+   * @return the slot
+   */
+  private int slot(final long id) {
+    final int mask = counts.length - 1;
+    final long hash = id * 0x9E3779B97F4A7C15L;
+    int slot = (int) (hash ^ (hash >>> 32)) & mask;
+    while (counts[slot] != 0 && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Doubles the capacity of the table, re-adding every count
+   */
+  private void grow() {
+    final long[] oldIds = ids;
+    final long[] oldCounts = counts;
+    ids = new long[oldIds.length * 2];
+    counts = new long[oldCounts.length * 2];
+    for (int i = 0; i < oldCounts.length; i++) {
+      if (oldCounts[i] != 0) {
+        final int slot = slot(oldIds[i]);
+        ids[slot] = oldIds[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+}
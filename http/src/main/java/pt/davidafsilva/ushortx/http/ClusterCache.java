@@ -0,0 +1,207 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ICompletableFuture;
+import com.hazelcast.core.IMap;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.spi.cluster.ClusterManager;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+/**
+ * The cluster-wide identifier to URL cache, which is a size-bounded distributed map of the
+ * Hazelcast cluster manager, shared by every http instance of the cluster. It sits between the
+ * local cache of each http instance and the persistence, hence a new http instance warms from the
+ * cluster instead of the database.
+ *
+ * The map must be configured, with its size bound, by the cluster configuration (e.g. the
+ * {@code cluster.xml} of the Hazelcast cluster manager), either by name or by a matching wildcard
+ * name, so that every member uses the same settings: enabling the cache without it is a
+ * configuration error. The cache is disabled whenever vertx is not clustered with Hazelcast.
+ *
+ * The cache is thread-safe, hence it may be shared by the verticle instances of the same vertx
+ * instance: the lookup handlers are called on the context of each caller.
+ *
+ * @author David Silva
+ */
+final class ClusterCache {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCache.class);
+
+  // the distributed map name
+  private static final String MAP_NAME = "ushortx-urls";
+  // the name of the map configuration used by the maps that are not configured
+  private static final String DEFAULT_MAP_CONFIG = "default";
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the distributed map, if enabled
+  private final Optional<IMap<Long, String>> map;
+
+  // the number of lookups served and not served by the cache
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates a new cache backed by the specified distributed map
+   *
+   * @param vertx the vertx instance
+   * @param map   the distributed map, if enabled
+   */
+  private ClusterCache(final Vertx vertx, final Optional<IMap<Long, String>> map) {
+    this.vertx = vertx;
+    this.map = map;
+  }
+
+  /**
+   * Creates a new cache based on the specified verticle configuration, which enables it with
+   * {@code cluster_cache}
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @return the created cache
+   * @throws IllegalStateException if enabled without the map configured by the cluster
+   */
+  static ClusterCache fromConfig(final Vertx vertx, final JsonObject config) {
+    if (!config.getBoolean("cluster_cache", false)) {
+      return new ClusterCache(vertx, Optional.empty());
+    }
+
+    // the Hazelcast instance of the vertx cluster manager, which vertx only exposes internally
+    final ClusterManager clusterManager = vertx.isClustered()
+        ? ((VertxInternal) vertx).getClusterManager() : null;
+    if (!(clusterManager instanceof HazelcastClusterManager)) {
+      LOGGER.warn("the cluster cache requires a Hazelcast cluster, disabling it");
+      return new ClusterCache(vertx, Optional.empty());
+    }
+    final HazelcastInstance hazelcast =
+        ((HazelcastClusterManager) clusterManager).getHazelcastInstance();
+    final MapConfig mapConfig = hazelcast.getConfig().findMapConfig(MAP_NAME);
+    if (DEFAULT_MAP_CONFIG.equals(mapConfig.getName())) {
+      throw new IllegalStateException("the cluster cache requires the " + MAP_NAME +
+          " map to be configured by the cluster configuration");
+    }
+    return new ClusterCache(vertx, Optional.of(hazelcast.getMap(MAP_NAME)));
+  }
+
+  /**
+   * Looks up the URL of the specified identifier. The handler is called on the context of the
+   * caller, and a failed lookup is handled as a miss.
+   *
+   * @param id      the identifier of the url
+   * @param handler the handler to be called with the cached url, if present
+   */
+  void get(final long id, final Handler<AsyncResult<Optional<String>>> handler) {
+    if (!map.isPresent()) {
+      handler.handle(Future.succeededFuture(Optional.empty()));
+      return;
+    }
+
+    final Context context = vertx.getOrCreateContext();
+    ((ICompletableFuture<String>) map.get().getAsync(id)).andThen(
+        new ExecutionCallback<String>() {
+          @Override
+          public void onResponse(final String url) {
+            context.runOnContext(v -> {
+              if (url == null) {
+                misses.increment();
+              } else {
+                hits.increment();
+              }
+              handler.handle(Future.succeededFuture(Optional.ofNullable(url)));
+            });
+          }
+
+          @Override
+          public void onFailure(final Throwable cause) {
+            LOGGER.debug("unable to look up the cluster cache", cause);
+            context.runOnContext(v -> {
+              misses.increment();
+              handler.handle(Future.succeededFuture(Optional.empty()));
+            });
+          }
+        });
+  }
+
+  /**
+   * Caches the specified identifier to URL mapping, in the background
+   *
+   * @param id  the identifier of the url
+   * @param url the url
+   */
+  void put(final long id, final String url) {
+    map.ifPresent(m -> m.putAsync(id, url));
+  }
+
+  /**
+   * Checks whether or not the cache is enabled
+   *
+   * @return {@code true} if enabled, {@code false} otherwise
+   */
+  boolean enabled() {
+    return map.isPresent();
+  }
+
+  /**
+   * Returns the number of lookups that were served from the cache
+   *
+   * @return the hit count
+   */
+  long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that were not served from the cache
+   *
+   * @return the miss count
+   */
+  long misses() {
+    return misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("enabled=%b, hits=%d, misses=%d", enabled(), hits(), misses());
+  }
+}
@@ -0,0 +1,262 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.eventbus.Message;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * The http metrics: request latencies per route and status, event bus round trip times per
+ * address and the redirect caches and identifier filter statistics.
+ *
+ * @author David Silva
+ */
+final class HttpMetrics {
+
+  // the http metrics registry
+  private static final CollectorRegistry REGISTRY = new CollectorRegistry();
+
+  // the latency buckets, in seconds
+  private static final double[] LATENCY_BUCKETS = {
+      0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+      5, 10};
+
+  // the request latencies
+  private static final Histogram REQUESTS = Histogram.build()
+      .name("ushortx_http_request_seconds")
+      .help("the time taken to serve an http request, until the response body is written")
+      .labelNames("route", "status")
+      .buckets(LATENCY_BUCKETS)
+      .register(REGISTRY);
+  // the event bus round trip times
+  private static final Histogram EVENT_BUS_REQUESTS = Histogram.build()
+      .name("ushortx_eventbus_request_seconds")
+      .help("the time taken to obtain the reply of an event bus request")
+      .labelNames("address", "outcome")
+      .buckets(LATENCY_BUCKETS)
+      .register(REGISTRY);
+  // the requests coalesced into an in-flight request
+  private static final Counter COALESCED = Counter.build()
+      .name("ushortx_coalesced_requests_total")
+      .help("the number of requests served by an in-flight request of the same key")
+      .labelNames("operation")
+      .register(REGISTRY);
+
+  /**
+   * Wraps the specified route handler, recording the request latency once its response body
+   * is written
+   *
+   * @param route   the route name
+   * @param handler the route handler
+   * @return the timed route handler
+   */
+  static Handler<RoutingContext> timeRoute(final String route,
+      final Handler<RoutingContext> handler) {
+    return context -> {
+      final long start = System.nanoTime();
+      context.addBodyEndHandler(v -> observeRoute(route, context.response().getStatusCode(),
+          start));
+      handler.handle(context);
+    };
+  }
+
+  /**
+   * Records the latency of a request served by the specified route
+   *
+   * @param route  the route name
+   * @param status the response status code
+   * @param start  the request start time, in nanoseconds
+   */
+  static void observeRoute(final String route, final int status, final long start) {
+    REQUESTS.labels(route, String.valueOf(status)).observe(seconds(start));
+  }
+
+  /**
+   * Wraps the specified event bus reply handler, recording the round trip time from now on
+   *
+   * @param address the event bus address
+   * @param handler the reply handler
+   * @param <T>     the reply body type
+   * @return the timed reply handler
+   */
+  static <T> Handler<AsyncResult<Message<T>>> timeRequest(final String address,
+      final Handler<AsyncResult<Message<T>>> handler) {
+    final long start = System.nanoTime();
+    return result -> {
+      EVENT_BUS_REQUESTS.labels(address, result.succeeded() ? "success" : "failure")
+          .observe(seconds(start));
+      handler.handle(result);
+    };
+  }
+
+  /**
+   * Records a request coalesced into an in-flight request
+   *
+   * @param operation the operation name
+   */
+  static void coalesced(final String operation) {
+    COALESCED.labels(operation).inc();
+  }
+
+  /**
+   * Renders the http metrics, along with the statistics of the specified caches, filter and
+   * counters, in the prometheus text format
+   *
+   * @param cache        the redirect cache
+   * @param clusterCache the cluster-wide redirect cache
+   * @param idFilter     the allocated identifiers filter
+   * @param clicks       the redirect counters of the instances
+   * @return the rendered metrics
+   */
+  static String scrape(final UrlCache cache, final ClusterCache clusterCache,
+      final IdFilter idFilter, final List<ClickCounter> clicks) {
+    final List<Collector.MetricFamilySamples> samples =
+        Collections.list(REGISTRY.metricFamilySamples());
+    samples.add(new CounterMetricFamily("ushortx_cache_hits",
+        "the number of redirect cache hits", cache.hits()));
+    samples.add(new CounterMetricFamily("ushortx_cache_misses",
+        "the number of redirect cache misses", cache.misses()));
+    samples.add(new CounterMetricFamily("ushortx_cache_evictions",
+        "the number of redirect cache evictions", cache.evictions()));
+    samples.add(new CounterMetricFamily("ushortx_cluster_cache_hits",
+        "the number of cluster cache hits", clusterCache.hits()));
+    samples.add(new CounterMetricFamily("ushortx_cluster_cache_misses",
+        "the number of cluster cache misses", clusterCache.misses()));
+    samples.add(new GaugeMetricFamily("ushortx_id_filter_size",
+        "the number of identifiers within the identifier filter", idFilter.size()));
+    samples.add(new CounterMetricFamily("ushortx_id_filter_rejections",
+        "the number of lookups rejected by the identifier filter", idFilter.rejections()));
+    samples.add(new GaugeMetricFamily("ushortx_clicks_pending",
+        "the number of urls with clicks not flushed yet",
+        clicks.stream().mapToInt(ClickCounter::pendingSize).sum()));
+    samples.add(new CounterMetricFamily("ushortx_clicks_dropped",
+        "the number of clicks dropped after failed flushes",
+        clicks.stream().mapToLong(ClickCounter::dropped).sum()));
+
+    return write(samples);
+  }
+
+  /**
+   * Renders whether or not each persistence shard replied to the metrics request, in the
+   * prometheus text format
+   *
+   * @param up whether or not each shard replied, by shard index
+   * @return the rendered metrics
+   */
+  static String scrapeShards(final boolean[] up) {
+    final GaugeMetricFamily family = new GaugeMetricFamily("ushortx_persistence_up",
+        "whether or not the persistence shard replied to the last metrics request",
+        Collections.singletonList("shard"));
+    for (int shard = 0; shard < up.length; shard++) {
+      family.addMetric(Collections.singletonList(String.valueOf(shard)), up[shard] ? 1 : 0);
+    }
+    return write(Arrays.<Collector.MetricFamilySamples>asList(family));
+  }
+
+  /**
+   * Renders the specified samples in the prometheus text format
+   *
+   * @param samples the samples to render
+   * @return the rendered samples
+   */
+  private static String write(final List<Collector.MetricFamilySamples> samples) {
+    final StringWriter writer = new StringWriter();
+    try {
+      TextFormat.write004(writer, Collections.enumeration(samples));
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Merges the specified metrics, in the prometheus text format, into a single exposition where
+   * each metric family is described once and followed by the samples of every merged text
+   *
+   * @param scrapes the rendered metrics to merge
+   * @return the merged metrics
+   */
+  static String merge(final Collection<String> scrapes) {
+    final Map<String, StringBuilder> families = new LinkedHashMap<>();
+    for (final String scrape : scrapes) {
+      String name = null;
+      StringBuilder family = null;
+      boolean described = false;
+      for (final String line : scrape.split("\n")) {
+        if (line.startsWith("# HELP ") || line.startsWith("# TYPE ")) {
+          // the help and type of a family are kept from the first text describing it
+          final String lineName = line.split(" ", 4)[2];
+          if (!lineName.equals(name)) {
+            name = lineName;
+            described = families.containsKey(name);
+            family = families.computeIfAbsent(name, n -> new StringBuilder());
+          }
+          if (described) {
+            continue;
+          }
+        }
+        if (family != null && !line.isEmpty()) {
+          family.append(line).append('\n');
+        }
+      }
+    }
+
+    final StringBuilder merged = new StringBuilder();
+    families.values().forEach(merged::append);
+    return merged.toString();
+  }
+
+  /**
+   * Returns the elapsed time since the specified start, in seconds
+   *
+   * @param start the start time, in nanoseconds
+   * @return the elapsed seconds
+   */
+  private static double seconds(final long start) {
+    return (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+}
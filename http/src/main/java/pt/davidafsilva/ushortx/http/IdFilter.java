@@ -0,0 +1,310 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * An existence filter of the allocated url identifiers, used to answer the lookups of
+ * identifiers that were never allocated (e.g. enumerated by scanners) without going to the
+ * persistence.
+ *
+ * Since the identifiers are allocated from a sequence, hence dense, the filter is an exact
+ * bitmap split in fixed-size pages that are only allocated once they hold an identifier. Until
+ * the filter is loaded, and for identifiers beyond its capacity, every identifier might exist.
+ *
+ * The new identifiers are learned from the {@code ushortx-persistence-saved} publications, which
+ * only the persistence verticles make. Hence, the identifiers beyond the highest one loaded from
+ * their shard might exist as well (e.g. written by {@code UrlTool import}), and the filter is
+ * refreshed periodically from that identifier onwards. The identifiers written by other means
+ * below it (e.g. the explicit identifiers of an import) are only learned on a restart.
+ *
+ * The filter is thread-safe, since it is shared by the verticle instances of the same vertx
+ * instance (see {@link SharedState}), although it shall be loaded from a single context. Each
+ * instance tracks the new identifiers on its own context, so that the filter is kept up-to-date
+ * for as long as any instance is running.
+ *
+ * @author David Silva
+ */
+final class IdFilter {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdFilter.class);
+
+  // the default number of identifiers that the filter is able to track
+  static final long DEFAULT_CAPACITY = 1 << 26;
+  // the maximum number of identifiers that the filter is able to track
+  private static final long MAX_CAPACITY = 1L << 36;
+  // the number of identifiers requested at once while loading the filter
+  static final int LOAD_PAGE_SIZE = 10_000;
+  // the delay, in milliseconds, before retrying a failed load
+  private static final long LOAD_RETRY_DELAY = 1_000;
+
+  // the number of identifiers per page (bits), as a power of two
+  private static final int PAGE_SHIFT = 16;
+  // the number of words per page
+  private static final int PAGE_WORDS = (1 << PAGE_SHIFT) / Long.SIZE;
+
+  // the number of identifiers that the filter is able to track
+  private final long capacity;
+  // the time, in milliseconds, between the refreshes of the loaded filter, 0 disables them
+  private final long refreshInterval;
+  // the bitmap pages
+  private final AtomicReferenceArray<AtomicLongArray> pages;
+
+  // whether or not the filter is loaded
+  private volatile boolean loaded;
+  // the highest identifier loaded from each shard, set before the filter is loaded
+  private AtomicLongArray loadedIds;
+  // the number of shards whose identifiers are still loading, only used by the loading context
+  private int loadingShards;
+  // whether or not a refresh is running, only used by the loading context
+  private boolean refreshing;
+  // the refresh timer identifier, -1 if not armed
+  private volatile long refreshTimer = -1;
+  // the number of identifiers within the filter
+  private final LongAdder size = new LongAdder();
+  // the number of lookups that were rejected by the filter
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * Creates a new filter able to track the identifiers up to the given capacity. A capacity of
+   * {@code 0} disables the filter.
+   *
+   * @param capacity        the number of identifiers that the filter is able to track
+   * @param refreshInterval the time, in milliseconds, between the refreshes of the loaded
+   *                        filter, {@code 0} disables them
+   */
+  IdFilter(final long capacity, final long refreshInterval) {
+    this.capacity = Math.max(0, Math.min(capacity, MAX_CAPACITY));
+    this.refreshInterval = refreshInterval;
+    pages = new AtomicReferenceArray<>(
+        (int) ((this.capacity + (1 << PAGE_SHIFT) - 1) >>> PAGE_SHIFT));
+  }
+
+  /**
+   * Creates a new filter based on the specified verticle configuration
+   *
+   * @param config the verticle configuration
+   * @return the created filter
+   */
+  static IdFilter fromConfig(final JsonObject config) {
+    return new IdFilter(config.getLong("id_filter_capacity", DEFAULT_CAPACITY),
+        config.getLong("id_filter_refresh_interval", 60_000L));
+  }
+
+  /**
+   * Keeps the filter up-to-date with the identifiers of each new url, on the context of the
+   * caller, until the returned consumer is unregistered (or the calling verticle undeployed)
+   *
+   * @param vertx the vertx instance
+   * @return the registered consumer
+   */
+  MessageConsumer<Long> track(final Vertx vertx) {
+    return vertx.eventBus().consumer("ushortx-persistence-saved",
+        message -> add(message.body()));
+  }
+
+  /**
+   * Loads the filter with the allocated identifiers, which are requested through the event bus
+   * from every persistence shard. The new identifiers shall be tracked (see {@link #track(Vertx)})
+   * before the replies are handled. Once loaded, the filter is refreshed periodically, on the
+   * calling context, until closed.
+   *
+   * @param vertx  the vertx instance
+   * @param shards the persistence shards
+   */
+  void load(final Vertx vertx, final PersistenceShards shards) {
+    if (capacity == 0) {
+      return;
+    }
+    final List<String> addresses = shards.all("ushortx-persistence-ids");
+    loadedIds = new AtomicLongArray(addresses.size());
+    loadingShards = addresses.size();
+    for (int shard = 0; shard < addresses.size(); shard++) {
+      loadedIds.set(shard, -1);
+      load(vertx, addresses.get(shard), shard, 0, v -> {
+        if (--loadingShards > 0) {
+          return;
+        }
+        loaded = true;
+        LOGGER.info("identifier filter loaded: " + this);
+        if (refreshInterval > 0) {
+          refreshTimer = vertx.setPeriodic(refreshInterval, timer -> refresh(vertx, addresses));
+        }
+      });
+    }
+  }
+
+  /**
+   * Loads the identifiers of every shard beyond the highest one loaded from it, unless the
+   * previous refresh is still running
+   *
+   * @param vertx     the vertx instance
+   * @param addresses the identifiers address of each shard
+   */
+  private void refresh(final Vertx vertx, final List<String> addresses) {
+    if (refreshing) {
+      return;
+    }
+    refreshing = true;
+    final int[] pending = {addresses.size()};
+    for (int shard = 0; shard < addresses.size(); shard++) {
+      load(vertx, addresses.get(shard), shard, loadedIds.get(shard) + 1, v -> {
+        if (--pending[0] == 0) {
+          refreshing = false;
+        }
+      });
+    }
+  }
+
+  /**
+   * Loads the allocated identifiers of a shard starting at the specified one
+   *
+   * @param vertx       the vertx instance
+   * @param address     the identifiers address of the shard
+   * @param shard       the shard index
+   * @param from        the first identifier to load
+   * @param doneHandler the handler to be called once every identifier is loaded
+   */
+  private void load(final Vertx vertx, final String address, final int shard, final long from,
+      final Handler<Void> doneHandler) {
+    vertx.eventBus().send(address,
+        new JsonObject().put("from", from).put("limit", LOAD_PAGE_SIZE),
+        (AsyncResult<Message<JsonObject>> result) -> {
+          if (result.failed()) {
+            LOGGER.warn("unable to load the identifier filter, retrying..", result.cause());
+            vertx.setTimer(LOAD_RETRY_DELAY,
+                timer -> load(vertx, address, shard, from, doneHandler));
+            return;
+          }
+
+          final JsonArray ids = result.result().body().getJsonArray("ids");
+          long last = from - 1;
+          for (int i = 0; i < ids.size(); i++) {
+            last = ids.getLong(i);
+            add(last);
+          }
+          // the identifiers are only known up to the last one loaded
+          loadedIds.set(shard, Math.max(loadedIds.get(shard), last));
+          if (ids.size() == LOAD_PAGE_SIZE) {
+            load(vertx, address, shard, last + 1, doneHandler);
+          } else {
+            doneHandler.handle(null);
+          }
+        });
+  }
+
+  /**
+   * Adds the specified identifier to the filter
+   *
+   * @param id the identifier to add
+   */
+  void add(final long id) {
+    if (id < 0 || id >= capacity) {
+      return;
+    }
+    final int page = (int) (id >>> PAGE_SHIFT);
+    if (pages.get(page) == null) {
+      pages.compareAndSet(page, null, new AtomicLongArray(PAGE_WORDS));
+    }
+    final int word = (int) (id & ((1 << PAGE_SHIFT) - 1)) / Long.SIZE;
+    final long bit = 1L << id;
+    if ((pages.get(page).getAndAccumulate(word, bit, (bits, b) -> bits | b) & bit) == 0) {
+      size.increment();
+    }
+  }
+
+  /**
+   * Checks whether or not the specified identifier might have been allocated. A negative answer
+   * is definite.
+   *
+   * @param id the identifier to check
+   * @return {@code false} if the identifier was definitely not allocated, {@code true} otherwise
+   */
+  boolean mightContain(final long id) {
+    if (!loaded || id < 0 || id >= capacity ||
+        id > loadedIds.get((int) Math.floorMod(id, (long) loadedIds.length()))) {
+      return true;
+    }
+    final AtomicLongArray page = pages.get((int) (id >>> PAGE_SHIFT));
+    final boolean contained = page != null &&
+        (page.get((int) (id & ((1 << PAGE_SHIFT) - 1)) / Long.SIZE) & (1L << id)) != 0;
+    if (!contained) {
+      rejections.increment();
+    }
+    return contained;
+  }
+
+  /**
+   * Stops refreshing the filter
+   *
+   * @param vertx the vertx instance
+   */
+  void close(final Vertx vertx) {
+    if (refreshTimer != -1) {
+      vertx.cancelTimer(refreshTimer);
+      refreshTimer = -1;
+    }
+  }
+
+  /**
+   * Returns the number of identifiers within the filter
+   *
+   * @return the filter size
+   */
+  long size() {
+    return size.sum();
+  }
+
+  /**
+   * Returns the number of lookups that were rejected by the filter
+   *
+   * @return the rejection count
+   */
+  long rejections() {
+    return rejections.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("loaded=%b, size=%d, rejections=%d", loaded, size(), rejections());
+  }
+}
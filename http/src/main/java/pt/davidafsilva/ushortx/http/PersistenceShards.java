@@ -0,0 +1,113 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The event bus addresses of the persistence shards. The identifiers are split by modulus
+ * between the shards, hence each lookup is routed to the shard that owns its identifier, while
+ * each save is routed by the digest of the normalized url, so that the same url, in any of its
+ * equivalent spellings, is always deduplicated by the same shard. A single shard keeps the
+ * unqualified addresses.
+ *
+ * @author David Silva
+ */
+final class PersistenceShards {
+
+  // the number of shards
+  private final int count;
+
+  /**
+   * Creates the addresses of the specified number of shards
+   *
+   * @param count the number of shards
+   */
+  PersistenceShards(final int count) {
+    this.count = Math.max(1, count);
+  }
+
+  /**
+   * Creates the shard addresses based on the specified verticle configuration
+   *
+   * @param config the verticle configuration
+   * @return the created shard addresses
+   */
+  static PersistenceShards fromConfig(final JsonObject config) {
+    return new PersistenceShards(config.getInteger("persistence_shards", 1));
+  }
+
+  /**
+   * Returns the address of the specified operation at the shard that owns the given identifier
+   *
+   * @param address the unqualified operation address
+   * @param id      the url identifier
+   * @return the shard address
+   */
+  String byId(final String address, final long id) {
+    return qualify(address, (int) Math.floorMod(id, (long) count));
+  }
+
+  /**
+   * Returns the address of the specified operation at the shard that deduplicates the given url
+   *
+   * @param address the unqualified operation address
+   * @param url     the url
+   * @return the shard address
+   */
+  String byUrl(final String address, final String url) {
+    return qualify(address, Urls.shard(url, count));
+  }
+
+  /**
+   * Returns the address of the specified operation at every shard
+   *
+   * @param address the unqualified operation address
+   * @return the shard addresses
+   */
+  List<String> all(final String address) {
+    return IntStream.range(0, count)
+        .mapToObj(shard -> qualify(address, shard))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Qualifies the specified address with the given shard index
+   *
+   * @param address the unqualified address
+   * @param shard   the shard index
+   * @return the qualified address
+   */
+  private String qualify(final String address, final int shard) {
+    return count == 1 ? address : address + "-" + shard;
+  }
+}
@@ -28,18 +28,38 @@ package pt.davidafsilva.ushortx.http;
 
 import org.apache.commons.validator.routines.UrlValidator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
+import pt.davidafsilva.ushortx.protocol.Failure;
+import pt.davidafsilva.ushortx.protocol.FindUrlRequest;
+import pt.davidafsilva.ushortx.protocol.Hash;
+import pt.davidafsilva.ushortx.protocol.HashCodec;
+import pt.davidafsilva.ushortx.protocol.Protocol;
+import pt.davidafsilva.ushortx.protocol.SaveUrlRequest;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
 
 /**
  * The REST API for our ushortx service
@@ -54,86 +74,300 @@ public class RestVerticle extends AbstractVerticle {
   // the URL validator
   private static final UrlValidator URL_VALIDATOR = new NoProtocolUrlValidator();
 
-  // the default salt value - should not be used!!!
-  private static final String DEFAULT_SALT = "Please change me!! I'll make you a sandwich!";
-
   // the url format
   private static final String URL_REDIRECT_FORMAT = "http://%s/%s";
 
   // the http server
   private HttpServer server;
 
+  // the hash salt
+  private String salt;
+
+  // the hash codec of the salt, used by the redirects
+  private HashCodec codec;
+
+  // the state shared with the other instances of the same vertx instance
+  private SharedState state;
+
+  // the redirect cache
+  private UrlCache cache;
+
+  // the cluster-wide redirect cache, behind the local one
+  private ClusterCache clusterCache;
+
+  // the allocated identifiers filter
+  private IdFilter idFilter;
+
+  // the consumer that tracks the new identifiers at the identifier filter
+  private MessageConsumer<Long> idTracker;
+
+  // the persistence shard addresses
+  private PersistenceShards shards;
+
+  // the redirect counter
+  private ClickCounter clicks;
+
+  // the lookups in flight, by identifier, with the handlers waiting for each of them
+  private final Map<Long, List<Handler<AsyncResult<String>>>> inFlightLookups = new HashMap<>();
+
   @Override
-  public void start() throws Exception {
+  public void start(final Future<Void> startFuture) throws Exception {
+    // resolve the hash codec once
+    salt = config().getString("salt", Hash.DEFAULT_SALT);
+    codec = Hash.codec(salt);
+
+    // resolve the persistence shards and register the protocol codecs
+    shards = PersistenceShards.fromConfig(config());
+    Protocol.registerCodecs(vertx.eventBus());
+
+    // acquire the redirect caches and the identifiers filter, loaded by the first instance, and
+    // track the new identifiers on this instance, before any of the load replies is handled
+    state = SharedState.acquire(vertx, config(), shards);
+    cache = state.cache();
+    clusterCache = state.clusterCache();
+    idFilter = state.idFilter();
+    idTracker = idFilter.track(vertx);
+
+    // create the redirect counter, flushed to the persistence shards
+    clicks = ClickCounter.fromConfig(vertx, config(), shards);
+    state.register(clicks);
+
+    // wait for the redirect cache to be prewarmed before listening
+    state.whenLoaded(vertx, loaded -> listen(startFuture));
+  }
+
+  /**
+   * Creates the routing configuration and starts the http server
+   *
+   * @param startFuture the future to be completed once the server is listening
+   */
+  private void listen(final Future<Void> startFuture) {
     // create the routing configuration
     final Router router = Router.router(vertx);
 
+    // POST /s - streamed bulk shorten, registered before the body handler
+    final int bulkMaxInFlight = config().getInteger("bulk_max_in_flight", 32);
+    router.post("/s").handler(HttpMetrics.timeRoute("bulk_shorten",
+        context -> bulkShortenUrlRequest(context, bulkMaxInFlight)));
     // default handler
     router.route().handler(BodyHandler.create());
-    // GET /<hash>
-    router.get("/:hash").handler(this::redirectUrlRequest);
+    // GET /metrics - registered before the hash lookup, which would otherwise match it
+    router.get("/metrics").handler(this::metricsRequest);
+    // GET /stats/<hash>
+    router.get("/stats/:hash").handler(HttpMetrics.timeRoute("stats", this::statsRequest));
     // POST /s/<url>
-    router.post("/s/:url").handler(this::shortenUrlRequest);
+    router.post("/s/:url").handler(HttpMetrics.timeRoute("shorten", this::shortenUrlRequest));
 
     // create the actual http server
     final int port = config().getInteger("http_port", 8080);
     server = vertx.createHttpServer()
-        .requestHandler(router::accept)
+        .requestHandler(request -> {
+          // GET /<hash> - the redirects bypass the router and the body handler
+          if (isRedirect(request)) {
+            redirectUrlRequest(request);
+          } else {
+            router.accept(request);
+          }
+        })
         .listen(port, deployedHandler -> {
           if (deployedHandler.succeeded()) {
             LOGGER.info(String.format("http server listening at port %s", port));
+            startFuture.complete();
           } else {
-            throw new IllegalStateException("unable to start http server", deployedHandler.cause());
+            LOGGER.error("unable to start http server", deployedHandler.cause());
+            startFuture.fail(deployedHandler.cause());
           }
         });
   }
 
   /**
-   * Redirects to the actual URL of the specified hash inside the GET request
+   * Checks whether or not the specified request is a redirect request, i.e. a single path
+   * segment GET other than the metrics
    *
-   * @param context the routing context of the request
+   * @param request the http request
+   * @return {@code true} if a redirect request, {@code false} otherwise
    */
-  private void redirectUrlRequest(final RoutingContext context) {
-    // extract the hash
-    final String hash = context.request().getParam("hash");
-    LOGGER.info("redirecting request for " + hash);
-    // basic hash validation
-    if (hash == null || hash.isEmpty()) {
-      context.response().setStatusCode(400).end();
+  private static boolean isRedirect(final HttpServerRequest request) {
+    final String path = request.path();
+    return request.method() == HttpMethod.GET && path.length() > 1
+        && path.indexOf('/', 1) < 0 && !path.equals("/metrics");
+  }
+
+  /**
+   * Redirects to the actual URL of the hash at the path of the GET request
+   *
+   * @param request the http request
+   */
+  private void redirectUrlRequest(final HttpServerRequest request) {
+    final long start = System.nanoTime();
+    final HttpServerResponse response = request.response();
+    response.bodyEndHandler(v -> HttpMetrics.observeRoute("redirect", response.getStatusCode(),
+        start));
+
+    // extract and reverse the hash
+    final String hash = request.path().substring(1);
+    final long id = codec.decode(hash);
+    if (id < 0) {
+      // fail with a 404
+      response.setStatusCode(404).end();
       return;
     }
 
-    // reverse the hash
-    final Optional<Long> id = Hash.reverse(config().getString("salt", DEFAULT_SALT), hash);
-    if (!id.isPresent()) {
-      // fail with a 404
-      context.response().setStatusCode(404).end();
+    // check the cache before going to the persistence
+    final Optional<String> cachedUrl = cache.get(id);
+    if (cachedUrl.isPresent()) {
+      clicks.click(id);
+      response.setStatusCode(302)
+          .putHeader(HttpHeaders.LOCATION, cachedUrl.get())
+          .end();
+      return;
+    }
+
+    // the identifier was never allocated, fail with a 404 right away
+    if (!idFilter.mightContain(id)) {
+      response.setStatusCode(404).end();
       return;
     }
 
     // query the persistence for the hash
-    LOGGER.debug("sending url lookup message for " + hash);
-    vertx.eventBus().send("ushortx-persistence-findById",
-        // the request data
-        new JsonObject().put("id", id.get()),
-        // the result callback
-        (AsyncResult<Message<JsonObject>> result) -> {
-          if (result.succeeded()) {
-            // extract the json data
-            final JsonObject json = result.result().body();
-            LOGGER.debug("url for " + hash + " = " + json.getString("url"));
-
-            // redirect to the url
-            context.response()
-                .setStatusCode(302)
-                .putHeader("Location", json.getString("url"))
-                .end();
-          } else {
-            LOGGER.error("unable to obtain url for hash " + hash, result.cause());
-            // fail with a 404 - assume bad hash
-            context.response().setStatusCode(404).end();
+    lookupUrl(id, result -> {
+      if (result.succeeded()) {
+        clicks.click(id);
+        // redirect to the url
+        response.setStatusCode(302)
+            .putHeader(HttpHeaders.LOCATION, result.result())
+            .end();
+      } else {
+        final Failure failure = Failure.of(result.cause());
+        if (failure == Failure.NOT_FOUND || failure == Failure.INVALID_REQUEST) {
+          // unknown hashes are expected (e.g. scanners), hence cheap to log
+          if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("no url for hash " + hash + ": " + failure);
           }
-        });
+        } else {
+          LOGGER.error("unable to obtain url for hash " + hash + ": " + failure, result.cause());
+        }
+        // invalid identifiers are just unknown hashes
+        fail(response, failure == Failure.INVALID_REQUEST ? Failure.NOT_FOUND : failure);
+      }
+    });
+  }
+
+  /**
+   * Looks up the url of the specified identifier at the cluster cache, and then at the
+   * persistence, caching it. The concurrent lookups of the same identifier share the same
+   * request.
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the url
+   */
+  private void lookupUrl(final long id, final Handler<AsyncResult<String>> handler) {
+    final List<Handler<AsyncResult<String>>> waiting = inFlightLookups.get(id);
+    if (waiting != null) {
+      HttpMetrics.coalesced("lookup");
+      waiting.add(handler);
+      return;
+    }
+    inFlightLookups.put(id, new ArrayList<>(Collections.singletonList(handler)));
+
+    clusterCache.get(id, cached -> {
+      if (cached.result().isPresent()) {
+        LOGGER.debug("cluster cached url for " + id + " = " + cached.result().get());
+        cache.put(id, cached.result().get());
+        completeLookup(id, Future.succeededFuture(cached.result().get()));
+        return;
+      }
+
+      LOGGER.debug("sending url lookup message for " + id);
+      vertx.eventBus().send(shards.byId("ushortx-persistence-findById", id),
+          // the request data
+          new FindUrlRequest(id),
+          // the result callback
+          HttpMetrics.timeRequest("ushortx-persistence-findById",
+              (AsyncResult<Message<UrlReply>> result) -> {
+                if (result.succeeded()) {
+                  // the mapping never changes, cache it
+                  final String url = result.result().body().url();
+                  cache.put(id, url);
+                  clusterCache.put(id, url);
+                  completeLookup(id, Future.succeededFuture(url));
+                } else {
+                  completeLookup(id, Future.failedFuture(result.cause()));
+                }
+              }));
+    });
+  }
+
+  /**
+   * Completes the handlers waiting for the in-flight lookup of the specified identifier
+   *
+   * @param id  the url identifier
+   * @param url the lookup result
+   */
+  private void completeLookup(final long id, final AsyncResult<String> url) {
+    inFlightLookups.remove(id).forEach(waiter -> waiter.handle(url));
+  }
+
+  /**
+   * Replies with the redirect count of the specified hash inside the GET request, which adds
+   * the clicks of this instance that are not flushed yet
+   *
+   * @param context the routing context of the request
+   */
+  private void statsRequest(final RoutingContext context) {
+    // extract and reverse the hash
+    final String hash = context.request().getParam("hash");
+    final Optional<Long> id = Hash.reverse(salt, hash);
+    if (!id.isPresent() || !idFilter.mightContain(id.get())) {
+      context.response().setStatusCode(404).end();
+      return;
+    }
+
+    // query the persistence for the flushed clicks
+    vertx.eventBus().send(shards.byId("ushortx-persistence-findClicks", id.get()), id.get(),
+        HttpMetrics.timeRequest("ushortx-persistence-findClicks",
+            (AsyncResult<Message<Long>> result) -> {
+              if (result.succeeded()) {
+                // along with the clicks not flushed yet by any instance
+                pendingClicks(id.get(), pendingClicks -> {
+                  final String jsonResponse = new JsonObject()
+                      .put("hash", hash)
+                      .put("clicks", result.result().body() + pendingClicks)
+                      .encode();
+                  context.response().setStatusCode(200)
+                      .putHeader("Content-Type", "application/json")
+                      .end(jsonResponse);
+                });
+              } else {
+                // invalid identifiers are just unknown hashes
+                final Failure failure = Failure.of(result.cause());
+                fail(context.response(),
+                    failure == Failure.INVALID_REQUEST ? Failure.NOT_FOUND : failure);
+              }
+            }));
+  }
+
+  /**
+   * Sums the clicks of the specified identifier that are not flushed yet by the counters of
+   * every instance
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the pending clicks
+   */
+  private void pendingClicks(final long id, final Handler<Long> handler) {
+    final List<ClickCounter> counters = new ArrayList<>(state.clickCounters());
+    if (counters.isEmpty()) {
+      handler.handle(0L);
+      return;
+    }
+    final long[] sum = {0};
+    final int[] remaining = {counters.size()};
+    counters.forEach(counter -> counter.pending(id, clicks -> {
+      sum[0] += clicks;
+      if (--remaining[0] == 0) {
+        handler.handle(sum[0]);
+      }
+    }));
   }
 
   /**
@@ -143,47 +377,169 @@ public class RestVerticle extends AbstractVerticle {
    */
   private void shortenUrlRequest(final RoutingContext context) {
     // extract the url
-    final String url = protocolify(context.request().getParam("url"));
-    LOGGER.info("shorten request for " + url);
+    final String rawUrl = context.request().getParam("url");
+    LOGGER.info("shorten request for " + rawUrl);
     // url validation
-    if (url == null || !URL_VALIDATOR.isValid(url)) {
+    final Optional<String> url = validUrl(rawUrl);
+    if (!url.isPresent()) {
       context.response().setStatusCode(400).end();
       return;
     }
 
     // send the request or fail the request
+    final String host = context.request().localAddress().toString();
+    shortenUrl(url.get(), host, result -> {
+      if (result.succeeded()) {
+        // write the response
+        final String jsonResponse = new JsonObject()
+            .put("original", url.get())
+            .put("shortened", result.result())
+            .encode();
+        context.response().setStatusCode(200)
+            .putHeader("Content-Type", "application/json")
+            .end(jsonResponse);
+      } else {
+        // fail with the status of the persistence failure
+        fail(context.response(), Failure.of(result.cause()));
+      }
+    });
+  }
+
+  /**
+   * Shortens the urls streamed inside the POST request body, either newline-delimited or as a
+   * json array, streaming back the results as newline-delimited json.
+   *
+   * @param context     the routing context of the request
+   * @param maxInFlight the maximum number of outstanding save requests
+   */
+  private void bulkShortenUrlRequest(final RoutingContext context, final int maxInFlight) {
+    LOGGER.info("bulk shorten request");
+    final String host = context.request().localAddress().toString();
+    new BulkShortenRequest(context.request(), maxInFlight, this::validUrl,
+        (url, handler) -> shortenUrl(url, host, handler)).start();
+  }
+
+  /**
+   * Saves the specified (valid) url and generates its shortened url
+   *
+   * @param url     the url to shorten
+   * @param host    the host of the shortened url
+   * @param handler the handler to be called with the shortened url
+   */
+  private void shortenUrl(final String url, final String host,
+      final Handler<AsyncResult<String>> handler) {
     LOGGER.debug("sending url save message for " + url);
-    vertx.eventBus().send("ushortx-persistence-save",
+    vertx.eventBus().send(shards.byUrl("ushortx-persistence-save", url),
         // the request data
-        new JsonObject().put("url", url),
+        new SaveUrlRequest(url),
         // the result callback
-        (AsyncResult<Message<JsonObject>> result) -> {
-          if (result.succeeded()) {
-            // extract the json data
-            final JsonObject json = result.result().body();
-            LOGGER.debug(url + " -> " + json);
-
-            // get the id
-            final long id = json.getLong("id");
-
-            // generate an hash for the identifier
-            final String hash = Hash.generate(config().getString("salt", DEFAULT_SALT), id);
-
-            // write the response
-            final String jsonResponse = new JsonObject()
-                .put("original", url)
-                .put("shortened", String.format(URL_REDIRECT_FORMAT,
-                    context.request().localAddress().toString(), hash))
-                .encode();
-            context.response().setStatusCode(200)
-                .putHeader("Content-Type", "application/json")
-                .end(jsonResponse);
-          } else {
-            LOGGER.error("unable to save url", result.cause());
-            // fail with an internal error
-            context.response().setStatusCode(500).end();
-          }
-        });
+        HttpMetrics.timeRequest("ushortx-persistence-save",
+            (AsyncResult<Message<UrlReply>> result) -> {
+              if (result.succeeded()) {
+                // extract the reply data
+                final UrlReply reply = result.result().body();
+                LOGGER.debug(url + " -> " + reply);
+
+                // get the id, known by the identifier filter and the cluster cache from now on
+                final long id = reply.id();
+                idFilter.add(id);
+                clusterCache.put(id, reply.url());
+
+                // generate an hash for the identifier
+                final String hash = Hash.generate(salt, id);
+                handler.handle(Future.succeededFuture(
+                    String.format(URL_REDIRECT_FORMAT, host, hash)));
+              } else {
+                LOGGER.error("unable to save url", result.cause());
+                handler.handle(Future.failedFuture(result.cause()));
+              }
+            }));
+  }
+
+  /**
+   * Renders the http metrics along with the persistence metrics of every shard, which are
+   * requested through the event bus, in the prometheus text format. The shards deployed on the
+   * same node share their metrics, hence those are rendered once per node. The metrics of the
+   * shards that do not reply within the metrics timeout are left out, which is exposed by the
+   * {@code ushortx_persistence_up} gauge of each shard.
+   *
+   * @param context the routing context of the request
+   */
+  private void metricsRequest(final RoutingContext context) {
+    final String httpMetrics = HttpMetrics.scrape(cache, clusterCache, idFilter,
+        state.clickCounters());
+    final List<String> addresses = shards.all("ushortx-persistence-metrics");
+    final DeliveryOptions options = new DeliveryOptions()
+        .setSendTimeout(config().getLong("metrics_timeout", 2_000L));
+    final Map<String, String> nodeMetrics = new HashMap<>();
+    final boolean[] up = new boolean[addresses.size()];
+    final int[] pending = {addresses.size()};
+    for (int shard = 0; shard < addresses.size(); shard++) {
+      final int shardIndex = shard;
+      vertx.eventBus().send(addresses.get(shard), null, options,
+          (AsyncResult<Message<JsonObject>> result) -> {
+            if (result.succeeded()) {
+              final JsonObject reply = result.result().body();
+              nodeMetrics.putIfAbsent(reply.getString("node"), reply.getString("metrics"));
+              up[shardIndex] = true;
+            } else {
+              LOGGER.warn("unable to scrape the metrics of persistence shard " + shardIndex +
+                  ": " + result.cause().getMessage());
+            }
+            if (--pending[0] == 0) {
+              context.response().setStatusCode(200)
+                  .putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                  .end(httpMetrics + HttpMetrics.scrapeShards(up) +
+                      HttpMetrics.merge(nodeMetrics.values()));
+            }
+          });
+    }
+  }
+
+  /**
+   * Ends the request with the response status of the specified persistence failure. An
+   * overloaded persistence is replied with a {@code Retry-After} header.
+   *
+   * @param response the response of the request
+   * @param failure  the persistence failure
+   */
+  private void fail(final HttpServerResponse response, final Failure failure) {
+    if (failure == Failure.OVERLOADED) {
+      response.putHeader("Retry-After", String.valueOf(config().getInteger("retry_after", 1)));
+    }
+    response.setStatusCode(statusCode(failure)).end();
+  }
+
+  /**
+   * Returns the response status code of the specified persistence failure
+   *
+   * @param failure the persistence failure
+   * @return the status code
+   */
+  private static int statusCode(final Failure failure) {
+    switch (failure) {
+      case NOT_FOUND:
+        return 404;
+      case INVALID_REQUEST:
+        return 400;
+      case UNAVAILABLE:
+      case OVERLOADED:
+        return 503;
+      default:
+        return 500;
+    }
+  }
+
+  /**
+   * Validates the specified url, after prepending the protocol prefix if required
+   *
+   * @param url the url to validate
+   * @return the protocolified url, if valid
+   */
+  private Optional<String> validUrl(final String url) {
+    final String protocolified = protocolify(url);
+    return protocolified == null || !URL_VALIDATOR.isValid(protocolified) ? Optional.empty()
+        : Optional.of(protocolified);
   }
 
   /**
@@ -198,8 +554,16 @@ public class RestVerticle extends AbstractVerticle {
   }
 
   @Override
-  public void stop() throws Exception {
-    // stop the server
+  public void stop(final Future<Void> stopFuture) throws Exception {
+    // stop the server, flush the pending clicks and release the shared state, the last
+    // instance snapshots the redirect cache
     server.close();
+    clicks.close();
+    idTracker.unregister();
+    state.unregister(clicks);
+    LOGGER.info("redirect cache statistics: " + cache);
+    LOGGER.info("cluster cache statistics: " + clusterCache);
+    LOGGER.info("identifier filter statistics: " + idFilter);
+    state.release(vertx, released -> stopFuture.complete());
   }
 }
@@ -0,0 +1,221 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * The state shared by the {@link RestVerticle} instances of the same vertx instance: the redirect
+ * cache, the cluster cache, the identifier filter and its snapshot, which are created and loaded
+ * by the first instance to start and released by the last one to stop. Each instance keeps its
+ * own redirect counter, which is only registered here for the metrics.
+ *
+ * The shared state is kept at the vertx local shared data, hence it is thread-safe, along with
+ * each of its parts.
+ *
+ * @author David Silva
+ */
+final class SharedState implements Shareable {
+
+  // the local shared data map
+  private static final String MAP_NAME = "ushortx-http";
+  // the shared state key
+  private static final String STATE_KEY = "state";
+
+  // the redirect cache
+  private final UrlCache cache;
+  // the cluster-wide redirect cache
+  private final ClusterCache clusterCache;
+  // the allocated identifiers filter
+  private final IdFilter idFilter;
+  // the redirect cache snapshot
+  private final CacheSnapshot snapshot;
+  // the redirect counters of the instances
+  private final List<ClickCounter> clickCounters = new CopyOnWriteArrayList<>();
+
+  // the number of instances using the state, guarded by the class lock
+  private int references;
+  // whether or not the redirect cache is loaded, guarded by this
+  private boolean loaded;
+  // the contexts and handlers waiting for the redirect cache to be loaded, guarded by this
+  private final List<Context> loadContexts = new ArrayList<>();
+  private final List<Handler<Void>> loadHandlers = new ArrayList<>();
+
+  /**
+   * Creates a new shared state based on the specified verticle configuration
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   */
+  private SharedState(final Vertx vertx, final JsonObject config) {
+    cache = UrlCache.fromConfig(config);
+    clusterCache = ClusterCache.fromConfig(vertx, config);
+    idFilter = IdFilter.fromConfig(config);
+    snapshot = CacheSnapshot.fromConfig(config);
+  }
+
+  /**
+   * Acquires the shared state of the specified vertx instance, creating and loading it from the
+   * persistence shards if this is the first instance to start
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @param shards the persistence shard addresses
+   * @return the shared state
+   */
+  static SharedState acquire(final Vertx vertx, final JsonObject config,
+      final PersistenceShards shards) {
+    synchronized (SharedState.class) {
+      final LocalMap<String, SharedState> map = vertx.sharedData().getLocalMap(MAP_NAME);
+      SharedState state = map.get(STATE_KEY);
+      if (state == null) {
+        state = new SharedState(vertx, config);
+        map.put(STATE_KEY, state);
+        state.idFilter.load(vertx, shards);
+        state.snapshot.load(vertx, state.cache, shards, state::cacheLoaded);
+      }
+      state.references++;
+      return state;
+    }
+  }
+
+  /**
+   * Releases the shared state of the specified vertx instance, saving the redirect cache
+   * snapshot if this is the last instance to stop
+   *
+   * @param vertx       the vertx instance
+   * @param doneHandler the handler to be called once released
+   */
+  void release(final Vertx vertx, final Handler<Void> doneHandler) {
+    synchronized (SharedState.class) {
+      if (--references > 0) {
+        doneHandler.handle(null);
+        return;
+      }
+      vertx.sharedData().getLocalMap(MAP_NAME).remove(STATE_KEY);
+    }
+    idFilter.close(vertx);
+    snapshot.save(vertx, cache, saved -> doneHandler.handle(null));
+  }
+
+  /**
+   * Calls the specified handler, on the context of the caller, once the redirect cache is loaded
+   *
+   * @param vertx         the vertx instance
+   * @param loadedHandler the handler to be called once loaded
+   */
+  void whenLoaded(final Vertx vertx, final Handler<Void> loadedHandler) {
+    final Context context = vertx.getOrCreateContext();
+    synchronized (this) {
+      if (!loaded) {
+        loadContexts.add(context);
+        loadHandlers.add(loadedHandler);
+        return;
+      }
+    }
+    context.runOnContext(loadedHandler);
+  }
+
+  /**
+   * Marks the redirect cache as loaded, calling the waiting handlers
+   *
+   * @param v nothing
+   */
+  private void cacheLoaded(final Void v) {
+    synchronized (this) {
+      loaded = true;
+    }
+    for (int i = 0; i < loadHandlers.size(); i++) {
+      loadContexts.get(i).runOnContext(loadHandlers.get(i));
+    }
+    loadContexts.clear();
+    loadHandlers.clear();
+  }
+
+  /**
+   * Registers the redirect counter of an instance, for the metrics
+   *
+   * @param clicks the redirect counter
+   */
+  void register(final ClickCounter clicks) {
+    clickCounters.add(clicks);
+  }
+
+  /**
+   * Unregisters the redirect counter of an instance
+   *
+   * @param clicks the redirect counter
+   */
+  void unregister(final ClickCounter clicks) {
+    clickCounters.remove(clicks);
+  }
+
+  /**
+   * Returns the redirect cache
+   *
+   * @return the redirect cache
+   */
+  UrlCache cache() {
+    return cache;
+  }
+
+  /**
+   * Returns the cluster-wide redirect cache
+   *
+   * @return the cluster cache
+   */
+  ClusterCache clusterCache() {
+    return clusterCache;
+  }
+
+  /**
+   * Returns the allocated identifiers filter
+   *
+   * @return the identifier filter
+   */
+  IdFilter idFilter() {
+    return idFilter;
+  }
+
+  /**
+   * Returns the redirect counters of the instances
+   *
+   * @return the redirect counters
+   */
+  List<ClickCounter> clickCounters() {
+    return clickCounters;
+  }
+}
@@ -0,0 +1,155 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A bounded, in-process identifier to URL cache that sits in front of the persistence lookups.
+ * The eviction policy is frequency-aware (W-TinyLFU, provided by {@link Caffeine}), which keeps
+ * the hot links resident even under scanning traffic.
+ *
+ * @author David Silva
+ */
+final class UrlCache {
+
+  // the default maximum number of entries
+  static final long DEFAULT_MAX_SIZE = 10_000;
+  // the default time to live of each entry, in seconds
+  static final long DEFAULT_TTL = 3_600;
+
+  // the underlying cache, if enabled
+  private final Optional<Cache<Long, String>> cache;
+
+  /**
+   * Creates a new cache with the given bounds. A maximum size of {@code 0} disables the cache.
+   *
+   * @param maxSize the maximum number of entries
+   * @param ttl     the time to live of each entry, in seconds
+   */
+  UrlCache(final long maxSize, final long ttl) {
+    cache = maxSize <= 0 ? Optional.empty() : Optional.of(Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+        .recordStats()
+        .build());
+  }
+
+  /**
+   * Creates a new cache based on the specified verticle configuration
+   *
+   * @param config the verticle configuration
+   * @return the created cache
+   */
+  static UrlCache fromConfig(final JsonObject config) {
+    return new UrlCache(
+        config.getLong("cache_size", DEFAULT_MAX_SIZE),
+        config.getLong("cache_ttl", DEFAULT_TTL));
+  }
+
+  /**
+   * Looks up the URL of the specified identifier
+   *
+   * @param id the identifier of the url
+   * @return the cached url, if present
+   */
+  Optional<String> get(final long id) {
+    return cache.map(c -> c.getIfPresent(id));
+  }
+
+  /**
+   * Caches the specified identifier to URL mapping
+   *
+   * @param id  the identifier of the url
+   * @param url the url
+   */
+  void put(final long id, final String url) {
+    cache.ifPresent(c -> c.put(id, url));
+  }
+
+  /**
+   * Returns the hottest cached mappings, by access frequency, hottest first
+   *
+   * @param limit the max. number of mappings
+   * @return the hottest mappings, by identifier
+   */
+  Map<Long, String> hottest(final int limit) {
+    return cache.flatMap(c -> c.policy().eviction())
+        .map(eviction -> eviction.hottest(limit))
+        .orElse(Collections.emptyMap());
+  }
+
+  /**
+   * Returns the number of lookups that were served from the cache
+   *
+   * @return the hit count
+   */
+  long hits() {
+    return stats().hitCount();
+  }
+
+  /**
+   * Returns the number of lookups that were not served from the cache
+   *
+   * @return the miss count
+   */
+  long misses() {
+    return stats().missCount();
+  }
+
+  /**
+   * Returns the number of entries that were evicted due to the size bound or expiration
+   *
+   * @return the eviction count
+   */
+  long evictions() {
+    return stats().evictionCount();
+  }
+
+  /**
+   * Returns the current statistics snapshot of the cache
+   *
+   * @return the statistics snapshot
+   */
+  private CacheStats stats() {
+    return cache.map(Cache::stats).orElse(CacheStats.empty());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("hits=%d, misses=%d, evictions=%d", hits(), misses(), evictions());
+  }
+}
@@ -0,0 +1,240 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+
+/**
+ * An incremental parser of url lists, fed with the request body chunks as they arrive.
+ * It supports either newline-delimited urls or a json array of url strings, and only keeps the
+ * bytes of the url being parsed in memory. Urls exceeding the maximum length are reported as
+ * {@link Optional#empty()}.
+ *
+ * @author David Silva
+ */
+final class UrlStreamParser implements Handler<Buffer> {
+
+  // the maximum length, in bytes, of each url
+  static final int MAX_URL_LENGTH = 8192;
+
+  // the json array parsing states
+  private enum State {
+    ARRAY_START, ARRAY_ELEMENT, STRING, STRING_ESCAPE, ARRAY_END
+  }
+
+  // whether or not the input is a json array
+  private final boolean json;
+  // the url handler
+  private final Handler<Optional<String>> urlHandler;
+  // the malformed input handler
+  private final Handler<Throwable> errorHandler;
+  // the bytes of the url being parsed
+  private final byte[] current = new byte[MAX_URL_LENGTH];
+
+  // the number of bytes of the url being parsed
+  private int length;
+  // whether or not the url being parsed exceeded the maximum length
+  private boolean overflow;
+  // the json array parsing state
+  private State state = State.ARRAY_START;
+  // whether or not the input was found to be malformed
+  private boolean failed;
+
+  /**
+   * Creates a new url stream parser
+   *
+   * @param json         whether the input is a json array or newline-delimited urls
+   * @param urlHandler   the handler called for each parsed url
+   * @param errorHandler the handler called whenever the input is malformed
+   */
+  UrlStreamParser(final boolean json, final Handler<Optional<String>> urlHandler,
+      final Handler<Throwable> errorHandler) {
+    this.json = json;
+    this.urlHandler = urlHandler;
+    this.errorHandler = errorHandler;
+  }
+
+  @Override
+  public void handle(final Buffer buffer) {
+    for (int i = 0; i < buffer.length() && !failed; i++) {
+      if (json) {
+        parseJson(buffer.getByte(i));
+      } else {
+        parseLine(buffer.getByte(i));
+      }
+    }
+  }
+
+  /**
+   * Signals the end of the input, emitting the last url if required
+   */
+  void end() {
+    if (failed) {
+      return;
+    }
+    if (!json) {
+      emitLine();
+    } else if (state != State.ARRAY_END) {
+      fail("unexpected end of json array");
+    }
+  }
+
+  /**
+   * Parses the next byte of newline-delimited input
+   *
+   * @param b the next byte
+   */
+  private void parseLine(final byte b) {
+    if (b == '\n') {
+      emitLine();
+    } else {
+      append(b);
+    }
+  }
+
+  /**
+   * Parses the next byte of json array input. Only ASCII bytes are inspected, so multi-byte
+   * characters are kept intact, even when split across buffers.
+   *
+   * @param b the next byte
+   */
+  private void parseJson(final byte b) {
+    switch (state) {
+      case ARRAY_START:
+        if (b == '[') {
+          state = State.ARRAY_ELEMENT;
+        } else if (!isWhitespace(b)) {
+          fail("expected a json array");
+        }
+        break;
+      case ARRAY_ELEMENT:
+        if (b == '"') {
+          state = State.STRING;
+        } else if (b == ']') {
+          state = State.ARRAY_END;
+        } else if (b != ',' && !isWhitespace(b)) {
+          fail("expected a json string");
+        }
+        break;
+      case STRING:
+        if (b == '"') {
+          emitJsonString();
+          state = State.ARRAY_ELEMENT;
+        } else {
+          append(b);
+          if (b == '\\') {
+            state = State.STRING_ESCAPE;
+          }
+        }
+        break;
+      case STRING_ESCAPE:
+        append(b);
+        state = State.STRING;
+        break;
+      case ARRAY_END:
+        if (!isWhitespace(b)) {
+          fail("unexpected content after json array");
+        }
+        break;
+    }
+  }
+
+  /**
+   * Appends the specified byte to the current url, tracking overflows
+   *
+   * @param b the byte to append
+   */
+  private void append(final byte b) {
+    if (length == current.length) {
+      overflow = true;
+    } else {
+      current[length++] = b;
+    }
+  }
+
+  /**
+   * Emits the current line as an url, ignoring blank lines
+   */
+  private void emitLine() {
+    final String line = new String(current, 0, length, StandardCharsets.UTF_8).trim();
+    if (!line.isEmpty() || overflow) {
+      urlHandler.handle(overflow ? Optional.empty() : Optional.of(line));
+    }
+    reset();
+  }
+
+  /**
+   * Emits the current json string as an url, unescaping it beforehand
+   */
+  private void emitJsonString() {
+    if (overflow) {
+      urlHandler.handle(Optional.empty());
+    } else {
+      final String raw = new String(current, 0, length, StandardCharsets.UTF_8);
+      try {
+        urlHandler.handle(Optional.of(Json.decodeValue('"' + raw + '"', String.class)));
+      } catch (final DecodeException e) {
+        urlHandler.handle(Optional.empty());
+      }
+    }
+    reset();
+  }
+
+  /**
+   * Resets the current url
+   */
+  private void reset() {
+    length = 0;
+    overflow = false;
+  }
+
+  /**
+   * Flags the input as malformed
+   *
+   * @param reason the reason
+   */
+  private void fail(final String reason) {
+    failed = true;
+    errorHandler.handle(new IllegalArgumentException(reason));
+  }
+
+  /**
+   * Checks if the specified byte is a json whitespace
+   *
+   * @param b the byte to check
+   * @return {@code true} if whitespace, {@code false} otherwise
+   */
+  private static boolean isWhitespace(final byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+}
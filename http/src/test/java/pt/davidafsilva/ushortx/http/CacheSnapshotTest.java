@@ -0,0 +1,175 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * The tests of the store epoch validation of the {@link CacheSnapshot}, against two persistence
+ * shards whose epochs are answered by the test
+ *
+ * @author David Silva
+ */
+public class CacheSnapshotTest {
+
+  // the persistence shards
+  private static final PersistenceShards SHARDS = new PersistenceShards(2);
+
+  // the snapshot directory
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  // the vertx instance
+  private Vertx vertx;
+  // the snapshot file
+  private Path path;
+  // the store epoch of each shard
+  private final long[] epochs = {7, 11};
+
+  @Before
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    path = folder.getRoot().toPath().resolve("cache.snapshot");
+    for (int shard = 0; shard < epochs.length; shard++) {
+      final int index = shard;
+      vertx.eventBus().<Object>consumer("ushortx-persistence-epoch-" + shard,
+          message -> message.reply(epochs[index]));
+      vertx.eventBus().<JsonObject>consumer("ushortx-persistence-recent-" + shard,
+          message -> message.reply(new JsonObject().put("urls", new JsonArray()
+              .add(new JsonObject().put("id", 100L + index).put("url", "http://recent.com")))));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  /**
+   * Loads a new cache from the snapshot
+   *
+   * @param snapshot the snapshot to load
+   * @return the loaded cache
+   * @throws Exception if the load times out
+   */
+  private UrlCache load(final CacheSnapshot snapshot) throws Exception {
+    final UrlCache cache = new UrlCache(100, 60);
+    final CompletableFuture<Void> loaded = new CompletableFuture<>();
+    vertx.runOnContext(v -> snapshot.load(vertx, cache, SHARDS, loaded::complete));
+    loaded.get(10, TimeUnit.SECONDS);
+    return cache;
+  }
+
+  /**
+   * Saves the specified cache to the snapshot
+   *
+   * @param snapshot the loaded snapshot
+   * @param cache    the cache to save
+   * @throws Exception if the save fails or times out
+   */
+  private void save(final CacheSnapshot snapshot, final UrlCache cache) throws Exception {
+    final CompletableFuture<Void> saved = new CompletableFuture<>();
+    vertx.runOnContext(v -> snapshot.save(vertx, cache, result -> {
+      if (result.succeeded()) {
+        saved.complete(null);
+      } else {
+        saved.completeExceptionally(result.cause());
+      }
+    }));
+    saved.get(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Writes a snapshot with a single mapping, taken from the current store epochs
+   *
+   * @throws Exception if the snapshot cannot be written
+   */
+  private void takeSnapshot() throws Exception {
+    final CacheSnapshot snapshot = new CacheSnapshot(Optional.of(path), 100, 0);
+    final UrlCache cache = load(snapshot);
+    cache.put(1L, "http://example.com");
+    save(snapshot, cache);
+  }
+
+  @Test
+  public void load_readsTheSnapshotOfTheSameStores() throws Exception {
+    takeSnapshot();
+    final UrlCache cache = load(new CacheSnapshot(Optional.of(path), 100, 0));
+    assertEquals(Optional.of("http://example.com"), cache.get(1L));
+  }
+
+  @Test
+  public void load_rejectsTheSnapshotOfOtherStores() throws Exception {
+    takeSnapshot();
+    // the store of the second shard was recreated from scratch
+    epochs[1] = 12;
+    final UrlCache cache = load(new CacheSnapshot(Optional.of(path), 100, 0));
+    assertEquals(Optional.empty(), cache.get(1L));
+  }
+
+  @Test
+  public void load_prewarmsTheRecentUrlsOnRejection() throws Exception {
+    takeSnapshot();
+    epochs[0] = 8;
+    final UrlCache cache = load(new CacheSnapshot(Optional.of(path), 100, 10));
+    assertEquals(Optional.empty(), cache.get(1L));
+    assertEquals(Optional.of("http://recent.com"), cache.get(100L));
+    assertEquals(Optional.of("http://recent.com"), cache.get(101L));
+  }
+
+  @Test
+  public void save_skipsWithoutTheEpochs() throws Exception {
+    // the epochs of a third shard are unavailable
+    final CacheSnapshot snapshot = new CacheSnapshot(Optional.of(path), 100, 0);
+    final UrlCache cache = new UrlCache(100, 60);
+    final CompletableFuture<Void> loaded = new CompletableFuture<>();
+    vertx.runOnContext(v -> snapshot.load(vertx, cache, new PersistenceShards(3),
+        loaded::complete));
+    loaded.get(10, TimeUnit.SECONDS);
+
+    cache.put(1L, "http://example.com");
+    save(snapshot, cache);
+    assertFalse(Files.exists(path));
+  }
+}
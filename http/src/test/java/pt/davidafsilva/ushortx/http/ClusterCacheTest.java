@@ -0,0 +1,149 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the {@link ClusterCache} resolution from the vertx cluster manager, against a
+ * single member Hazelcast cluster
+ *
+ * @author David Silva
+ */
+public class ClusterCacheTest {
+
+  // the cache configuration
+  private static final JsonObject CONFIG = new JsonObject().put("cluster_cache", true);
+
+  // the vertx instance
+  private Vertx vertx;
+
+  @After
+  public void tearDown() throws Exception {
+    if (vertx != null) {
+      final CompletableFuture<Void> closed = new CompletableFuture<>();
+      vertx.close(result -> closed.complete(null));
+      closed.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Starts a clustered vertx instance with the specified map configuration, if any
+   *
+   * @param mapName the name of the configured map, if any
+   * @return the clustered vertx instance
+   * @throws Exception if vertx cannot be started
+   */
+  private Vertx clustered(final Optional<String> mapName) throws Exception {
+    // a single member cluster, which does not look for other members nor joins the members of
+    // the previous tests, which may still be leaving
+    final Config config = new Config();
+    config.getGroupConfig().setName("ushortx-test-" + UUID.randomUUID());
+    config.setProperty("hazelcast.logging.type", "none");
+    config.setProperty("hazelcast.phone.home.enabled", "false");
+    final JoinConfig join = config.getNetworkConfig().getJoin();
+    join.getMulticastConfig().setEnabled(false);
+    join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+    config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+    mapName.ifPresent(name -> config.addMapConfig(new MapConfig(name)));
+
+    final CompletableFuture<Vertx> started = new CompletableFuture<>();
+    Vertx.clusteredVertx(new VertxOptions()
+        .setClusterHost("127.0.0.1")
+        .setClusterManager(new HazelcastClusterManager(config)), result -> {
+      if (result.succeeded()) {
+        started.complete(result.result());
+      } else {
+        started.completeExceptionally(result.cause());
+      }
+    });
+    vertx = started.get(60, TimeUnit.SECONDS);
+    return vertx;
+  }
+
+  @Test
+  public void fromConfig_disabled() {
+    vertx = Vertx.vertx();
+    assertFalse(ClusterCache.fromConfig(vertx, new JsonObject()).enabled());
+  }
+
+  @Test
+  public void fromConfig_notClustered() {
+    vertx = Vertx.vertx();
+    assertFalse(ClusterCache.fromConfig(vertx, CONFIG).enabled());
+  }
+
+  @Test
+  public void fromConfig_wildcardMapConfig() throws Exception {
+    final ClusterCache cache = ClusterCache.fromConfig(clustered(Optional.of("ushortx-*")),
+        CONFIG);
+    assertTrue(cache.enabled());
+
+    // the lookups are answered on the context of the caller
+    final Context context = vertx.getOrCreateContext();
+    final CompletableFuture<Optional<String>> hit = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      cache.put(1, "http://example.com");
+      cache.get(1, result -> {
+        assertEquals(context, Vertx.currentContext());
+        hit.complete(result.result());
+      });
+    });
+    assertEquals(Optional.of("http://example.com"), hit.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void fromConfig_namedMapConfig() throws Exception {
+    assertTrue(ClusterCache.fromConfig(clustered(Optional.of("ushortx-urls")), CONFIG)
+        .enabled());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void fromConfig_missingMapConfig() throws Exception {
+    ClusterCache.fromConfig(clustered(Optional.empty()), CONFIG);
+  }
+}
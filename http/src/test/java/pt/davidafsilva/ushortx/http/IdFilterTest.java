@@ -0,0 +1,138 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the loading and of the refreshing of the {@link IdFilter}, against two
+ * persistence shards whose identifiers are answered by the test
+ *
+ * @author David Silva
+ */
+public class IdFilterTest {
+
+  // the persistence shards
+  private static final PersistenceShards SHARDS = new PersistenceShards(2);
+
+  // the vertx instance
+  private Vertx vertx;
+  // the identifiers of each shard
+  private final List<List<Long>> ids = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void setup() {
+    vertx = Vertx.vertx();
+    for (int shard = 0; shard < 2; shard++) {
+      final List<Long> shardIds = new CopyOnWriteArrayList<>();
+      ids.add(shardIds);
+      vertx.eventBus().<JsonObject>consumer("ushortx-persistence-ids-" + shard, message -> {
+        final long from = message.body().getLong("from");
+        final JsonArray page = new JsonArray();
+        shardIds.stream().filter(id -> id >= from).sorted().forEach(page::add);
+        message.reply(new JsonObject().put("ids", page));
+      });
+    }
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  /**
+   * Loads a new filter, waiting for it to be loaded
+   *
+   * @param refreshInterval the time, in milliseconds, between the refreshes of the filter
+   * @return the loaded filter
+   * @throws Exception if the filter is not loaded in time
+   */
+  private IdFilter load(final long refreshInterval) throws Exception {
+    final IdFilter filter = new IdFilter(1_000, refreshInterval);
+    vertx.runOnContext(v -> filter.load(vertx, SHARDS));
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    // a never allocated identifier below the loaded ones is rejected once loaded
+    while (filter.mightContain(2) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    return filter;
+  }
+
+  @Test
+  public void mightContain_rejectsOnlyUpToTheLoadedIdentifiers() throws Exception {
+    ids.get(0).add(4L);
+    ids.get(1).add(1L);
+    ids.get(1).add(3L);
+    final IdFilter filter = load(0);
+
+    assertTrue(filter.mightContain(1));
+    assertTrue(filter.mightContain(3));
+    assertTrue(filter.mightContain(4));
+    assertFalse(filter.mightContain(0));
+    assertFalse(filter.mightContain(2));
+    // beyond the highest identifier loaded from their shard
+    assertTrue(filter.mightContain(5));
+    assertTrue(filter.mightContain(6));
+  }
+
+  @Test
+  public void refresh_loadsTheIdentifiersWrittenByOtherMeans() throws Exception {
+    ids.get(0).add(4L);
+    ids.get(1).add(3L);
+    final IdFilter filter = load(20);
+
+    // e.g. imported, without any publication to the http nodes
+    ids.get(0).add(8L);
+    ids.get(1).add(9L);
+    final CompletableFuture<Void> refreshed = new CompletableFuture<>();
+    vertx.setPeriodic(10, timer -> {
+      if (!filter.mightContain(6)) {
+        refreshed.complete(null);
+      }
+    });
+    refreshed.get(10, TimeUnit.SECONDS);
+
+    assertTrue(filter.mightContain(8));
+    assertTrue(filter.mightContain(9));
+    assertFalse(filter.mightContain(7));
+    vertx.runOnContext(v -> filter.close(vertx));
+  }
+}
@@ -0,0 +1,102 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the {@code /metrics} scrape of the {@link RestVerticle}, with a persistence shard
+ * that never replies
+ *
+ * @author David Silva
+ */
+public class MetricsRequestTest {
+
+  // the http port
+  private static final int PORT = 18080;
+
+  // the vertx instance
+  private Vertx vertx;
+
+  @Before
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    // shard 0 replies, while shard 1 is down
+    vertx.eventBus().<Object>consumer("ushortx-persistence-metrics-0", message -> message.reply(
+        new JsonObject()
+            .put("node", "node-0")
+            .put("metrics", "# HELP shard_metric a shard metric\n" +
+                "# TYPE shard_metric gauge\n" +
+                "shard_metric 1.0\n")));
+    vertx.eventBus().<JsonObject>consumer("ushortx-persistence-ids-0",
+        message -> message.reply(new JsonObject().put("ids", new JsonArray())));
+
+    final CompletableFuture<String> deployed = new CompletableFuture<>();
+    vertx.deployVerticle(RestVerticle.class.getName(), new DeploymentOptions()
+        .setConfig(new JsonObject()
+            .put("http_port", PORT)
+            .put("persistence_shards", 2)
+            .put("metrics_timeout", 200L)), result -> {
+      if (result.succeeded()) {
+        deployed.complete(result.result());
+      } else {
+        deployed.completeExceptionally(result.cause());
+      }
+    });
+    deployed.get(10, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Test
+  public void metrics_rendersTheShardsThatReplied() throws Exception {
+    final CompletableFuture<String> body = new CompletableFuture<>();
+    vertx.createHttpClient().getNow(PORT, "localhost", "/metrics",
+        response -> response.bodyHandler(buffer -> body.complete(buffer.toString())));
+    // the default send timeout (30s) would outlast the wait
+    final String metrics = body.get(5, TimeUnit.SECONDS);
+
+    assertTrue(metrics, metrics.contains("shard_metric 1.0\n"));
+    assertTrue(metrics, metrics.contains("ushortx_persistence_up{shard=\"0\",} 1.0\n"));
+    assertTrue(metrics, metrics.contains("ushortx_persistence_up{shard=\"1\",} 0.0\n"));
+  }
+}
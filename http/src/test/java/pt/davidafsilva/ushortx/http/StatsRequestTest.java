@@ -0,0 +1,114 @@
+package pt.davidafsilva.ushortx.http;
+
+/*
+ * #%L
+ * ushortx-http
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.FindUrlRequest;
+import pt.davidafsilva.ushortx.protocol.Hash;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The tests of the {@code /stats} request of the {@link RestVerticle}, with the redirects
+ * counted by several instances
+ *
+ * @author David Silva
+ */
+public class StatsRequestTest {
+
+  // the http port
+  private static final int PORT = 18081;
+  // the number of verticle instances
+  private static final int INSTANCES = 2;
+  // the redirected identifier
+  private static final long ID = 42;
+
+  // the vertx instance
+  private Vertx vertx;
+
+  @Before
+  public void setup() throws Exception {
+    vertx = Vertx.vertx();
+    vertx.eventBus().<JsonObject>consumer("ushortx-persistence-ids", message -> message.reply(
+        new JsonObject().put("ids", new JsonArray().add(ID))));
+    vertx.eventBus().<FindUrlRequest>consumer("ushortx-persistence-findById",
+        message -> message.reply(new UrlReply(ID, "http://example.com")));
+    // no click was flushed yet
+    vertx.eventBus().<Long>consumer("ushortx-persistence-findClicks",
+        message -> message.reply(0L));
+
+    final CompletableFuture<String> deployed = new CompletableFuture<>();
+    vertx.deployVerticle(RestVerticle.class.getName(), new DeploymentOptions()
+        .setInstances(INSTANCES)
+        .setConfig(new JsonObject()
+            .put("http_port", PORT)
+            .put("clicks_flush_interval", 60_000L)), result -> {
+      if (result.succeeded()) {
+        deployed.complete(result.result());
+      } else {
+        deployed.completeExceptionally(result.cause());
+      }
+    });
+    deployed.get(10, TimeUnit.SECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    vertx.close();
+  }
+
+  @Test
+  public void stats_sumsThePendingClicksOfEveryInstance() throws Exception {
+    // a connection per redirect, which are spread across the instances
+    final String hash = Hash.generate(Hash.DEFAULT_SALT, ID);
+    final int redirects = 4 * INSTANCES;
+    for (int i = 0; i < redirects; i++) {
+      final CompletableFuture<Integer> redirected = new CompletableFuture<>();
+      vertx.createHttpClient(new HttpClientOptions().setKeepAlive(false))
+          .getNow(PORT, "localhost", "/" + hash,
+              response -> redirected.complete(response.statusCode()));
+      assertEquals(302, (int) redirected.get(5, TimeUnit.SECONDS));
+    }
+
+    final CompletableFuture<JsonObject> stats = new CompletableFuture<>();
+    vertx.createHttpClient().getNow(PORT, "localhost", "/stats/" + hash,
+        response -> response.bodyHandler(body -> stats.complete(new JsonObject(body.toString()))));
+    assertEquals(redirects, (long) stats.get(5, TimeUnit.SECONDS).getLong("clicks"));
+  }
+}
@@ -0,0 +1,194 @@
+package pt.davidafsilva.ushortx.launcher;
+
+/*
+ * #%L
+ * ushortx-launcher
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * The launcher of the http and persistence modules, which deploys several instances of each
+ * verticle, by default one per available core, so that the http server and the event bus
+ * consumers are spread across the event loops.
+ *
+ * Without the {@code -cluster} option both modules are deployed in the same JVM (the embedded
+ * mode), communicating through the local event bus. The persistence shards are deployed first,
+ * one instance at a time, so that the store structures are created once, followed by the http
+ * instances. The time spent deploying each module is logged, along with the overall startup time.
+ *
+ * @author David Silva
+ */
+public class LauncherVerticle extends AbstractVerticle {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(LauncherVerticle.class);
+
+  // the verticle of each module
+  private static final String HTTP_VERTICLE = "pt.davidafsilva.ushortx.http.RestVerticle";
+  private static final String PERSISTENCE_VERTICLE =
+      "pt.davidafsilva.ushortx.persistence.DatabaseVerticle";
+
+  @Override
+  public void start(final Future<Void> startFuture) throws Exception {
+    final long start = System.nanoTime();
+    final int cores = Runtime.getRuntime().availableProcessors();
+    final JsonArray modules = config().getJsonArray("launch_modules",
+        new JsonArray().add("persistence").add("http"));
+    for (final Object module : modules) {
+      if (!"persistence".equals(module) && !"http".equals(module)) {
+        startFuture.fail("unknown module: " + module);
+        return;
+      }
+    }
+
+    final List<Deployment> deployments = new ArrayList<>();
+    final int shardCount = config().getInteger("shard_count", 1);
+    if (modules.contains("persistence")) {
+      // the log store is locked by its instance, hence it has a single instance per shard
+      int instances = config().getInteger("persistence_instances", cores);
+      if ("log".equals(config().getString("storage", "jdbc")) && instances > 1) {
+        LOGGER.warn("the log storage supports a single instance per shard, ignoring " +
+            "persistence_instances");
+        instances = 1;
+      }
+
+      // the first instance of each shard creates the store structures
+      for (final Object shard : config().getJsonArray("launch_shards", allShards(shardCount))) {
+        final JsonObject shardConfig = config().copy().put("shard_index", (Integer) shard);
+        final String name = "persistence shard " + shard;
+        deployments.add(new Deployment(PERSISTENCE_VERTICLE, name, shardConfig, 1));
+        if (instances > 1) {
+          deployments.add(new Deployment(PERSISTENCE_VERTICLE, name, shardConfig,
+              instances - 1));
+        }
+      }
+    }
+    if (modules.contains("http")) {
+      final JsonObject httpConfig = config().copy().put("persistence_shards",
+          config().getInteger("persistence_shards", shardCount));
+      deployments.add(new Deployment(HTTP_VERTICLE, "http", httpConfig,
+          config().getInteger("http_instances", cores)));
+    }
+
+    deploy(deployments.iterator(), result -> {
+      if (result.failed()) {
+        startFuture.fail(result.cause());
+        return;
+      }
+      LOGGER.info(String.format("ushortx started in %dms (%dms since the JVM start)",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+          ManagementFactory.getRuntimeMXBean().getUptime()));
+      startFuture.complete();
+    });
+  }
+
+  /**
+   * Creates the indexes of the specified number of shards
+   *
+   * @param shardCount the number of shards
+   * @return the shard indexes
+   */
+  private static JsonArray allShards(final int shardCount) {
+    final JsonArray shards = new JsonArray();
+    for (int shard = 0; shard < shardCount; shard++) {
+      shards.add(shard);
+    }
+    return shards;
+  }
+
+  /**
+   * Deploys the specified deployments, one after the other
+   *
+   * @param deployments the deployments
+   * @param doneHandler the handler to be called once deployed, or failed at the first failure
+   */
+  private void deploy(final Iterator<Deployment> deployments,
+      final Handler<AsyncResult<Void>> doneHandler) {
+    if (!deployments.hasNext()) {
+      doneHandler.handle(Future.succeededFuture());
+      return;
+    }
+
+    final Deployment deployment = deployments.next();
+    final long start = System.nanoTime();
+    vertx.deployVerticle(deployment.verticle, new DeploymentOptions()
+        .setConfig(deployment.config)
+        .setInstances(deployment.instances), result -> {
+      if (result.failed()) {
+        LOGGER.error("unable to deploy the " + deployment.name, result.cause());
+        doneHandler.handle(Future.failedFuture(result.cause()));
+        return;
+      }
+      LOGGER.info(String.format("deployed %d %s instances in %dms", deployment.instances,
+          deployment.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+      deploy(deployments, doneHandler);
+    });
+  }
+
+  /**
+   * A deployment of a number of instances of a verticle
+   */
+  private static final class Deployment {
+
+    // the verticle name
+    private final String verticle;
+    // the deployment name, for the logs
+    private final String name;
+    // the verticle configuration
+    private final JsonObject config;
+    // the number of instances
+    private final int instances;
+
+    /**
+     * Creates a new deployment
+     *
+     * @param verticle  the verticle name
+     * @param name      the deployment name, for the logs
+     * @param config    the verticle configuration
+     * @param instances the number of instances
+     */
+    private Deployment(final String verticle, final String name, final JsonObject config,
+        final int instances) {
+      this.verticle = verticle;
+      this.name = name;
+      this.config = config;
+      this.instances = instances;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.Failure;
+
+/**
+ * The admission control of the store operations of a {@link DatabaseVerticle}. The number of
+ * operations in flight is bounded by a concurrency limit, and the operations beyond it wait in a
+ * bounded queue per priority. Whenever a queue is full, or an operation waited for too long, the
+ * request is rejected with an {@link Failure#OVERLOADED} failure, instead of piling up on the
+ * store. The waiting operations are rejected as soon as they wait for too long, by a single timer
+ * armed at the deadline of the oldest one, since the queues are in arrival order.
+ *
+ * The limit adapts to the observed latencies (gradient based): it shrinks while the recent
+ * latency exceeds the long term latency, i.e. the store is queueing, and grows otherwise, as
+ * long as it is actually used. Failed operations shrink it as well.
+ *
+ * The lookups are prioritized over the saves: the saves may only use a share of the limit, and
+ * the waiting lookups are admitted first. A batch of saves is admitted as a single operation.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context.
+ *
+ * @author David Silva
+ */
+final class AdmissionControl {
+
+  /**
+   * The operation priorities
+   */
+  enum Priority {
+    LOOKUP, SAVE
+  }
+
+  /**
+   * An admitted operation
+   */
+  @FunctionalInterface
+  interface Operation {
+
+    /**
+     * Runs the operation
+     *
+     * @param doneHandler the handler to be called once done, with whether or not the operation
+     *                    succeeded, or {@code null} if it completed without running the store
+     *                    operation, in which case its latency is not sampled
+     */
+    void run(Handler<Boolean> doneHandler);
+  }
+
+  // the share of the limit that may be used by saves
+  private static final double SAVE_SHARE = 0.75;
+  // the tolerated ratio between the recent and the long term latency
+  private static final double TOLERANCE = 1.5;
+  // the smoothing of the recent latency, the long term latency and the limit
+  private static final double SHORT_SMOOTHING = 0.2;
+  private static final double LONG_SMOOTHING = 1.0 / 500;
+  private static final double LIMIT_SMOOTHING = 0.2;
+  // the limit decrease factor of a failed operation
+  private static final double FAILURE_BACKOFF = 0.9;
+
+  // the min. concurrency limit
+  private static final int MIN_LIMIT = 1;
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the max. concurrency limit
+  private final int maxLimit;
+  // the max. number of waiting operations per priority
+  private final int maxQueue;
+  // the max. time, in nanoseconds, an operation may wait
+  private final long maxQueueTime;
+  // the waiting operations, by priority
+  private final Deque<Waiting> lookups = new ArrayDeque<>();
+  private final Deque<Waiting> saves = new ArrayDeque<>();
+  // the number of rejected operations, by priority
+  private final long[] shed = new long[Priority.values().length];
+
+  // the concurrency limit
+  private double limit;
+  // the number of operations in flight
+  private int inFlight;
+  // the recent and the long term latencies, in nanoseconds
+  private double shortLatency;
+  private double longLatency;
+  // whether or not the queues are being drained
+  private boolean draining;
+  // the expiration timer identifier, -1 if not armed
+  private long expirationTimer = -1;
+
+  /**
+   * Creates a new admission control
+   *
+   * @param vertx        the vertx instance
+   * @param initialLimit the initial concurrency limit
+   * @param maxLimit     the max. concurrency limit
+   * @param maxQueue     the max. number of waiting operations per priority
+   * @param maxQueueTime the max. time, in milliseconds, an operation may wait
+   */
+  AdmissionControl(final Vertx vertx, final int initialLimit, final int maxLimit,
+      final int maxQueue, final long maxQueueTime) {
+    this.vertx = vertx;
+    this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+    this.maxQueue = maxQueue;
+    this.maxQueueTime = maxQueueTime * 1_000_000L;
+    this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+  }
+
+  /**
+   * Creates a new admission control based on the specified verticle configuration
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @return the created admission control
+   */
+  static AdmissionControl fromConfig(final Vertx vertx, final JsonObject config) {
+    return new AdmissionControl(vertx,
+        config.getInteger("admission_initial_limit", 20),
+        config.getInteger("admission_max_limit", 200),
+        config.getInteger("admission_max_queue", 1_000),
+        config.getLong("admission_max_queue_time", 1_000L));
+  }
+
+  /**
+   * Runs the specified operation once admitted, or rejects the request message if the
+   * store is saturated
+   *
+   * @param priority  the operation priority
+   * @param message   the request message, failed if rejected
+   * @param operation the operation to run
+   */
+  void submit(final Priority priority, final Message<?> message, final Operation operation) {
+    submit(priority, () -> PersistenceMetrics.fail(message, Failure.OVERLOADED, "overloaded"),
+        operation);
+  }
+
+  /**
+   * Runs the specified operation once admitted, or calls the given reject handler if the store
+   * is saturated
+   *
+   * @param priority      the operation priority
+   * @param rejectHandler the handler to be called if rejected
+   * @param operation     the operation to run
+   */
+  void submit(final Priority priority, final Runnable rejectHandler,
+      final Operation operation) {
+    final Deque<Waiting> queue = queue(priority);
+    if (queue.isEmpty() && (priority == Priority.LOOKUP || lookups.isEmpty())
+        && admits(priority)) {
+      run(operation);
+      return;
+    }
+    if (queue.size() >= maxQueue) {
+      reject(priority, rejectHandler);
+      return;
+    }
+
+    // wait for an admission, up to the max. queue time
+    queue.add(new Waiting(priority, rejectHandler, operation,
+        System.nanoTime() + maxQueueTime));
+    if (expirationTimer == -1) {
+      armExpiration();
+    }
+  }
+
+  /**
+   * Returns the queue of the specified priority
+   *
+   * @param priority the priority
+   * @return the queue of waiting operations
+   */
+  private Deque<Waiting> queue(final Priority priority) {
+    return priority == Priority.LOOKUP ? lookups : saves;
+  }
+
+  /**
+   * Checks whether or not an operation of the specified priority may run right away
+   *
+   * @param priority the operation priority
+   * @return {@code true} if there is room for the operation, {@code false} otherwise
+   */
+  private boolean admits(final Priority priority) {
+    final double priorityLimit = priority == Priority.LOOKUP ? limit
+        : Math.max(MIN_LIMIT, limit * SAVE_SHARE);
+    return inFlight < priorityLimit;
+  }
+
+  /**
+   * Runs the specified operation, updating the limit and admitting the waiting operations once
+   * done. The operations completed without running the store operation leave the limit as is.
+   *
+   * @param operation the operation to run
+   */
+  private void run(final Operation operation) {
+    inFlight++;
+    final long start = System.nanoTime();
+    operation.run(succeeded -> {
+      if (succeeded != null) {
+        update(System.nanoTime() - start, succeeded);
+      }
+      inFlight--;
+      drain();
+    });
+  }
+
+  /**
+   * Updates the limit with the latency of a completed operation
+   *
+   * @param latency   the operation latency, in nanoseconds
+   * @param succeeded whether or not the operation succeeded
+   */
+  private void update(final long latency, final boolean succeeded) {
+    double newLimit;
+    if (!succeeded) {
+      newLimit = limit * FAILURE_BACKOFF;
+    } else {
+      if (longLatency == 0) {
+        shortLatency = longLatency = latency;
+      }
+      shortLatency += (latency - shortLatency) * SHORT_SMOOTHING;
+      longLatency += (latency - longLatency) * LONG_SMOOTHING;
+      // let the long term latency follow a steady drop of the latency
+      if (longLatency > 2 * shortLatency) {
+        longLatency *= 0.95;
+      }
+
+      final double gradient = Math.max(0.5, Math.min(1.0,
+          TOLERANCE * longLatency / shortLatency));
+      newLimit = limit * gradient + Math.sqrt(limit);
+      // only grow while the limit is actually used
+      if (inFlight < limit / 2) {
+        newLimit = Math.min(newLimit, limit);
+      }
+      newLimit = limit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING;
+    }
+    limit = Math.max(MIN_LIMIT, Math.min(maxLimit, newLimit));
+  }
+
+  /**
+   * Admits the waiting operations while there is room for them, lookups first
+   */
+  private void drain() {
+    if (draining) {
+      return;
+    }
+    draining = true;
+    while (true) {
+      if (!lookups.isEmpty() && admits(Priority.LOOKUP)) {
+        run(lookups.poll().operation);
+      } else if (lookups.isEmpty() && !saves.isEmpty() && admits(Priority.SAVE)) {
+        run(saves.poll().operation);
+      } else {
+        break;
+      }
+    }
+    draining = false;
+  }
+
+  /**
+   * Arms the expiration timer at the deadline of the oldest waiting operation, if any
+   */
+  private void armExpiration() {
+    long deadline = Long.MAX_VALUE;
+    if (!lookups.isEmpty()) {
+      deadline = lookups.peek().deadline;
+    }
+    if (!saves.isEmpty()) {
+      deadline = Math.min(deadline, saves.peek().deadline);
+    }
+    if (deadline == Long.MAX_VALUE) {
+      expirationTimer = -1;
+      return;
+    }
+    final long delay = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1;
+    expirationTimer = vertx.setTimer(Math.max(1, delay), id -> {
+      expire(lookups);
+      expire(saves);
+      armExpiration();
+    });
+  }
+
+  /**
+   * Rejects the waiting operations of the specified queue that are past their deadline
+   *
+   * @param queue the queue of waiting operations
+   */
+  private void expire(final Deque<Waiting> queue) {
+    final long now = System.nanoTime();
+    while (!queue.isEmpty() && queue.peek().deadline - now <= 0) {
+      final Waiting waiting = queue.poll();
+      reject(waiting.priority, waiting.rejectHandler);
+    }
+  }
+
+  /**
+   * Rejects an operation
+   *
+   * @param priority      the operation priority
+   * @param rejectHandler the reject handler of the operation
+   */
+  private void reject(final Priority priority, final Runnable rejectHandler) {
+    shed[priority.ordinal()]++;
+    PersistenceMetrics.shed(priority);
+    rejectHandler.run();
+  }
+
+  /**
+   * Returns the max. number of waiting operations per priority
+   *
+   * @return the max. queue size
+   */
+  int maxQueue() {
+    return maxQueue;
+  }
+
+  /**
+   * Returns the admission statistics
+   *
+   * @return the statistics json
+   */
+  JsonObject stats() {
+    return new JsonObject()
+        .put("limit", (int) limit)
+        .put("in_flight", inFlight)
+        .put("queued_lookups", lookups.size())
+        .put("queued_saves", saves.size())
+        .put("shed_lookups", shed[Priority.LOOKUP.ordinal()])
+        .put("shed_saves", shed[Priority.SAVE.ordinal()]);
+  }
+
+  /**
+   * Stops the expiration timer
+   */
+  void close() {
+    if (expirationTimer != -1) {
+      vertx.cancelTimer(expirationTimer);
+      expirationTimer = -1;
+    }
+  }
+
+  /**
+   * An operation waiting for its admission
+   */
+  private static final class Waiting {
+
+    // the operation priority
+    private final Priority priority;
+    // the handler to be called if rejected
+    private final Runnable rejectHandler;
+    // the operation to run
+    private final Operation operation;
+    // the time, in nanoseconds, after which the operation is rejected
+    private final long deadline;
+
+    /**
+     * Creates a new waiting operation
+     *
+     * @param priority      the operation priority
+     * @param rejectHandler the handler to be called if rejected
+     * @param operation     the operation to run
+     * @param deadline      the time, in nanoseconds, after which the operation is rejected
+     */
+    private Waiting(final Priority priority, final Runnable rejectHandler,
+        final Operation operation, final long deadline) {
+      this.priority = priority;
+      this.rejectHandler = rejectHandler;
+      this.operation = operation;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The click counts of the {@link LogUrlStore}, as a memory-mapped array of counts, indexed by
+ * identifier, preceded by the magic number. The counts are flushed along with the other storage
+ * files, hence the clicks added since the last flush are lost on a system crash.
+ *
+ * This class is not thread-safe, except for {@link #force()}.
+ *
+ * @author David Silva
+ */
+final class ClickIndex implements Closeable {
+
+  // the file magic number
+  private static final long MAGIC = 0x7573686f72747833L;
+  // the segment size, as a power of two (8 MiB, 1M identifiers)
+  private static final int SEGMENT_SHIFT = 23;
+
+  // the mapped index file
+  private final MappedFile file;
+
+  /**
+   * Opens (or creates) the index file at the specified path
+   *
+   * @param path the index file path
+   * @throws IOException if the file cannot be opened or is not a click index file
+   */
+  ClickIndex(final Path path) throws IOException {
+    file = new MappedFile(path, SEGMENT_SHIFT);
+    final long magic = file.getLong(0);
+    if (magic == 0) {
+      file.putLong(0, MAGIC);
+    } else if (magic != MAGIC) {
+      file.close();
+      throw new IOException("not a click index file: " + path);
+    }
+  }
+
+  /**
+   * Returns the click count of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the click count
+   * @throws IOException if the entry cannot be read
+   */
+  long get(final long id) throws IOException {
+    return file.getLong(entry(id));
+  }
+
+  /**
+   * Adds the specified number of clicks to the count of the given identifier
+   *
+   * @param id     the url identifier
+   * @param clicks the number of clicks to add
+   * @throws IOException if the entry cannot be written
+   */
+  void add(final long id, final long clicks) throws IOException {
+    file.putLong(entry(id), file.getLong(entry(id)) + clicks);
+  }
+
+  /**
+   * Returns the entry position of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the entry position
+   */
+  private static long entry(final long id) {
+    // the magic number takes the first entry
+    return (id + 1) * Long.BYTES;
+  }
+
+  /**
+   * Flushes the index changes to the storage device
+   */
+  void force() {
+    file.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -26,24 +26,37 @@ package pt.davidafsilva.ushortx.persistence;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.ext.jdbc.JDBCClient;
-import io.vertx.ext.sql.ResultSet;
-import io.vertx.ext.sql.SQLConnection;
-import io.vertx.ext.sql.UpdateResult;
+import pt.davidafsilva.ushortx.persistence.AdmissionControl.Operation;
+import pt.davidafsilva.ushortx.persistence.AdmissionControl.Priority;
+import pt.davidafsilva.ushortx.protocol.Failure;
+import pt.davidafsilva.ushortx.protocol.FindUrlRequest;
+import pt.davidafsilva.ushortx.protocol.Protocol;
+import pt.davidafsilva.ushortx.protocol.RecordClicksRequest;
+import pt.davidafsilva.ushortx.protocol.SaveUrlRequest;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+import pt.davidafsilva.ushortx.protocol.Urls;
 
 /**
- * The persistence verticle with the URL mappings
+ * The persistence verticle with the URL mappings, which are kept at the configured
+ * {@link UrlStore}
  *
  * @author David Silva
  */
@@ -52,187 +65,339 @@ public class DatabaseVerticle extends AbstractVerticle {
   // the logger
   private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseVerticle.class);
 
-  // the findById query
-  private static final String FIND_BY_ID_QUERY = "SELECT ID,URL FROM urls WHERE id=?";
-  // the findByUrl query
-  private static final String FIND_BY_URL_QUERY = "SELECT ID,URL FROM urls WHERE url=?";
-  // the insertUrl update statement
-  private static final String INSERT_URL_STATEMENT = "INSERT INTO URLS(URL) VALUES(?)";
-  // the create table statement
-  private static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS urls(" +
-      "ID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
-      "URL VARCHAR(255) NOT NULL UNIQUE )";
-
-  // the findById | findByUrl query result handler
-  private static final BiFunction<Message<JsonObject>, SQLConnection, Handler<AsyncResult<ResultSet>>>
-      FIND_QUERY_RESULT_HANDLER =
-      (message, connection) -> dbResult -> {
-        try {
-          if (dbResult.succeeded()) {
-            LOGGER.debug("find query results: " + dbResult.result().getRows());
-            if (dbResult.result().getNumRows() == 1) {
-              // extract the row
-              final JsonObject row = dbResult.result().getRows().get(0);
-
-              // create the reply json and reply
-              message.reply(new JsonObject()
-                  .put("id", row.getLong("ID"))
-                  .put("url", row.getString("URL")));
-            } else {
-              message.fail(4, "url not found");
-            }
-          } else {
-            message.fail(3, "internal database error");
-          }
-        } finally {
-          connection.close();
-        }
-      };
+  // the max. number of identifiers replied at once
+  private static final int MAX_IDS_LIMIT = 10_000;
+
+  // the owned identifier shard
+  private Shard shard;
+
+  // the url store
+  private UrlStore store;
 
-  // the insertUrl query result handler
-  private static final BiFunction<Message<JsonObject>, SQLConnection, Handler<AsyncResult<UpdateResult>>>
-      INSERT_URL_RESULT_HANDLER =
-      (message, connection) -> dbResult -> {
+  // the admission control of the store operations
+  private AdmissionControl admission;
+
+  // the saves in flight, by normalized url, with the handlers waiting for each of them
+  private final Map<String, List<Handler<AsyncResult<UrlReply>>>> inFlightSaves =
+      new HashMap<>();
+
+  @Override
+  public void start(final Future<Void> startFuture) throws Exception {
+    // resolve the owned shard
+    try {
+      shard = Shard.fromConfig(config());
+    } catch (final IllegalArgumentException e) {
+      startFuture.fail(e);
+      return;
+    }
+
+    // create the url store, behind the admission control
+    admission = AdmissionControl.fromConfig(vertx, config());
+    final String storage = config().getString("storage", "jdbc");
+    switch (storage) {
+      case "jdbc":
         try {
-          if (dbResult.succeeded()) {
-            LOGGER.debug("save statement result: " + dbResult.result().toJson());
-            if (dbResult.result().getUpdated() == 1) {
-              // get the saved identifier
-              final JsonArray queryParams = new JsonArray().add(message.body().getString("url"));
-              connection.queryWithParams(FIND_BY_URL_QUERY, queryParams,
-                  FIND_QUERY_RESULT_HANDLER.apply(message, connection));
-            } else {
-              message.fail(4, "insert error");
-            }
-          } else {
-            // most likely a duplicate registry, try find or fail
-            final JsonArray queryParams = new JsonArray().add(message.body().getString("url"));
-            connection.queryWithParams(FIND_BY_URL_QUERY, queryParams,
-                FIND_QUERY_RESULT_HANDLER.apply(message, connection));
-          }
-        } finally {
-          connection.close();
+          store = new JdbcUrlStore(vertx, config(), shard, admission);
+        } catch (final IllegalArgumentException e) {
+          admission.close();
+          startFuture.fail(e);
+          return;
         }
-      };
+        break;
+      case "log":
+        store = new LogUrlStore(vertx, config(), shard);
+        break;
+      default:
+        startFuture.fail("unknown storage: " + storage);
+        return;
+    }
 
-  // the database client
-  private JDBCClient client;
+    // open the store
+    store.open(r -> {
+      if (r.failed()) {
+        startFuture.fail(r.cause());
+        return;
+      }
 
-  @Override
-  public void start() throws Exception {
-    // create the database client
-    client = JDBCClient.createShared(vertx,
-        new JsonObject()
-            .put("url", config().getString("url", "jdbc:h2:mem:ushortx?DB_CLOSE_DELAY=-1"))
-            .put("driver_class", config().getString("driver_class", "org.h2.Driver"))
-            .put("user", config().getString("user", "ushortx"))
-            .put("password", config().getString("password", "shall-not-be-used"))
-            .put("max_pool_size", config().getInteger("max_pool_size", 20))
-        , "ushortx-ds");
-
-    // create the table
-    createTableStructure(r -> {
-      // register the event bus consumers
-      LOGGER.info("registering event consumers..");
-      vertx.eventBus().consumer("ushortx-persistence-findById", this::findById);
-      vertx.eventBus().consumer("ushortx-persistence-save", this::saveUrl);
+      // register the protocol codecs and the event bus consumers
+      Protocol.registerCodecs(vertx.eventBus());
+      LOGGER.info("registering event consumers for shard " + shard + "..");
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-findById"), this::findById);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-save"), this::saveUrl);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-stats"), this::stats);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-epoch"), this::epoch);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-ids"), this::findIds);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-recent"), this::findRecent);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-clicks"), this::recordClicks);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-findClicks"),
+          this::findClicks);
+      vertx.eventBus().consumer(shard.qualify("ushortx-persistence-metrics"), this::metrics);
+      startFuture.complete();
     });
   }
 
   /**
-   * Connects to the database and calls the specified handlers, accordingly.
+   * Queries the store for an url entry with the identifier specified in the message
    *
-   * @param successHandler the success handler
-   * @param errorHandler   the error handler
+   * @param message the message from where to extract the identifier and to reply from
    */
-  private void connect(final Handler<SQLConnection> successHandler,
-      final Optional<Handler<Throwable>> errorHandler) {
-    client.getConnection(result -> {
-      if (result.succeeded()) {
-        successHandler.handle(result.result());
+  private void findById(final Message<FindUrlRequest> message) {
+    LOGGER.info("incoming find request: " + message.body());
+    // validate the identifier
+    final long id = message.body().id();
+    final long localId = shard.toLocal(id);
+    if (localId < 0) {
+      PersistenceMetrics.fail(message, Failure.INVALID_REQUEST,
+          "identifier not owned by shard " + shard);
+      return;
+    }
+
+    admission.submit(Priority.LOOKUP, message, done -> store.findById(localId, result -> {
+      done.handle(result.succeeded());
+      if (result.failed()) {
+        fail(message, result.cause());
+      } else if (!result.result().isPresent()) {
+        PersistenceMetrics.fail(message, Failure.NOT_FOUND, "url not found");
       } else {
-        LOGGER.error("unable to obtain a database connection", result.cause());
-        errorHandler.ifPresent(h -> h.handle(result.cause()));
+        message.reply(new UrlReply(id, result.result().get()));
       }
-    });
+    }));
   }
 
   /**
-   * Creates the necessary data structure (tables) that are required for the verticle execution.
-   * An {@link IllegalStateException} might be thrown if we reach an state of no recovery.
+   * Queries the store for the identifiers, in ascending order, starting at the identifier and
+   * up to the limit specified in the message
    *
-   * @param readyHandler the handler that shall be called whenever the data structure is created
+   * @param message the message from where to extract the range and to reply from
    */
-  private void createTableStructure(final Handler<Void> readyHandler) {
-    connect(connection -> {
-      LOGGER.info("creating database structure..");
-      // create the table
-      connection.execute(CREATE_TABLE_STATEMENT, dbResult -> {
-        if (dbResult.failed()) {
-          LOGGER.error("unable to create database structure", dbResult.cause());
-          return;
-        }
+  private void findIds(final Message<JsonObject> message) {
+    LOGGER.debug("incoming identifiers request: " + message.body());
+    final long from = message.body().getLong("from", 0L);
+    final int limit = Math.min(message.body().getInteger("limit", MAX_IDS_LIMIT), MAX_IDS_LIMIT);
+    admission.submit(Priority.LOOKUP, message, done -> store.findIds(shard.ceilLocal(from),
+        limit, result -> {
+          done.handle(result.succeeded());
+          if (result.failed()) {
+            fail(message, result.cause());
+          } else {
+            message.reply(new JsonObject().put("ids", new JsonArray(result.result().stream()
+                .map(shard::toGlobal)
+                .collect(Collectors.toList()))));
+          }
+        }));
+  }
 
-        // call the callback
-        readyHandler.handle(null);
-      });
-    }, Optional.empty());
+  /**
+   * Queries the store for the most recently created urls, newest first, up to the limit
+   * specified in the message
+   *
+   * @param message the message from where to extract the limit and to reply from
+   */
+  private void findRecent(final Message<JsonObject> message) {
+    LOGGER.debug("incoming recent urls request: " + message.body());
+    final int limit = Math.min(message.body().getInteger("limit", MAX_IDS_LIMIT), MAX_IDS_LIMIT);
+    admission.submit(Priority.LOOKUP, message, done -> store.findRecent(limit, result -> {
+      done.handle(result.succeeded());
+      if (result.failed()) {
+        fail(message, result.cause());
+      } else {
+        final JsonArray urls = new JsonArray();
+        result.result().forEach((id, url) -> urls.add(new JsonObject()
+            .put("id", shard.toGlobal(id))
+            .put("url", url)));
+        message.reply(new JsonObject().put("urls", urls));
+      }
+    }));
   }
 
   /**
-   * Queries the database for an url entry with the identifier specified in the message
+   * Saves at the store the url specified in the message, if non-existent. Otherwise the same
+   * entry is used, hence the reply carries the url as stored. The concurrent saves of the same
+   * (normalized) url share the same store operation. The saves batched by the store are admitted
+   * by batch, at the store.
    *
-   * @param message the message from where to extract the identifier and to reply from
+   * @param message the message from where to extract the url data and to reply from
    */
-  private void findById(final Message<JsonObject> message) {
-    LOGGER.info("incoming find request: " + message.body());
-    connect(connection -> {
-      // validate the identifier
-      final Optional<Long> id = Optional.ofNullable(message.body().getLong("id"));
-      if (!id.isPresent()) {
-        connection.close();
-        message.fail(2, "invalid identifier");
+  private void saveUrl(final Message<SaveUrlRequest> message) {
+    LOGGER.info("incoming save request: " + message.body());
+    // validate the url
+    final Optional<String> url = Optional.ofNullable(message.body().url());
+    if (!url.isPresent()) {
+      PersistenceMetrics.fail(message, Failure.INVALID_REQUEST, "invalid url");
+      return;
+    }
+
+    final String key = Urls.normalize(url.get());
+    final Handler<AsyncResult<UrlReply>> handler = result -> {
+      if (result.failed()) {
+        fail(message, result.cause());
+      } else {
+        message.reply(result.result());
+      }
+    };
+    if (coalesceSave(key, handler)) {
+      return;
+    }
+
+    final Operation save = done -> {
+      // an equivalent save may have started while this one was waiting, whose latency is the
+      // one sampled
+      if (coalesceSave(key, handler)) {
+        done.handle(null);
         return;
       }
 
-      // create the query parameters
-      final JsonArray queryParams = new JsonArray().add(id.get());
+      inFlightSaves.put(key, new ArrayList<>(Collections.singletonList(handler)));
+      store.save(url.get(), result -> {
+        done.handle(result.succeeded());
+        final AsyncResult<UrlReply> globalResult = result.failed() ? result
+            : Future.succeededFuture(new UrlReply(shard.toGlobal(result.result().id()),
+                result.result().url()));
+        // let the lookup filters know about the identifier before replying
+        if (globalResult.succeeded()) {
+          vertx.eventBus().publish("ushortx-persistence-saved", globalResult.result().id());
+        }
+        inFlightSaves.remove(key).forEach(waiter -> waiter.handle(globalResult));
+      });
+    };
+    if (store.batchesSaves()) {
+      save.run(succeeded -> {
+      });
+    } else {
+      admission.submit(Priority.SAVE, message, save);
+    }
+  }
 
-      // execute the query
-      connection.queryWithParams(FIND_BY_ID_QUERY, queryParams,
-          FIND_QUERY_RESULT_HANDLER.apply(message, connection));
-    }, Optional.of(cause -> message.fail(1, "unavailable resources")));
+  /**
+   * Adds the specified handler to the waiters of the in-flight save of the given url, if any
+   *
+   * @param key     the normalized url
+   * @param handler the handler to be called with the stored entry
+   * @return {@code true} if the save was coalesced, {@code false} otherwise
+   */
+  private boolean coalesceSave(final String key, final Handler<AsyncResult<UrlReply>> handler) {
+    final List<Handler<AsyncResult<UrlReply>>> waiting = inFlightSaves.get(key);
+    if (waiting == null) {
+      return false;
+    }
+    PersistenceMetrics.coalesced("save");
+    waiting.add(handler);
+    return true;
   }
 
   /**
-   * Saves at the database the url specified in the message, if non-existent. Otherwise the same
-   * entry is used.
+   * Adds at the store the redirect counts specified in the message, ignoring the identifiers
+   * that are not owned by this shard
    *
-   * @param message the message from where to extract the url data and to reply from
+   * @param message the message from where to extract the counts and to reply from
    */
-  private void saveUrl(final Message<JsonObject> message) {
-    LOGGER.info("incoming save request: " + message.body());
-    connect(connection -> {
-      // validate the url
-      final Optional<String> url = Optional.ofNullable(message.body().getString("url"));
-      if (!url.isPresent()) {
-        connection.close();
-        message.fail(2, "invalid url");
-        return;
+  private void recordClicks(final Message<RecordClicksRequest> message) {
+    LOGGER.debug("incoming clicks request: " + message.body());
+    final RecordClicksRequest request = message.body();
+    final long[] localIds = new long[request.size()];
+    final long[] clicks = new long[request.size()];
+    int owned = 0;
+    for (int i = 0; i < request.size(); i++) {
+      final long localId = shard.toLocal(request.id(i));
+      if (localId >= 0) {
+        localIds[owned] = localId;
+        clicks[owned++] = request.clicks(i);
       }
+    }
 
-      // create the update parameters
-      final JsonArray updateParams = new JsonArray().add(url.get());
+    final int ownedIds = owned;
+    admission.submit(Priority.SAVE, message, done -> store.recordClicks(
+        Arrays.copyOf(localIds, ownedIds), Arrays.copyOf(clicks, ownedIds), result -> {
+          done.handle(result.succeeded());
+          if (result.failed()) {
+            fail(message, result.cause());
+          } else {
+            message.reply(null);
+          }
+        }));
+  }
 
-      // execute the update
-      connection.updateWithParams(INSERT_URL_STATEMENT, updateParams,
-          INSERT_URL_RESULT_HANDLER.apply(message, connection));
-    }, Optional.of(cause -> message.fail(1, "unavailable resources")));
+  /**
+   * Queries the store for the redirect count of the identifier specified in the message
+   *
+   * @param message the message from where to extract the identifier and to reply from
+   */
+  private void findClicks(final Message<Long> message) {
+    LOGGER.debug("incoming find clicks request: " + message.body());
+    final long localId = shard.toLocal(message.body());
+    if (localId < 0) {
+      PersistenceMetrics.fail(message, Failure.INVALID_REQUEST,
+          "identifier not owned by shard " + shard);
+      return;
+    }
+
+    admission.submit(Priority.LOOKUP, message, done -> store.findClicks(localId, result -> {
+      done.handle(result.succeeded());
+      if (result.failed()) {
+        fail(message, result.cause());
+      } else if (!result.result().isPresent()) {
+        PersistenceMetrics.fail(message, Failure.NOT_FOUND, "url not found");
+      } else {
+        message.reply(result.result().get());
+      }
+    }));
+  }
+
+  /**
+   * Fails the specified message with the failure of the given store failure
+   *
+   * @param message the message to fail
+   * @param cause   the store failure
+   */
+  private static void fail(final Message<?> message, final Throwable cause) {
+    if (cause instanceof StoreException) {
+      PersistenceMetrics.fail(message, ((StoreException) cause).failure(), cause.getMessage());
+    } else {
+      LOGGER.error("unexpected store failure", cause);
+      PersistenceMetrics.fail(message, Failure.STORAGE_ERROR, "internal database error");
+    }
+  }
+
+  /**
+   * Replies with the persistence statistics
+   *
+   * @param message the message to reply to
+   */
+  private void stats(final Message<JsonObject> message) {
+    message.reply(store.stats().put("admission", admission.stats()));
+  }
+
+  /**
+   * Replies with the epoch of the store, which identifies its data
+   *
+   * @param message the message to reply to
+   */
+  private void epoch(final Message<Object> message) {
+    message.reply(store.epoch());
+  }
+
+  /**
+   * Replies with the persistence metrics, in the prometheus text format, along with the name of
+   * the node holding them, since the metrics registry is shared by the shards of the same JVM
+   *
+   * @param message the message to reply to
+   */
+  private void metrics(final Message<Object> message) {
+    message.reply(new JsonObject()
+        .put("node", PersistenceMetrics.node())
+        .put("metrics", PersistenceMetrics.scrape()));
   }
 
   @Override
-  public void stop() throws Exception {
-    // close the client
-    client.close();
+  public void stop(final Future<Void> stopFuture) throws Exception {
+    // close the admission control and the store
+    admission.close();
+    store.close(r -> {
+      if (r.succeeded()) {
+        stopFuture.complete();
+      } else {
+        stopFuture.fail(r.cause());
+      }
+    });
   }
 }
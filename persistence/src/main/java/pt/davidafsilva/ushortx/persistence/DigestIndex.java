@@ -0,0 +1,218 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongPredicate;
+
+/**
+ * The url digest index of the {@link LogUrlStore}, used for deduplicating the saved urls. The
+ * index is a memory-mapped open addressing hash table, with linear probing, of 16 byte slots:
+ * <pre>
+ *   [url digest: long][url identifier: long]
+ * </pre>
+ * The first slot holds the header: {@code [magic: long][capacity: long]}. The digest is the
+ * {@link UrlDigest} of the url, and zero marks the empty slots. Since digests may collide, every
+ * match is verified against the url at the log.
+ *
+ * Once the load factor is exceeded the table is rebuilt, with twice the capacity, into a
+ * temporary file which then atomically replaces the index file. The rebuild may run on another
+ * thread, as long as the index is not written meanwhile.
+ *
+ * This class is not thread-safe, except for {@link #force()}.
+ *
+ * @author David Silva
+ */
+final class DigestIndex implements Closeable {
+
+  // the file magic number
+  private static final long MAGIC = 0x7573686f72747832L;
+  // the segment size, as a power of two (16 MiB, 1M slots)
+  private static final int SEGMENT_SHIFT = 24;
+  // the slot size
+  private static final int SLOT = 2 * Long.BYTES;
+  // the max. load factor
+  private static final double LOAD_FACTOR = 0.75;
+
+  // the index file path
+  private final Path path;
+  // the mapped index file
+  private final MappedFile file;
+  // the number of slots, as a power of two
+  private final long capacity;
+  // the number of used slots
+  private long size;
+
+  /**
+   * Opens (or creates) the index file at the specified path
+   *
+   * @param path     the index file path
+   * @param capacity the number of slots of a new index, rounded up to a power of two
+   * @throws IOException if the file cannot be opened or is not an index file
+   */
+  DigestIndex(final Path path, final long capacity) throws IOException {
+    this.path = path;
+    this.file = new MappedFile(path, SEGMENT_SHIFT);
+    final long magic = file.getLong(0);
+    if (magic == 0) {
+      this.capacity = Math.max(1024, Long.highestOneBit(Math.max(1, capacity - 1)) << 1);
+      file.putLong(0, MAGIC);
+      file.putLong(Long.BYTES, this.capacity);
+    } else if (magic != MAGIC) {
+      file.close();
+      throw new IOException("not a digest index file: " + path);
+    } else {
+      this.capacity = file.getLong(Long.BYTES);
+      // the size is not persisted, as it would be stale after a crash
+      for (long slot = 0; slot < this.capacity; slot++) {
+        if (file.getLong(position(slot)) != 0) {
+          size++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the index digest of the specified normalized url
+   *
+   * @param normalizedUrl the normalized url
+   * @return the non-zero url digest
+   */
+  static long digest(final String normalizedUrl) {
+    final long digest = UrlDigest.digest(normalizedUrl);
+    return digest == 0 ? 1 : digest;
+  }
+
+  /**
+   * Looks up the identifier of the specified digest which satisfies the given predicate
+   *
+   * @param digest  the url digest
+   * @param matches the predicate that verifies each of the identifiers with the same digest
+   * @return the matching identifier, or {@code -1} if there is none
+   * @throws IOException if the index cannot be read
+   */
+  long find(final long digest, final LongPredicate matches) throws IOException {
+    for (long slot = digest & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+      final long slotDigest = file.getLong(position(slot));
+      if (slotDigest == 0) {
+        return -1;
+      }
+      if (slotDigest == digest) {
+        final long id = file.getLong(position(slot) + Long.BYTES);
+        if (matches.test(id)) {
+          return id;
+        }
+      }
+    }
+  }
+
+  /**
+   * Indexes the identifier of the specified digest. The index must not be {@link #full()}.
+   *
+   * @param digest the url digest
+   * @param id     the url identifier
+   * @throws IOException if the index cannot be written
+   */
+  void put(final long digest, final long id) throws IOException {
+    long slot = digest & (capacity - 1);
+    while (file.getLong(position(slot)) != 0) {
+      slot = (slot + 1) & (capacity - 1);
+    }
+    // the identifier goes first, so that a digest is never paired with a stale identifier
+    file.putLong(position(slot) + Long.BYTES, id);
+    file.putLong(position(slot), digest);
+    size++;
+  }
+
+  /**
+   * Checks whether or not the load factor would be exceeded by a new entry
+   *
+   * @return {@code true} if the index must be grown before the next entry, {@code false}
+   * otherwise
+   */
+  boolean full() {
+    return size + 1 > capacity * LOAD_FACTOR;
+  }
+
+  /**
+   * Rebuilds the index with twice the capacity, closing this instance
+   *
+   * @return the grown index
+   * @throws IOException if the index cannot be rebuilt
+   */
+  DigestIndex grow() throws IOException {
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.deleteIfExists(tmp);
+    try (final DigestIndex grown = new DigestIndex(tmp, capacity * 2)) {
+      for (long slot = 0; slot < capacity; slot++) {
+        final long digest = file.getLong(position(slot));
+        if (digest != 0) {
+          grown.put(digest, file.getLong(position(slot) + Long.BYTES));
+        }
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    close();
+    return new DigestIndex(path, capacity * 2);
+  }
+
+  /**
+   * Returns the number of used slots
+   *
+   * @return the index size
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Returns the file position of the specified slot
+   *
+   * @param slot the slot index
+   * @return the slot position
+   */
+  private static long position(final long slot) {
+    // the header takes the first slot
+    return (slot + 1) * SLOT;
+  }
+
+  /**
+   * Flushes the index changes to the storage device
+   */
+  void force() {
+    file.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,188 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ * The identifier allocator for new url entries. Identifiers are reserved in blocks from the
+ * database sequence (one statement per block) and handed out from memory afterwards, which
+ * allows the inserts to use an explicit identifier and avoid reading it back.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context.
+ *
+ * @author David Silva
+ */
+final class IdAllocator {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdAllocator.class);
+
+  // the sequence name
+  static final String SEQUENCE_NAME = "URLS_ID_SEQ";
+  // the create sequence statement format (start value, block size)
+  static final String CREATE_SEQUENCE_STATEMENT = "CREATE SEQUENCE IF NOT EXISTS " +
+      SEQUENCE_NAME + " START WITH %d INCREMENT BY %d";
+  // the alter sequence statement format (block size)
+  static final String ALTER_SEQUENCE_STATEMENT = "ALTER SEQUENCE " + SEQUENCE_NAME +
+      " INCREMENT BY %d";
+  // the next block query
+  private static final String NEXT_BLOCK_QUERY = "SELECT NEXT VALUE FOR " + SEQUENCE_NAME;
+
+  // the database client
+  private final JDBCClient client;
+  // the number of identifiers reserved per block
+  private final int blockSize;
+  // the handlers waiting for a block reservation
+  private final Queue<Handler<AsyncResult<Long>>> waiters = new ArrayDeque<>();
+
+  // the next identifier to hand out
+  private long next;
+  // the (exclusive) upper bound of the current block
+  private long limit;
+
+  /**
+   * Creates a new identifier allocator
+   *
+   * @param client    the database client
+   * @param blockSize the number of identifiers reserved per block, must match the sequence
+   *                  increment
+   */
+  IdAllocator(final JDBCClient client, final int blockSize) {
+    this.client = client;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Allocates a new unique identifier. The handler is called immediately if the current block
+   * still has identifiers available, otherwise a new block is reserved beforehand.
+   *
+   * @param handler the handler to be called with the allocated identifier
+   */
+  void nextId(final Handler<AsyncResult<Long>> handler) {
+    if (next < limit) {
+      handler.handle(Future.succeededFuture(next++));
+      return;
+    }
+
+    // queue the request and reserve a new block, if not already doing so
+    waiters.add(handler);
+    if (waiters.size() == 1) {
+      reserveBlock();
+    }
+  }
+
+  /**
+   * Allocates the specified number of unique identifiers.
+   *
+   * @param count   the number of identifiers to allocate
+   * @param handler the handler to be called with the allocated identifiers
+   */
+  void nextIds(final int count, final Handler<AsyncResult<long[]>> handler) {
+    nextIds(new long[count], 0, handler);
+  }
+
+  /**
+   * Fills the specified identifiers array, starting at the given index.
+   *
+   * @param ids     the identifiers array
+   * @param index   the index of the next identifier to allocate
+   * @param handler the handler to be called with the allocated identifiers
+   */
+  private void nextIds(final long[] ids, final int index,
+      final Handler<AsyncResult<long[]>> handler) {
+    if (index == ids.length) {
+      handler.handle(Future.succeededFuture(ids));
+      return;
+    }
+    nextId(idResult -> {
+      if (idResult.failed()) {
+        handler.handle(Future.failedFuture(idResult.cause()));
+        return;
+      }
+      ids[index] = idResult.result();
+      nextIds(ids, index + 1, handler);
+    });
+  }
+
+  /**
+   * Reserves a new block of identifiers from the database sequence and serves the waiting
+   * handlers.
+   */
+  private void reserveBlock() {
+    client.getConnection(PersistenceMetrics.timeConnection(connectionResult -> {
+      if (connectionResult.failed()) {
+        failWaiters(connectionResult.cause());
+        return;
+      }
+
+      final SQLConnection connection = connectionResult.result();
+      connection.query(NEXT_BLOCK_QUERY, PersistenceMetrics.timeStatement("next_id_block",
+          dbResult -> {
+            connection.close();
+            if (dbResult.failed()) {
+              failWaiters(dbResult.cause());
+              return;
+            }
+
+            // update the current block
+            next = dbResult.result().getResults().get(0).getLong(0);
+            limit = next + blockSize;
+            LOGGER.debug(String.format("reserved identifier block [%d, %d)", next, limit));
+
+            // serve the waiters with the new block, reserving another one if required
+            while (!waiters.isEmpty() && next < limit) {
+              waiters.poll().handle(Future.succeededFuture(next++));
+            }
+            if (!waiters.isEmpty()) {
+              reserveBlock();
+            }
+          }));
+    }));
+  }
+
+  /**
+   * Fails all the handlers waiting for a block reservation
+   *
+   * @param cause the failure cause
+   */
+  private void failWaiters(final Throwable cause) {
+    LOGGER.error("unable to reserve an identifier block", cause);
+    while (!waiters.isEmpty()) {
+      waiters.poll().handle(Future.failedFuture(cause));
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The identifier index of the {@link LogUrlStore}, which maps each identifier to the position of
+ * its record within the {@link UrlLog}. The index is a memory-mapped array of positions, indexed
+ * by identifier, preceded by a header:
+ * <pre>
+ *   [magic: long][checkpoint log length: long][checkpoint next identifier: long]
+ * </pre>
+ * The checkpoint is the log length up to which every record is durably indexed, hence only the
+ * records after it have to be replayed on recovery.
+ *
+ * This class is not thread-safe, except for {@link #force()}.
+ *
+ * @author David Silva
+ */
+final class IdIndex implements Closeable {
+
+  // the file magic number
+  private static final long MAGIC = 0x7573686f72747831L;
+  // the segment size, as a power of two (8 MiB, 1M identifiers)
+  private static final int SEGMENT_SHIFT = 23;
+  // the header size, in entries
+  private static final int HEADER_ENTRIES = 3;
+
+  // the mapped index file
+  private final MappedFile file;
+
+  /**
+   * Opens (or creates) the index file at the specified path
+   *
+   * @param path the index file path
+   * @throws IOException if the file cannot be opened or is not an index file
+   */
+  IdIndex(final Path path) throws IOException {
+    file = new MappedFile(path, SEGMENT_SHIFT);
+    final long magic = file.getLong(0);
+    if (magic == 0) {
+      file.putLong(0, MAGIC);
+    } else if (magic != MAGIC) {
+      file.close();
+      throw new IOException("not an identifier index file: " + path);
+    }
+  }
+
+  /**
+   * Returns the log length of the last checkpoint
+   *
+   * @return the checkpoint log length
+   * @throws IOException if the header cannot be read
+   */
+  long checkpointLength() throws IOException {
+    return file.getLong(Long.BYTES);
+  }
+
+  /**
+   * Returns the next identifier at the last checkpoint
+   *
+   * @return the checkpoint next identifier
+   * @throws IOException if the header cannot be read
+   */
+  long checkpointNextId() throws IOException {
+    return file.getLong(2 * Long.BYTES);
+  }
+
+  /**
+   * Records a checkpoint. The log and the index must be durable up to the checkpoint beforehand.
+   *
+   * @param logLength the durable log length
+   * @param nextId    the next identifier after the durable records
+   * @throws IOException if the header cannot be written
+   */
+  void checkpoint(final long logLength, final long nextId) throws IOException {
+    file.putLong(Long.BYTES, logLength);
+    file.putLong(2 * Long.BYTES, nextId);
+  }
+
+  /**
+   * Returns the record position of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the record position, or {@code -1} if the identifier is not indexed
+   * @throws IOException if the entry cannot be read
+   */
+  long get(final long id) throws IOException {
+    return file.getLong(entry(id)) - 1;
+  }
+
+  /**
+   * Indexes the record position of the specified identifier
+   *
+   * @param id       the url identifier
+   * @param position the record position
+   * @throws IOException if the entry cannot be written
+   */
+  void put(final long id, final long position) throws IOException {
+    // zero marks the absent entries
+    file.putLong(entry(id), position + 1);
+  }
+
+  /**
+   * Returns the entry position of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the entry position
+   */
+  private static long entry(final long id) {
+    return (id + HEADER_ENTRIES) * Long.BYTES;
+  }
+
+  /**
+   * Flushes the index changes to the storage device
+   */
+  void force() {
+    file.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
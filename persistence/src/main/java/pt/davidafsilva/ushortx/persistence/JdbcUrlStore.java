@@ -0,0 +1,817 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import io.vertx.ext.sql.UpdateResult;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The JDBC backed url store, with the url mappings at the {@code urls} table. The single
+ * statement operations either check out a pooled connection per request or, if enabled, run on
+ * the {@link PinnedConnection} of the store.
+ *
+ * The schema statements (e.g. {@code IF NOT EXISTS}, {@code MERGE ... KEY} and the sequence) are
+ * specific to H2, hence the store only supports H2 databases. The read replicas only run plain
+ * queries.
+ *
+ * @author David Silva
+ */
+final class JdbcUrlStore implements UrlStore {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(JdbcUrlStore.class);
+
+  // the prefix of the supported database urls
+  private static final String H2_URL_PREFIX = "jdbc:h2:";
+
+  // the findById query
+  private static final String FIND_BY_ID_QUERY = "SELECT ID,URL FROM urls WHERE id=?";
+  // the findByDigest query
+  static final String FIND_BY_DIGEST_QUERY = "SELECT ID,URL FROM urls WHERE DIGEST=?";
+  // the insertUrl update statement
+  static final String INSERT_URL_STATEMENT =
+      "INSERT INTO URLS(ID,DIGEST,URL) VALUES(?,?,?)";
+  // the identifiers query, in ascending order
+  private static final String IDS_QUERY = "SELECT ID FROM urls WHERE ID>=? ORDER BY ID LIMIT ?";
+  // the most recent urls query, newest first
+  private static final String RECENT_QUERY = "SELECT ID,URL FROM urls ORDER BY ID DESC LIMIT ?";
+  // the max identifier query
+  private static final String MAX_ID_QUERY = "SELECT MAX(ID) FROM urls";
+  // the create table statement: the urls are unique by digest, see UrlDigest
+  private static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS urls(" +
+      "ID BIGINT NOT NULL PRIMARY KEY, " +
+      "DIGEST BIGINT, " +
+      "URL VARCHAR NOT NULL )";
+  // the create digest index statement
+  private static final String CREATE_DIGEST_INDEX_STATEMENT =
+      "CREATE UNIQUE INDEX IF NOT EXISTS URLS_DIGEST_IDX ON urls(DIGEST)";
+  // the digest column query, which is absent from the tables created before the digests
+  private static final String DIGEST_COLUMN_QUERY = "SELECT COUNT(*) " +
+      "FROM INFORMATION_SCHEMA.COLUMNS " +
+      "WHERE TABLE_SCHEMA=SCHEMA() AND TABLE_NAME='URLS' AND COLUMN_NAME='DIGEST'";
+  // the migration statements of the tables created before the digests
+  private static final String ADD_DIGEST_COLUMN_STATEMENT =
+      "ALTER TABLE urls ADD COLUMN IF NOT EXISTS DIGEST BIGINT";
+  private static final String URL_CONSTRAINTS_QUERY = "SELECT CONSTRAINT_NAME " +
+      "FROM INFORMATION_SCHEMA.CONSTRAINTS " +
+      "WHERE TABLE_SCHEMA=SCHEMA() AND TABLE_NAME='URLS' AND CONSTRAINT_TYPE='UNIQUE' " +
+      "AND COLUMN_LIST='URL'";
+  private static final String DROP_CONSTRAINT_STATEMENT = "ALTER TABLE urls DROP CONSTRAINT %s";
+  private static final String ALTER_URL_COLUMN_STATEMENT =
+      "ALTER TABLE urls ALTER COLUMN URL VARCHAR NOT NULL";
+  // the urls without digest query, in ascending order of identifier
+  private static final String MISSING_DIGESTS_QUERY =
+      "SELECT ID,URL FROM urls WHERE DIGEST IS NULL AND ID>? ORDER BY ID LIMIT ?";
+  // the set digest update statement
+  private static final String SET_DIGEST_STATEMENT = "UPDATE urls SET DIGEST=? WHERE ID=?";
+  // the create migrations table statement, with a row per completed data migration
+  private static final String CREATE_MIGRATIONS_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " +
+      "migrations(NAME VARCHAR(64) NOT NULL PRIMARY KEY)";
+  // the find migration query
+  private static final String FIND_MIGRATION_QUERY = "SELECT NAME FROM migrations WHERE NAME=?";
+  // the insert migration statement, which ignores an already completed migration
+  private static final String INSERT_MIGRATION_STATEMENT = "MERGE INTO migrations(NAME) " +
+      "KEY(NAME) VALUES(?)";
+  // the name of the url digests migration
+  private static final String DIGESTS_MIGRATION = "url_digests";
+  // the create clicks table statement
+  private static final String CREATE_CLICKS_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " +
+      "clicks(ID BIGINT NOT NULL PRIMARY KEY, CLICKS BIGINT NOT NULL)";
+  // the add clicks statement format (the rows of clicks to add), which ignores unknown urls
+  private static final String ADD_CLICKS_STATEMENT = "MERGE INTO clicks(ID,CLICKS) KEY(ID) " +
+      "SELECT U.ID, COALESCE(C.CLICKS,0)+V.CLICKS " +
+      "FROM (SELECT CAST(? AS BIGINT) ID, CAST(? AS BIGINT) CLICKS%s) V " +
+      "JOIN urls U ON U.ID=V.ID LEFT JOIN clicks C ON C.ID=V.ID";
+  // the additional rows of clicks to add
+  private static final String ADD_CLICKS_ROW = " UNION ALL SELECT ?,?";
+  // the find clicks query, with a null count for the urls that were never clicked
+  private static final String FIND_CLICKS_QUERY =
+      "SELECT C.CLICKS FROM urls U LEFT JOIN clicks C ON C.ID=U.ID WHERE U.ID=?";
+
+  // the create epoch table statement, a single row table
+  private static final String CREATE_EPOCH_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS " +
+      "epoch(ID INT NOT NULL PRIMARY KEY, EPOCH BIGINT NOT NULL)";
+  // the insert epoch statement, which fails if concurrently inserted
+  private static final String INSERT_EPOCH_STATEMENT =
+      "INSERT INTO epoch(ID,EPOCH) SELECT 0,? FROM DUAL WHERE NOT EXISTS (SELECT * FROM epoch)";
+  // the find epoch query
+  private static final String FIND_EPOCH_QUERY = "SELECT EPOCH FROM epoch WHERE ID=0";
+
+  // the max. number of digests probed for an url, see insertUrl
+  static final int MAX_DIGEST_PROBES = 8;
+  // the number of urls read at once while computing the missing digests
+  private static final int DIGESTS_PAGE_SIZE = 1_000;
+  // the max. number of identifiers whose clicks are added at once
+  private static final int CLICKS_ROWS = 500;
+
+  // the database client
+  private final JDBCClient client;
+  // the number of identifiers reserved at once
+  private final int idBlockSize;
+  // the identifier allocator
+  private final IdAllocator idAllocator;
+  // the save batcher, if batching is enabled
+  private final Optional<SaveBatcher> saveBatcher;
+  // the pinned connection, if enabled
+  private final Optional<PinnedConnection> pinnedConnection;
+  // the read replicas, if any
+  private final Optional<ReadReplicas> replicas;
+  // the store epoch, resolved once opened
+  private long epoch;
+
+  /**
+   * Creates a new JDBC store based on the specified verticle configuration
+   *
+   * @param vertx     the vertx instance
+   * @param config    the verticle configuration
+   * @param shard     the shard of the store, which has its own data source
+   * @param admission the admission control of the save batches
+   * @throws IllegalArgumentException if the database is not an H2 one
+   */
+  JdbcUrlStore(final Vertx vertx, final JsonObject config, final Shard shard,
+      final AdmissionControl admission) {
+    // create the database client, the schema statements are specific to H2
+    final JsonObject dataSourceConfig = dataSourceConfig(config, shard);
+    if (!dataSourceConfig.getString("url").startsWith(H2_URL_PREFIX)) {
+      throw new IllegalArgumentException("unsupported database, the jdbc store requires H2: " +
+          dataSourceConfig.getString("url"));
+    }
+    client = JDBCClient.createShared(vertx, dataSourceConfig, shard.qualify("ushortx-ds"));
+
+    // create the pinned connection, if enabled
+    pinnedConnection = config.getBoolean("pinned_connection", false)
+        ? Optional.of(new PinnedConnection(vertx, client,
+        config.getLong("pinned_health_check_interval", 5_000L)))
+        : Optional.empty();
+
+    // create the read replicas, if any
+    replicas = ReadReplicas.fromConfig(vertx, config, shard);
+
+    // create the identifier allocator
+    idBlockSize = config.getInteger("id_block_size", 100);
+    idAllocator = new IdAllocator(client, idBlockSize);
+
+    // create the save batcher, if enabled
+    final int batchSize = config.getInteger("batch_size", 0);
+    saveBatcher = batchSize <= 1 ? Optional.empty() : Optional.of(new SaveBatcher(vertx, client,
+        idAllocator, admission, this::insertUrl, batchSize, config.getLong("batch_linger", 5L),
+        config.getInteger("batch_max_in_flight", 4)));
+  }
+
+  /**
+   * Creates the data source configuration of the specified shard, based on the given verticle
+   * configuration
+   *
+   * @param config the verticle configuration
+   * @param shard  the shard of the store
+   * @return the data source configuration
+   */
+  static JsonObject dataSourceConfig(final JsonObject config, final Shard shard) {
+    return new JsonObject()
+        .put("url", config.getString("url",
+            "jdbc:h2:mem:" + shard.qualify("ushortx") + "?DB_CLOSE_DELAY=-1"))
+        .put("driver_class", config.getString("driver_class", "org.h2.Driver"))
+        .put("user", config.getString("user", "ushortx"))
+        .put("password", config.getString("password", "shall-not-be-used"))
+        .put("max_pool_size", config.getInteger("max_pool_size", 20))
+        .put("max_statements_per_connection", config.getInteger("statement_cache_size", 32));
+  }
+
+  @Override
+  public void open(final Handler<AsyncResult<Void>> readyHandler) {
+    createTableStructure(readyHandler);
+  }
+
+  /**
+   * Connects to the database and calls the specified handler with a pooled connection. Connection
+   * failures are reported to the given failure handler.
+   *
+   * @param successHandler the success handler
+   * @param failureHandler the failure handler
+   * @param <T>            the result type of the failure handler
+   */
+  private <T> void connect(final Handler<SQLConnection> successHandler,
+      final Handler<AsyncResult<T>> failureHandler) {
+    client.getConnection(PersistenceMetrics.timeConnection(
+        connectionHandler(successHandler, failureHandler)));
+  }
+
+  /**
+   * Calls the specified handler with the pinned connection, if enabled, or a pooled connection
+   * otherwise. The connection shall be given back with {@link #release(SQLConnection,
+   * AsyncResult)}.
+   *
+   * @param successHandler the success handler
+   * @param failureHandler the failure handler
+   * @param <T>            the result type of the failure handler
+   */
+  private <T> void acquire(final Handler<SQLConnection> successHandler,
+      final Handler<AsyncResult<T>> failureHandler) {
+    if (pinnedConnection.isPresent()) {
+      pinnedConnection.get().get(connectionHandler(successHandler, failureHandler));
+    } else {
+      connect(successHandler, failureHandler);
+    }
+  }
+
+  /**
+   * Creates the handler of a connection attempt
+   *
+   * @param successHandler the success handler
+   * @param failureHandler the failure handler
+   * @param <T>            the result type of the failure handler
+   * @return the connection handler
+   */
+  private static <T> Handler<AsyncResult<SQLConnection>> connectionHandler(
+      final Handler<SQLConnection> successHandler, final Handler<AsyncResult<T>> failureHandler) {
+    return result -> {
+      if (result.succeeded()) {
+        successHandler.handle(result.result());
+      } else {
+        LOGGER.error("unable to obtain a database connection", result.cause());
+        failureHandler.handle(Future.failedFuture(StoreException.unavailable(result.cause())));
+      }
+    };
+  }
+
+  /**
+   * Gives back a connection obtained with {@link #acquire(Handler, Handler)}: a pooled connection
+   * is closed, while the pinned connection is kept and health checked if the operation failed.
+   *
+   * @param connection the connection to release
+   * @param result     the result of the operation
+   */
+  private void release(final SQLConnection connection, final AsyncResult<?> result) {
+    if (!pinnedConnection.isPresent()) {
+      connection.close();
+    } else if (result.failed()) {
+      pinnedConnection.get().check();
+    }
+  }
+
+  /**
+   * Creates the necessary data structure (tables and sequences) that are required for the
+   * store, migrating the tables created before the url digests.
+   *
+   * @param readyHandler the handler to be called whenever the data structure is created, or
+   *                     failed if we reach a state of no recovery
+   */
+  private void createTableStructure(final Handler<AsyncResult<Void>> readyHandler) {
+    connect(connection -> {
+      LOGGER.info("creating database structure..");
+      final Handler<Throwable> failureHandler = cause -> {
+        LOGGER.error("unable to create database structure", cause);
+        connection.close();
+        readyHandler.handle(Future.failedFuture(cause));
+      };
+
+      // create the tables, migrate the urls table if required and index the digests
+      executeAll(connection,
+          Arrays.asList(CREATE_TABLE_STATEMENT, CREATE_CLICKS_TABLE_STATEMENT,
+              CREATE_EPOCH_TABLE_STATEMENT, CREATE_MIGRATIONS_TABLE_STATEMENT).iterator(),
+          failureHandler, () -> migrateTable(connection, failureHandler, () ->
+              connection.execute(CREATE_DIGEST_INDEX_STATEMENT, indexResult -> {
+                if (indexResult.failed()) {
+                  failureHandler.handle(indexResult.cause());
+                  return;
+                }
+                migrateDigests(connection, failureHandler, () ->
+                    createSequence(connection, failureHandler, () ->
+                        resolveEpoch(connection, failureHandler, () -> {
+                          connection.close();
+                          readyHandler.handle(Future.succeededFuture());
+                        })));
+              })));
+    }, readyHandler);
+  }
+
+  /**
+   * Migrates the table created before the url digests, if that is the case: the digest column
+   * is added and the url is no longer limited nor unique. The digests are computed afterwards,
+   * once indexed.
+   *
+   * @param connection     the connection in use
+   * @param failureHandler the handler of a migration failure
+   * @param doneHandler    the handler to be called once migrated
+   */
+  private static void migrateTable(final SQLConnection connection,
+      final Handler<Throwable> failureHandler, final Runnable doneHandler) {
+    connection.query(DIGEST_COLUMN_QUERY, columnResult -> {
+      if (columnResult.failed()) {
+        failureHandler.handle(columnResult.cause());
+        return;
+      }
+      if (columnResult.result().getResults().get(0).getLong(0) > 0) {
+        doneHandler.run();
+        return;
+      }
+
+      LOGGER.info("migrating the urls table to url digests..");
+      connection.execute(ADD_DIGEST_COLUMN_STATEMENT, columnAdded -> {
+        if (columnAdded.failed()) {
+          failureHandler.handle(columnAdded.cause());
+          return;
+        }
+        connection.query(URL_CONSTRAINTS_QUERY, constraintsResult -> {
+          if (constraintsResult.failed()) {
+            failureHandler.handle(constraintsResult.cause());
+            return;
+          }
+          final List<String> statements = constraintsResult.result().getResults().stream()
+              .map(row -> String.format(DROP_CONSTRAINT_STATEMENT, row.getString(0)))
+              .collect(Collectors.toList());
+          statements.add(ALTER_URL_COLUMN_STATEMENT);
+          executeAll(connection, statements.iterator(), failureHandler, doneHandler);
+        });
+      });
+    });
+  }
+
+  /**
+   * Executes the specified statements, in order
+   *
+   * @param connection     the connection in use
+   * @param statements     the statements to execute
+   * @param failureHandler the handler of a statement failure
+   * @param doneHandler    the handler to be called once every statement is executed
+   */
+  private static void executeAll(final SQLConnection connection,
+      final Iterator<String> statements, final Handler<Throwable> failureHandler,
+      final Runnable doneHandler) {
+    if (!statements.hasNext()) {
+      doneHandler.run();
+      return;
+    }
+    connection.execute(statements.next(), result -> {
+      if (result.failed()) {
+        failureHandler.handle(result.cause());
+      } else {
+        executeAll(connection, statements, failureHandler, doneHandler);
+      }
+    });
+  }
+
+  /**
+   * Computes the digest of the migrated urls, unless already done, recording the migration as
+   * completed afterwards. The urls left without digest (i.e. duplicates) are not probed again.
+   *
+   * @param connection     the connection in use
+   * @param failureHandler the handler of a failure
+   * @param doneHandler    the handler to be called once the digests are computed
+   */
+  private static void migrateDigests(final SQLConnection connection,
+      final Handler<Throwable> failureHandler, final Runnable doneHandler) {
+    final JsonArray migration = new JsonArray().add(DIGESTS_MIGRATION);
+    connection.queryWithParams(FIND_MIGRATION_QUERY, migration, migrationResult -> {
+      if (migrationResult.failed()) {
+        failureHandler.handle(migrationResult.cause());
+        return;
+      }
+      if (migrationResult.result().getNumRows() > 0) {
+        doneHandler.run();
+        return;
+      }
+      computeMissingDigests(connection, 0, failureHandler, () ->
+          connection.updateWithParams(INSERT_MIGRATION_STATEMENT, migration, insertResult -> {
+            if (insertResult.failed()) {
+              failureHandler.handle(insertResult.cause());
+            } else {
+              LOGGER.info("url digests migration completed");
+              doneHandler.run();
+            }
+          }));
+    });
+  }
+
+  /**
+   * Computes the digest of the urls without one (i.e. migrated), in pages of ascending
+   * identifier. The urls that are equivalent to an already digested url are left without
+   * digest, as the duplicates they are.
+   *
+   * @param connection     the connection in use
+   * @param after          the identifier after which the page starts
+   * @param failureHandler the handler of a failure
+   * @param doneHandler    the handler to be called once every url is digested
+   */
+  private static void computeMissingDigests(final SQLConnection connection, final long after,
+      final Handler<Throwable> failureHandler, final Runnable doneHandler) {
+    connection.queryWithParams(MISSING_DIGESTS_QUERY,
+        new JsonArray().add(after).add(DIGESTS_PAGE_SIZE), pageResult -> {
+          if (pageResult.failed()) {
+            failureHandler.handle(pageResult.cause());
+            return;
+          }
+          final List<JsonArray> rows = pageResult.result().getResults();
+          if (rows.isEmpty()) {
+            doneHandler.run();
+            return;
+          }
+          LOGGER.info(String.format("computing the digests of %d urls after %d", rows.size(),
+              after));
+          computeDigests(connection, rows.iterator(), failureHandler, () -> {
+            final long last = rows.get(rows.size() - 1).getLong(0);
+            computeMissingDigests(connection, last, failureHandler, doneHandler);
+          });
+        });
+  }
+
+  /**
+   * Computes the digest of each of the specified url rows
+   *
+   * @param connection     the connection in use
+   * @param rows           the (identifier, url) rows
+   * @param failureHandler the handler of a failure
+   * @param doneHandler    the handler to be called once every url is digested
+   */
+  private static void computeDigests(final SQLConnection connection,
+      final Iterator<JsonArray> rows, final Handler<Throwable> failureHandler,
+      final Runnable doneHandler) {
+    if (!rows.hasNext()) {
+      doneHandler.run();
+      return;
+    }
+    final JsonArray row = rows.next();
+    final long id = row.getLong(0);
+    final String normalizedUrl = Urls.normalize(row.getString(1));
+    probeDigest(connection, normalizedUrl, 0,
+        (digest, handler) -> connection.updateWithParams(SET_DIGEST_STATEMENT,
+            new JsonArray().add(digest).add(id), handler),
+        result -> {
+          if (result.failed() && !(result.cause() instanceof StoreException)) {
+            failureHandler.handle(result.cause());
+          } else {
+            // a duplicate (or an unresolvable collision) is left without digest
+            computeDigests(connection, rows, failureHandler, doneHandler);
+          }
+        });
+  }
+
+  /**
+   * Creates the identifier sequence, starting after any pre-existing identifier
+   *
+   * @param connection     the connection in use
+   * @param failureHandler the handler of a failure
+   * @param doneHandler    the handler to be called once the sequence is created
+   */
+  private void createSequence(final SQLConnection connection,
+      final Handler<Throwable> failureHandler, final Runnable doneHandler) {
+    // the sequence must start after any pre-existing identifier
+    connection.query(MAX_ID_QUERY, maxResult -> {
+      if (maxResult.failed()) {
+        failureHandler.handle(maxResult.cause());
+        return;
+      }
+      final Long maxId = maxResult.result().getResults().get(0).getLong(0);
+      final long startId = maxId == null ? 1 : maxId + 1;
+
+      // create the identifier sequence and make sure its increment matches the block size
+      executeAll(connection, Arrays.asList(
+          String.format(IdAllocator.CREATE_SEQUENCE_STATEMENT, startId, idBlockSize),
+          String.format(IdAllocator.ALTER_SEQUENCE_STATEMENT, idBlockSize)).iterator(),
+          failureHandler, doneHandler);
+    });
+  }
+
+  /**
+   * Resolves the store epoch, which is generated by the first store to open the database
+   *
+   * @param connection     the connection in use
+   * @param failureHandler the handler of a failure
+   * @param doneHandler    the handler to be called once the epoch is resolved
+   */
+  private void resolveEpoch(final SQLConnection connection,
+      final Handler<Throwable> failureHandler, final Runnable doneHandler) {
+    // a concurrent insert fails, in which case the inserted epoch is used
+    connection.updateWithParams(INSERT_EPOCH_STATEMENT,
+        new JsonArray().add(ThreadLocalRandom.current().nextLong()),
+        insertResult -> connection.query(FIND_EPOCH_QUERY, epochResult -> {
+          if (epochResult.failed() || epochResult.result().getNumRows() == 0) {
+            failureHandler.handle(epochResult.failed() ? epochResult.cause()
+                : insertResult.cause());
+            return;
+          }
+          epoch = epochResult.result().getResults().get(0).getLong(0);
+          doneHandler.run();
+        }));
+  }
+
+  @Override
+  public void findById(final long id, final Handler<AsyncResult<Optional<String>>> handler) {
+    if (!replicas.isPresent()) {
+      findByIdOnPrimary(id, handler);
+      return;
+    }
+
+    // a replica miss may be due to the replication lag, fall back to the primary
+    replicas.get().find("find_by_id_replica", FIND_BY_ID_QUERY, new JsonArray().add(id),
+        row -> {
+          if (row.isPresent()) {
+            handler.handle(Future.succeededFuture(Optional.of(row.get().getString("URL"))));
+          } else {
+            findByIdOnPrimary(id, handler);
+          }
+        });
+  }
+
+  /**
+   * Looks up the url of the specified identifier at the primary database
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the url, if existent
+   */
+  private void findByIdOnPrimary(final long id,
+      final Handler<AsyncResult<Optional<String>>> handler) {
+    acquire(connection -> connection.queryWithParams(FIND_BY_ID_QUERY,
+        new JsonArray().add(id), PersistenceMetrics.timeStatement("find_by_id",
+            findResultHandler(connection, handler, row -> row.getString("URL")))), handler);
+  }
+
+  @Override
+  public void save(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+    // either batch the request or insert it right away
+    if (saveBatcher.isPresent()) {
+      saveBatcher.get().add(url, handler);
+    } else {
+      insertUrl(url, handler);
+    }
+  }
+
+  @Override
+  public boolean batchesSaves() {
+    return saveBatcher.isPresent();
+  }
+
+  /**
+   * Inserts at the database the specified url, if non-existent. Otherwise the equivalent entry
+   * is used.
+   *
+   * @param url     the url to insert
+   * @param handler the handler to be called with the identifier and url of the stored entry
+   */
+  private void insertUrl(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+    // allocate the identifier before holding a connection
+    idAllocator.nextId(idResult -> {
+      if (idResult.failed()) {
+        handler.handle(Future.failedFuture(StoreException.unavailable(idResult.cause())));
+        return;
+      }
+
+      acquire(connection -> {
+        // insert with the first free digest of the url, unless already there
+        final long id = idResult.result();
+        probeDigest(connection, Urls.normalize(url), 0,
+            (digest, insertHandler) -> connection.updateWithParams(INSERT_URL_STATEMENT,
+                new JsonArray().add(id).add(digest).add(url),
+                PersistenceMetrics.timeStatement("insert", insertHandler)),
+            result -> {
+              release(connection, result);
+              if (result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+              } else {
+                handler.handle(Future.succeededFuture(result.result()
+                    .orElseGet(() -> new UrlReply(id, url))));
+              }
+            });
+      }, handler);
+    });
+  }
+
+  /**
+   * Writes a row of the specified normalized url with the url digest, or the next one (and so
+   * on) whenever the digest is taken by a distinct url. Since the digests are unique, an
+   * equivalent url being there already is found at the digest that failed the write.
+   *
+   * @param connection    the connection in use
+   * @param normalizedUrl the normalized url
+   * @param probe         the number of digests already probed
+   * @param writer        the writer of the row with a given digest
+   * @param handler       the handler to be called with the entry of the equivalent url, if
+   *                      any, or failed if the row cannot be written
+   */
+  static void probeDigest(final SQLConnection connection, final String normalizedUrl,
+      final int probe,
+      final BiConsumer<Long, Handler<AsyncResult<UpdateResult>>> writer,
+      final Handler<AsyncResult<Optional<UrlReply>>> handler) {
+    final long digest = UrlDigest.digest(normalizedUrl) + probe;
+    writer.accept(digest, writeResult -> {
+      if (writeResult.succeeded()) {
+        LOGGER.debug("write statement result: " + writeResult.result().toJson());
+        handler.handle(writeResult.result().getUpdated() == 1
+            ? Future.succeededFuture(Optional.empty())
+            : Future.failedFuture(StoreException.storageError(null)));
+        return;
+      }
+
+      // most likely a taken digest, either by an equivalent url or by a collision
+      connection.queryWithParams(FIND_BY_DIGEST_QUERY, new JsonArray().add(digest),
+          PersistenceMetrics.timeStatement("find_by_digest", queryResult -> {
+            if (queryResult.failed()) {
+              handler.handle(Future.failedFuture(
+                  StoreException.storageError(queryResult.cause())));
+            } else if (queryResult.result().getNumRows() == 0) {
+              handler.handle(Future.failedFuture(writeResult.cause()));
+            } else {
+              final JsonArray row = queryResult.result().getResults().get(0);
+              if (normalizedUrl.equals(Urls.normalize(row.getString(1)))) {
+                handler.handle(Future.succeededFuture(Optional.of(
+                    new UrlReply(row.getLong(0), row.getString(1)))));
+              } else if (probe + 1 < MAX_DIGEST_PROBES) {
+                probeDigest(connection, normalizedUrl, probe + 1, writer, handler);
+              } else {
+                handler.handle(Future.failedFuture(StoreException.storageError(
+                    writeResult.cause())));
+              }
+            }
+          }));
+    });
+  }
+
+  /**
+   * Creates the result handler of a find query, which completes the given handler with the
+   * value extracted from the single result row, if any, and releases the connection
+   *
+   * @param connection the connection in use
+   * @param handler    the handler to be called with the extracted value
+   * @param extractor  the row value extractor
+   * @param <T>        the value type
+   * @return the result handler
+   */
+  private <T> Handler<AsyncResult<ResultSet>> findResultHandler(
+      final SQLConnection connection, final Handler<AsyncResult<Optional<T>>> handler,
+      final Function<JsonObject, T> extractor) {
+    return dbResult -> {
+      release(connection, dbResult);
+      if (dbResult.succeeded()) {
+        LOGGER.debug("find query results: " + dbResult.result().getRows());
+        handler.handle(Future.succeededFuture(dbResult.result().getNumRows() == 1
+            ? Optional.of(extractor.apply(dbResult.result().getRows().get(0)))
+            : Optional.empty()));
+      } else {
+        handler.handle(Future.failedFuture(StoreException.storageError(dbResult.cause())));
+      }
+    };
+  }
+
+  @Override
+  public void findIds(final long from, final int limit,
+      final Handler<AsyncResult<List<Long>>> handler) {
+    acquire(connection -> connection.queryWithParams(IDS_QUERY,
+        new JsonArray().add(from).add(limit), PersistenceMetrics.timeStatement("find_ids",
+            dbResult -> {
+              release(connection, dbResult);
+              if (dbResult.failed()) {
+                handler.handle(Future.failedFuture(StoreException.storageError(dbResult.cause())));
+                return;
+              }
+              handler.handle(Future.succeededFuture(dbResult.result().getResults().stream()
+                  .map(row -> row.getLong(0))
+                  .collect(Collectors.toList())));
+            })), handler);
+  }
+
+  @Override
+  public void findRecent(final int limit, final Handler<AsyncResult<Map<Long, String>>> handler) {
+    acquire(connection -> connection.queryWithParams(RECENT_QUERY,
+        new JsonArray().add(limit), PersistenceMetrics.timeStatement("find_recent",
+            dbResult -> {
+              release(connection, dbResult);
+              if (dbResult.failed()) {
+                handler.handle(Future.failedFuture(StoreException.storageError(dbResult.cause())));
+                return;
+              }
+              final Map<Long, String> urls = new LinkedHashMap<>();
+              dbResult.result().getResults().forEach(row -> urls.put(row.getLong(0),
+                  row.getString(1)));
+              handler.handle(Future.succeededFuture(urls));
+            })), handler);
+  }
+
+  @Override
+  public void recordClicks(final long[] ids, final long[] clicks,
+      final Handler<AsyncResult<Void>> handler) {
+    acquire(connection -> addClicks(connection, ids, clicks, 0, result -> {
+      release(connection, result);
+      handler.handle(result);
+    }), handler);
+  }
+
+  /**
+   * Adds the clicks of the specified identifiers, starting at the given offset, with one
+   * statement per {@link #CLICKS_ROWS} identifiers
+   *
+   * @param connection the connection in use
+   * @param ids        the url identifiers
+   * @param clicks     the number of clicks to add to each identifier
+   * @param offset     the offset of the first identifier to add
+   * @param handler    the handler to be called once every identifier is added
+   */
+  private static void addClicks(final SQLConnection connection, final long[] ids,
+      final long[] clicks, final int offset, final Handler<AsyncResult<Void>> handler) {
+    if (offset >= ids.length) {
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+
+    final int rows = Math.min(CLICKS_ROWS, ids.length - offset);
+    final JsonArray params = new JsonArray();
+    final StringBuilder additionalRows = new StringBuilder();
+    for (int i = offset; i < offset + rows; i++) {
+      params.add(ids[i]).add(clicks[i]);
+      if (i > offset) {
+        additionalRows.append(ADD_CLICKS_ROW);
+      }
+    }
+    connection.updateWithParams(String.format(ADD_CLICKS_STATEMENT, additionalRows), params,
+        PersistenceMetrics.timeStatement("add_clicks", result -> {
+          if (result.failed()) {
+            handler.handle(Future.failedFuture(StoreException.storageError(result.cause())));
+          } else {
+            addClicks(connection, ids, clicks, offset + rows, handler);
+          }
+        }));
+  }
+
+  @Override
+  public void findClicks(final long id, final Handler<AsyncResult<Optional<Long>>> handler) {
+    acquire(connection -> connection.queryWithParams(FIND_CLICKS_QUERY,
+        new JsonArray().add(id), PersistenceMetrics.timeStatement("find_clicks",
+            findResultHandler(connection, handler, row -> Optional.ofNullable(
+                row.getLong("CLICKS")).orElse(0L)))), handler);
+  }
+
+  @Override
+  public long epoch() {
+    return epoch;
+  }
+
+  @Override
+  public JsonObject stats() {
+    final JsonObject stats = new JsonObject()
+        .put("batch_sizes", saveBatcher.map(SaveBatcher::batchSizes).orElse(new JsonObject()));
+    pinnedConnection.ifPresent(pinned -> stats.put("pinned_reconnects", pinned.reconnects()));
+    return stats;
+  }
+
+  @Override
+  public void close(final Handler<AsyncResult<Void>> closeHandler) {
+    // the batches being written complete before their client is closed
+    final Handler<Void> closeClients = v -> {
+      pinnedConnection.ifPresent(PinnedConnection::close);
+      replicas.ifPresent(ReadReplicas::close);
+      client.close();
+      closeHandler.handle(Future.succeededFuture());
+    };
+    if (saveBatcher.isPresent()) {
+      saveBatcher.get().close(closeClients);
+    } else {
+      closeClients.handle(null);
+    }
+  }
+}
@@ -0,0 +1,554 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The embedded, log-structured, url store. The urls are appended to a {@link UrlLog} and
+ * indexed by identifier ({@link IdIndex}) and by digest ({@link DigestIndex}), all of which are
+ * memory-mapped files within the storage directory. The click counts are kept at a
+ * {@link ClickIndex}. The identifiers are allocated sequentially,
+ * hence the lookups are served straight from the mapped files, within the verticle context.
+ *
+ * The files are flushed to the storage device according to the fsync policy:
+ * <ul>
+ * <li>{@code always}: the saves are only acknowledged once flushed, with the concurrent saves
+ * sharing the same flush</li>
+ * <li>{@code interval}: the files are flushed periodically, hence the saves acknowledged since
+ * the last flush are lost on a system crash</li>
+ * <li>{@code never}: the files are flushed by the operating system, and when closed</li>
+ * </ul>
+ * The click counts are always flushed periodically, as with {@code interval}, unless the policy is
+ * {@code never}. The flushes run on a worker thread. Each flush records a checkpoint, after which
+ * the log is replayed on recovery, discarding any partially written record.
+ *
+ * @author David Silva
+ */
+final class LogUrlStore implements UrlStore {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogUrlStore.class);
+
+  // the first allocated identifier
+  private static final long FIRST_ID = 1;
+
+  /**
+   * The fsync policies
+   */
+  private enum FsyncPolicy {
+    ALWAYS, INTERVAL, NEVER
+  }
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the storage directory
+  private final Path directory;
+  // the fsync policy
+  private final FsyncPolicy fsyncPolicy;
+  // the fsync interval, in milliseconds
+  private final long fsyncInterval;
+  // the expected number of urls, used for sizing a new digest index
+  private final long expectedUrls;
+
+  // the storage directory lock
+  private FileChannel lockChannel;
+  private FileLock lock;
+  // the data file
+  private UrlLog log;
+  // the identifier index
+  private IdIndex ids;
+  // the digest index
+  private DigestIndex digests;
+  // the click counts
+  private ClickIndex clicks;
+  // whether or not there are clicks to flush
+  private boolean clicksDirty;
+  // the next identifier to allocate
+  private long nextId = FIRST_ID;
+  // the identifiers below this one are durable
+  private long durableId = FIRST_ID;
+  // the periodic fsync timer, if any
+  private Optional<Long> fsyncTimer = Optional.empty();
+  // whether or not a flush is running
+  private boolean syncing;
+  // the acknowledgements waiting for the next flush
+  private List<Runnable> pendingAcks = new ArrayList<>();
+  // whether or not the digest index is growing
+  private boolean growing;
+  // the saves waiting for the digest index to grow
+  private List<Handler<AsyncResult<Void>>> growWaiters = new ArrayList<>();
+  // the number of flushes
+  private long syncs;
+  // the store epoch
+  private long epoch;
+  // the handler to be called once closed, set while closing
+  private Optional<Handler<AsyncResult<Void>>> closeHandler = Optional.empty();
+
+  /**
+   * Creates a new log store based on the specified verticle configuration
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @param shard  the shard of the store, which has its own storage directory
+   */
+  LogUrlStore(final Vertx vertx, final JsonObject config, final Shard shard) {
+    this.vertx = vertx;
+    this.directory = Paths.get(shard.qualify(config.getString("storage_path", "ushortx-data")));
+    this.fsyncPolicy = FsyncPolicy.valueOf(config.getString("storage_fsync", "interval")
+        .toUpperCase());
+    this.fsyncInterval = config.getLong("storage_fsync_interval", 1_000L);
+    this.expectedUrls = config.getLong("storage_expected_urls", 1_000_000L);
+  }
+
+  @Override
+  public void open(final Handler<AsyncResult<Void>> readyHandler) {
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        recover();
+        future.complete();
+      } catch (final IOException | RuntimeException e) {
+        LOGGER.error("unable to open the storage at " + directory, e);
+        future.fail(e);
+      }
+    }, result -> {
+      if (result.succeeded() && fsyncPolicy != FsyncPolicy.NEVER) {
+        fsyncTimer = Optional.of(vertx.setPeriodic(fsyncInterval, timer -> {
+          if (!syncing && (nextId != durableId || clicksDirty)) {
+            sync();
+          }
+        }));
+      }
+      readyHandler.handle(result);
+    });
+  }
+
+  /**
+   * Opens the storage files, replaying the log records after the last checkpoint
+   *
+   * @throws IOException if the storage cannot be opened
+   */
+  private void recover() throws IOException {
+    Files.createDirectories(directory);
+    lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      lock = lockChannel.tryLock();
+    } catch (final OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("the storage is already in use: " + directory);
+    }
+
+    epoch = readEpoch(directory.resolve("epoch"));
+    log = new UrlLog(directory.resolve("urls.log"));
+    ids = new IdIndex(directory.resolve("urls.idx"));
+    digests = new DigestIndex(directory.resolve("urls.dig"),
+        (long) (expectedUrls / 0.75));
+    clicks = new ClickIndex(directory.resolve("clicks.idx"));
+
+    // replay the records after the checkpoint
+    final long checkpoint = ids.checkpointLength();
+    nextId = Math.max(FIRST_ID, ids.checkpointNextId());
+    final long replayed = log.replay(checkpoint, (position, id, url, urlLength) -> {
+      ids.put(id, position);
+      final long digest = DigestIndex.digest(
+          Urls.normalize(new String(url, 0, urlLength, StandardCharsets.UTF_8)));
+      if (digests.find(digest, candidate -> candidate == id) < 0) {
+        if (digests.full()) {
+          digests = digests.grow();
+        }
+        digests.put(digest, id);
+      }
+      nextId = Math.max(nextId, id + 1);
+    });
+    if (replayed > 0) {
+      log.force();
+      ids.force();
+      digests.force();
+      ids.checkpoint(log.length(), nextId);
+      ids.force();
+    }
+    durableId = nextId;
+    LOGGER.info(String.format("storage opened at %s: urls=%d, replayed=%d", directory,
+        nextId - FIRST_ID, replayed));
+  }
+
+  @Override
+  public void findById(final long id, final Handler<AsyncResult<Optional<String>>> handler) {
+    try {
+      handler.handle(Future.succeededFuture(id < FIRST_ID || id >= nextId ? Optional.empty()
+          : Optional.ofNullable(log.read(ids.get(id), id))));
+    } catch (final IOException e) {
+      handler.handle(Future.failedFuture(StoreException.storageError(e)));
+    }
+  }
+
+  @Override
+  public void save(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+    if (closeHandler.isPresent()) {
+      handler.handle(Future.failedFuture(StoreException.storageError(
+          new IllegalStateException("the store is closed"))));
+      return;
+    }
+    if (growing) {
+      waitForGrowth(url, handler);
+      return;
+    }
+
+    final byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > UrlLog.MAX_URL_BYTES) {
+      handler.handle(Future.failedFuture(StoreException.invalidRequest("url too long")));
+      return;
+    }
+
+    final long id;
+    final String storedUrl;
+    try {
+      // reuse the identifier of an equivalent entry, verifying each digest match
+      final String normalizedUrl = Urls.normalize(url);
+      final long digest = DigestIndex.digest(normalizedUrl);
+      final long existentId = digests.find(digest, candidate -> {
+        final String candidateUrl = read(candidate);
+        return candidateUrl != null && normalizedUrl.equals(Urls.normalize(candidateUrl));
+      });
+      if (existentId >= 0) {
+        id = existentId;
+        storedUrl = read(existentId);
+      } else if (digests.full()) {
+        // the index is rebuilt on a worker thread, the saves wait for it meanwhile
+        waitForGrowth(url, handler);
+        growDigests();
+        return;
+      } else {
+        id = nextId;
+        storedUrl = url;
+        ids.put(id, log.append(id, bytes));
+        digests.put(digest, id);
+        nextId++;
+      }
+    } catch (final IOException | RuntimeException e) {
+      LOGGER.error("unable to save the url", e);
+      handler.handle(Future.failedFuture(StoreException.storageError(e)));
+      return;
+    }
+
+    // acknowledge the save, once durable if required
+    if (fsyncPolicy == FsyncPolicy.ALWAYS && id >= durableId) {
+      pendingAcks.add(() -> handler.handle(id >= durableId
+          ? Future.failedFuture(StoreException.storageError(null))
+          : Future.succeededFuture(new UrlReply(id, storedUrl))));
+      if (!syncing) {
+        sync();
+      }
+    } else {
+      handler.handle(Future.succeededFuture(new UrlReply(id, storedUrl)));
+    }
+  }
+
+  /**
+   * Defers the save of the specified url until the digest index has grown
+   *
+   * @param url     the url to save
+   * @param handler the handler to be called with the identifier and url of the stored entry
+   */
+  private void waitForGrowth(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+    growWaiters.add(grown -> {
+      if (grown.succeeded()) {
+        save(url, handler);
+      } else {
+        handler.handle(Future.failedFuture(StoreException.storageError(grown.cause())));
+      }
+    });
+  }
+
+  /**
+   * Rebuilds the full digest index on a worker thread, running the waiting saves afterwards.
+   * The index is not written meanwhile, since every save waits for it. The waiting saves fail if
+   * the store was closed meanwhile.
+   */
+  private void growDigests() {
+    growing = true;
+    final DigestIndex full = digests;
+    vertx.<DigestIndex>executeBlocking(future -> {
+      try {
+        future.complete(full.grow());
+      } catch (final IOException e) {
+        future.fail(e);
+      }
+    }, false, PersistenceMetrics.timeStatement("digest_grow", result -> {
+      growing = false;
+      if (result.succeeded()) {
+        digests = result.result();
+        LOGGER.info("digest index grown: slots=" + digests.size());
+      } else {
+        LOGGER.error("unable to grow the digest index", result.cause());
+      }
+      final List<Handler<AsyncResult<Void>>> waiters = growWaiters;
+      growWaiters = new ArrayList<>();
+      waiters.forEach(waiter -> waiter.handle(result.succeeded() ? Future.succeededFuture()
+          : Future.failedFuture(result.cause())));
+      if (closeHandler.isPresent()) {
+        completeClose();
+      }
+    }));
+  }
+
+  /**
+   * Reads the url of the specified identifier, for the digest match verification and the reply
+   * of the equivalent saves
+   *
+   * @param id the url identifier
+   * @return the url, or {@code null} if non-existent
+   */
+  private String read(final long id) {
+    if (id < FIRST_ID || id >= nextId) {
+      // a stale entry of a record that was lost on a crash
+      return null;
+    }
+    try {
+      return log.read(ids.get(id), id);
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Flushes the storage files on a worker thread, recording a checkpoint and running the pending
+   * acknowledgements afterwards. The saves that arrive meanwhile are flushed right after, unless
+   * the store was closed meanwhile.
+   */
+  private void sync() {
+    syncing = true;
+    final long logLength = log.length();
+    final long syncedNextId = nextId;
+    final DigestIndex syncedDigests = digests;
+    final List<Runnable> acks = pendingAcks;
+    pendingAcks = new ArrayList<>();
+    clicksDirty = false;
+    vertx.<Void>executeBlocking(future -> {
+      log.force();
+      ids.force();
+      syncedDigests.force();
+      clicks.force();
+      future.complete();
+    }, false, PersistenceMetrics.timeStatement("log_sync", result -> {
+      syncing = false;
+      syncs++;
+      if (result.succeeded()) {
+        try {
+          ids.checkpoint(logLength, syncedNextId);
+          durableId = syncedNextId;
+        } catch (final IOException e) {
+          LOGGER.error("unable to record the storage checkpoint", e);
+        }
+      } else {
+        LOGGER.error("unable to flush the storage", result.cause());
+        clicksDirty = true;
+      }
+      acks.forEach(Runnable::run);
+      if (closeHandler.isPresent()) {
+        completeClose();
+      } else if (!pendingAcks.isEmpty()) {
+        sync();
+      }
+    }));
+  }
+
+  @Override
+  public boolean batchesSaves() {
+    return false;
+  }
+
+  @Override
+  public void findIds(final long from, final int limit,
+      final Handler<AsyncResult<List<Long>>> handler) {
+    // the identifiers are dense
+    final long start = Math.max(from, FIRST_ID);
+    handler.handle(Future.succeededFuture(LongStream.range(start, Math.min(nextId, start + limit))
+        .boxed()
+        .collect(Collectors.toList())));
+  }
+
+  @Override
+  public void findRecent(final int limit, final Handler<AsyncResult<Map<Long, String>>> handler) {
+    final Map<Long, String> urls = new LinkedHashMap<>();
+    try {
+      for (long id = nextId - 1; id >= FIRST_ID && urls.size() < limit; id--) {
+        urls.put(id, log.read(ids.get(id), id));
+      }
+    } catch (final IOException e) {
+      handler.handle(Future.failedFuture(StoreException.storageError(e)));
+      return;
+    }
+    handler.handle(Future.succeededFuture(urls));
+  }
+
+  @Override
+  public void recordClicks(final long[] ids, final long[] clicks,
+      final Handler<AsyncResult<Void>> handler) {
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] >= FIRST_ID && ids[i] < nextId) {
+          this.clicks.add(ids[i], clicks[i]);
+        }
+      }
+    } catch (final IOException e) {
+      handler.handle(Future.failedFuture(StoreException.storageError(e)));
+      return;
+    }
+    clicksDirty = true;
+    handler.handle(Future.succeededFuture());
+  }
+
+  @Override
+  public void findClicks(final long id, final Handler<AsyncResult<Optional<Long>>> handler) {
+    try {
+      handler.handle(Future.succeededFuture(id < FIRST_ID || id >= nextId ? Optional.empty()
+          : Optional.of(clicks.get(id))));
+    } catch (final IOException e) {
+      handler.handle(Future.failedFuture(StoreException.storageError(e)));
+    }
+  }
+
+  /**
+   * Reads the store epoch from the specified file, generating it if the file does not exist yet
+   *
+   * @param file the epoch file
+   * @return the store epoch
+   * @throws IOException if the epoch cannot be read nor written
+   */
+  private static long readEpoch(final Path file) throws IOException {
+    if (Files.isRegularFile(file)) {
+      final byte[] bytes = Files.readAllBytes(file);
+      if (bytes.length == Long.BYTES) {
+        return ByteBuffer.wrap(bytes).getLong();
+      }
+      LOGGER.warn("regenerating the invalid store epoch " + file);
+    }
+
+    // written to a temporary file, so that a partial epoch is never read
+    final long epoch = ThreadLocalRandom.current().nextLong();
+    final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, epoch));
+      channel.force(true);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return epoch;
+  }
+
+  @Override
+  public long epoch() {
+    return epoch;
+  }
+
+  @Override
+  public JsonObject stats() {
+    return new JsonObject()
+        .put("urls", nextId - FIRST_ID)
+        .put("log_bytes", log.length())
+        .put("digest_slots", digests.size())
+        .put("syncs", syncs);
+  }
+
+  @Override
+  public void close(final Handler<AsyncResult<Void>> closeHandler) {
+    fsyncTimer.ifPresent(vertx::cancelTimer);
+    this.closeHandler = Optional.of(closeHandler);
+    completeClose();
+  }
+
+  /**
+   * Closes the storage files, unless a flush or the digest index growth is still running on a
+   * worker thread, in which case this is called again once it completes. The acknowledgements
+   * waiting for the next flush are failed beforehand.
+   */
+  private void completeClose() {
+    if (syncing || growing) {
+      return;
+    }
+
+    // the acknowledged identifiers are not durable yet, hence the acknowledgements fail
+    final List<Runnable> acks = pendingAcks;
+    pendingAcks = new ArrayList<>();
+    acks.forEach(Runnable::run);
+
+    final Handler<AsyncResult<Void>> handler = closeHandler.get();
+    if (lock == null) {
+      handler.handle(Future.succeededFuture());
+      return;
+    }
+    try {
+      log.close();
+      digests.close();
+      clicks.close();
+      ids.force();
+      ids.checkpoint(log.length(), nextId);
+      ids.close();
+      lock.release();
+      lockChannel.close();
+      lock = null;
+      handler.handle(Future.succeededFuture());
+    } catch (final IOException e) {
+      LOGGER.error("unable to close the storage", e);
+      handler.handle(Future.failedFuture(e));
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file that is memory-mapped in fixed-size segments, which are mapped (and the file extended)
+ * on their first access. Values shall never span two segments, which the callers ensure by
+ * aligning them to the segment size.
+ *
+ * This class is not thread-safe, except for {@link #force()}, which may be called from another
+ * thread.
+ *
+ * @author David Silva
+ */
+final class MappedFile implements Closeable {
+
+  // the file channel
+  private final FileChannel channel;
+  // the segment size, as a power of two
+  private final int segmentShift;
+  // the mapped segments
+  private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+  /**
+   * Opens (or creates) the specified file, mapping its existent segments
+   *
+   * @param path         the file path
+   * @param segmentShift the segment size, as a power of two
+   * @throws IOException if the file cannot be opened or mapped
+   */
+  MappedFile(final Path path, final int segmentShift) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    this.segmentShift = segmentShift;
+    final long size = channel.size();
+    while (mappedSize() < size) {
+      map();
+    }
+  }
+
+  /**
+   * Returns the size of each segment
+   *
+   * @return the segment size, in bytes
+   */
+  int segmentSize() {
+    return 1 << segmentShift;
+  }
+
+  /**
+   * Returns the mapped size of the file
+   *
+   * @return the mapped size, in bytes
+   */
+  long mappedSize() {
+    return (long) segments.size() << segmentShift;
+  }
+
+  /**
+   * Returns the segment that contains the specified position, mapping it if required, with its
+   * position set at the relative position within the segment
+   *
+   * @param position the absolute position
+   * @return the segment buffer
+   * @throws IOException if the segment cannot be mapped
+   */
+  MappedByteBuffer at(final long position) throws IOException {
+    final int index = (int) (position >>> segmentShift);
+    while (segments.size() <= index) {
+      map();
+    }
+    final MappedByteBuffer segment = segments.get(index);
+    segment.position((int) (position & (segmentSize() - 1)));
+    return segment;
+  }
+
+  /**
+   * Reads the long value at the specified position
+   *
+   * @param position the absolute position
+   * @return the long value
+   * @throws IOException if the segment cannot be mapped
+   */
+  long getLong(final long position) throws IOException {
+    return at(position).getLong();
+  }
+
+  /**
+   * Writes the long value at the specified position
+   *
+   * @param position the absolute position
+   * @param value    the long value
+   * @throws IOException if the segment cannot be mapped
+   */
+  void putLong(final long position, final long value) throws IOException {
+    at(position).putLong(value);
+  }
+
+  /**
+   * Fills the specified range with zeros, only within the already mapped segments
+   *
+   * @param from the (inclusive) start position of the range
+   * @param to   the (exclusive) end position of the range
+   * @throws IOException if a segment cannot be accessed
+   */
+  void zero(final long from, final long to) throws IOException {
+    final byte[] zeros = new byte[4096];
+    final long end = Math.min(to, mappedSize());
+    long position = from;
+    while (position < end) {
+      final MappedByteBuffer segment = at(position);
+      final int length = (int) Math.min(Math.min(zeros.length, segment.remaining()),
+          end - position);
+      segment.put(zeros, 0, length);
+      position += length;
+    }
+  }
+
+  /**
+   * Flushes the changes of every mapped segment to the storage device
+   */
+  void force() {
+    final MappedByteBuffer[] mapped;
+    synchronized (segments) {
+      mapped = segments.toArray(new MappedByteBuffer[segments.size()]);
+    }
+    for (final MappedByteBuffer segment : mapped) {
+      segment.force();
+    }
+  }
+
+  /**
+   * Maps the next segment of the file, extending it if required
+   *
+   * @throws IOException if the segment cannot be mapped
+   */
+  private void map() throws IOException {
+    final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, mappedSize(),
+        segmentSize());
+    synchronized (segments) {
+      segments.add(segment);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+}
@@ -0,0 +1,249 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.eventbus.Message;
+import io.vertx.ext.sql.SQLConnection;
+import pt.davidafsilva.ushortx.protocol.Failure;
+
+/**
+ * The persistence metrics: connection acquisition and statement execution times, failure codes,
+ * shed and coalesced operations, replica reads and save batch sizes. The counters and histograms
+ * are striped and lock-free, hence cheap to record from every verticle instance.
+ *
+ * @author David Silva
+ */
+final class PersistenceMetrics {
+
+  // the persistence metrics registry
+  private static final CollectorRegistry REGISTRY = new CollectorRegistry();
+  // the name of the JVM holding the registry, labelled on every sample
+  private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+  // the latency buckets, in seconds
+  private static final double[] LATENCY_BUCKETS = {
+      0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+      5, 10};
+
+  // the connection acquisition times
+  private static final Histogram CONNECTION_ACQUISITION = Histogram.build()
+      .name("ushortx_db_connection_acquire_seconds")
+      .help("the time taken to obtain a database connection from the pool")
+      .labelNames("outcome")
+      .buckets(LATENCY_BUCKETS)
+      .register(REGISTRY);
+  // the statement execution times
+  private static final Histogram STATEMENTS = Histogram.build()
+      .name("ushortx_db_statement_seconds")
+      .help("the time taken to execute a database statement")
+      .labelNames("statement", "outcome")
+      .buckets(LATENCY_BUCKETS)
+      .register(REGISTRY);
+  // the failure replies
+  private static final Counter FAILURES = Counter.build()
+      .name("ushortx_persistence_failures_total")
+      .help("the number of failure replies, by failure code")
+      .labelNames("code")
+      .register(REGISTRY);
+  // the rejected operations
+  private static final Counter SHED = Counter.build()
+      .name("ushortx_persistence_shed_total")
+      .help("the number of operations rejected by the admission control, by priority")
+      .labelNames("priority")
+      .register(REGISTRY);
+  // the requests coalesced into an in-flight request
+  private static final Counter COALESCED = Counter.build()
+      .name("ushortx_persistence_coalesced_total")
+      .help("the number of requests served by an in-flight request of the same key")
+      .labelNames("operation")
+      .register(REGISTRY);
+  // the lookups served by the read replicas
+  private static final Counter REPLICA_READS = Counter.build()
+      .name("ushortx_persistence_replica_reads_total")
+      .help("the number of lookups sent to a read replica, by outcome")
+      .labelNames("outcome")
+      .register(REGISTRY);
+  // the save batch sizes
+  private static final Histogram BATCH_SIZES = Histogram.build()
+      .name("ushortx_db_save_batch_size")
+      .help("the number of save requests written per batch")
+      .buckets(1, 2, 5, 10, 20, 50, 100, 200, 500, 1000)
+      .register(REGISTRY);
+
+  // the pre-resolved connection acquisition outcomes
+  private static final Histogram.Child CONNECTION_SUCCESS =
+      CONNECTION_ACQUISITION.labels("success");
+  private static final Histogram.Child CONNECTION_FAILURE =
+      CONNECTION_ACQUISITION.labels("failure");
+
+  /**
+   * Wraps the specified connection handler, recording the acquisition time from now on
+   *
+   * @param handler the connection handler
+   * @return the timed connection handler
+   */
+  static Handler<AsyncResult<SQLConnection>> timeConnection(
+      final Handler<AsyncResult<SQLConnection>> handler) {
+    final long start = System.nanoTime();
+    return result -> {
+      (result.succeeded() ? CONNECTION_SUCCESS : CONNECTION_FAILURE).observe(seconds(start));
+      handler.handle(result);
+    };
+  }
+
+  /**
+   * Wraps the specified statement result handler, recording the execution time from now on
+   *
+   * @param statement the statement name
+   * @param handler   the result handler
+   * @param <T>       the result type
+   * @return the timed result handler
+   */
+  static <T> Handler<AsyncResult<T>> timeStatement(final String statement,
+      final Handler<AsyncResult<T>> handler) {
+    final long start = System.nanoTime();
+    return result -> {
+      STATEMENTS.labels(statement, result.succeeded() ? "success" : "failure")
+          .observe(seconds(start));
+      handler.handle(result);
+    };
+  }
+
+  /**
+   * Fails the specified message, recording the failure code
+   *
+   * @param message the message to fail
+   * @param failure the failure
+   * @param reason  the failure reason
+   */
+  static void fail(final Message<?> message, final Failure failure, final String reason) {
+    FAILURES.labels(String.valueOf(failure.code())).inc();
+    failure.reply(message, reason);
+  }
+
+  /**
+   * Records an operation rejected by the admission control
+   *
+   * @param priority the operation priority
+   */
+  static void shed(final AdmissionControl.Priority priority) {
+    SHED.labels(priority.name().toLowerCase()).inc();
+  }
+
+  /**
+   * Records a request coalesced into an in-flight request
+   *
+   * @param operation the operation name
+   */
+  static void coalesced(final String operation) {
+    COALESCED.labels(operation).inc();
+  }
+
+  /**
+   * Records a lookup sent to a read replica
+   *
+   * @param outcome the lookup outcome: hit, miss, failure or skipped, when no replica is healthy
+   */
+  static void replicaRead(final String outcome) {
+    REPLICA_READS.labels(outcome).inc();
+  }
+
+  /**
+   * Records the size of a written save batch
+   *
+   * @param size the batch size
+   */
+  static void batchWritten(final int size) {
+    BATCH_SIZES.observe(size);
+  }
+
+  /**
+   * Returns the name of the JVM holding the metrics registry, which is shared by the shards
+   * deployed on that JVM
+   *
+   * @return the node name
+   */
+  static String node() {
+    return NODE;
+  }
+
+  /**
+   * Renders the persistence metrics in the prometheus text format, with the {@code node} label
+   * on every sample so that the metrics of several JVMs can be merged into a single scrape
+   *
+   * @return the rendered metrics
+   */
+  static String scrape() {
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    for (final MetricFamilySamples family : Collections.list(REGISTRY.metricFamilySamples())) {
+      final List<Sample> samples = new ArrayList<>(family.samples.size());
+      for (final Sample sample : family.samples) {
+        final List<String> labelNames = new ArrayList<>(sample.labelNames);
+        labelNames.add("node");
+        final List<String> labelValues = new ArrayList<>(sample.labelValues);
+        labelValues.add(NODE);
+        samples.add(new Sample(sample.name, labelNames, labelValues, sample.value));
+      }
+      families.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+    }
+
+    final StringWriter writer = new StringWriter();
+    try {
+      TextFormat.write004(writer, Collections.enumeration(families));
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Returns the elapsed time since the specified start, in seconds
+   *
+   * @param start the start time, in nanoseconds
+   * @return the elapsed seconds
+   */
+  private static double seconds(final long start) {
+    return (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,156 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ * A long-lived database connection, owned by a single store instance, which serves its single
+ * statement (auto-commit) operations without a pool checkout per request. The statements of a
+ * verticle context are executed in order, hence the queued requests are pipelined onto the same
+ * connection, back to back, and reuse the statements prepared (and cached) by it.
+ *
+ * The connection is health checked periodically and whenever a statement fails. A broken
+ * connection is discarded, and a new one is obtained by the next request.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context.
+ *
+ * @author David Silva
+ */
+final class PinnedConnection {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(PinnedConnection.class);
+
+  // the health check query
+  private static final String HEALTH_CHECK_QUERY = "SELECT 1";
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the database client
+  private final JDBCClient client;
+  // the health check timer
+  private final long healthCheckTimer;
+
+  // the connection, if connected
+  private Optional<SQLConnection> connection = Optional.empty();
+  // the handlers waiting for the connection
+  private List<Handler<AsyncResult<SQLConnection>>> waiting = new ArrayList<>();
+  // whether or not a health check is running
+  private boolean checking;
+  // the number of discarded connections
+  private long reconnects;
+
+  /**
+   * Creates a new pinned connection, which connects on the first request
+   *
+   * @param vertx               the vertx instance
+   * @param client              the database client
+   * @param healthCheckInterval the time, in milliseconds, between the health checks
+   */
+  PinnedConnection(final Vertx vertx, final JDBCClient client, final long healthCheckInterval) {
+    this.vertx = vertx;
+    this.client = client;
+    this.healthCheckTimer = vertx.setPeriodic(healthCheckInterval, timer -> check());
+  }
+
+  /**
+   * Calls the specified handler with the connection, connecting beforehand if required. The
+   * connection shall not be closed by the caller.
+   *
+   * @param handler the handler to be called with the connection
+   */
+  void get(final Handler<AsyncResult<SQLConnection>> handler) {
+    if (connection.isPresent()) {
+      handler.handle(Future.succeededFuture(connection.get()));
+      return;
+    }
+
+    // queue the request and connect, if not already doing so
+    waiting.add(handler);
+    if (waiting.size() == 1) {
+      client.getConnection(PersistenceMetrics.timeConnection(result -> {
+        if (result.succeeded()) {
+          LOGGER.info("pinned database connection established");
+          connection = Optional.of(result.result());
+        }
+        final List<Handler<AsyncResult<SQLConnection>>> handlers = waiting;
+        waiting = new ArrayList<>();
+        handlers.forEach(waiter -> waiter.handle(result));
+      }));
+    }
+  }
+
+  /**
+   * Checks the health of the connection, if connected, discarding it when broken
+   */
+  void check() {
+    if (checking || !connection.isPresent()) {
+      return;
+    }
+    checking = true;
+    final SQLConnection checked = connection.get();
+    checked.query(HEALTH_CHECK_QUERY, result -> {
+      checking = false;
+      if (result.failed() && connection.equals(Optional.of(checked))) {
+        LOGGER.warn("discarding the broken pinned database connection", result.cause());
+        connection = Optional.empty();
+        reconnects++;
+        checked.close();
+      }
+    });
+  }
+
+  /**
+   * Returns the number of broken connections that were discarded
+   *
+   * @return the number of reconnects
+   */
+  long reconnects() {
+    return reconnects;
+  }
+
+  /**
+   * Closes the connection, if connected, and stops the health checks
+   */
+  void close() {
+    vertx.cancelTimer(healthCheckTimer);
+    connection.ifPresent(SQLConnection::close);
+    connection = Optional.empty();
+  }
+}
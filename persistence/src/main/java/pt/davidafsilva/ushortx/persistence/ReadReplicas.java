@@ -0,0 +1,248 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ * The read replicas of a {@link JdbcUrlStore}, each with its own data source. The lookups are
+ * load-balanced across the replicas in a round-robin fashion, while the writes stay on the
+ * primary. The replicas are kept up-to-date by the database replication, hence they may lag
+ * behind the primary: the caller is expected to fall back to the primary on a miss.
+ *
+ * A replica that fails a lookup is marked as unhealthy and skipped for a backoff period, after
+ * which a single lookup probes it again. The failure is logged once when the replica is marked,
+ * and then once per failed probe, without the stack trace.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context.
+ *
+ * @author David Silva
+ */
+final class ReadReplicas {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadReplicas.class);
+
+  // the replicas
+  private final List<Replica> replicas;
+  // the time, in nanoseconds, an unhealthy replica is skipped
+  private final long backoff;
+
+  // the index of the next replica
+  private int next;
+
+  /**
+   * Creates the replicas with the specified clients
+   *
+   * @param clients the replica clients
+   * @param backoff the time, in milliseconds, an unhealthy replica is skipped
+   */
+  private ReadReplicas(final List<JDBCClient> clients, final long backoff) {
+    this.replicas = new ArrayList<>(clients.size());
+    for (int i = 0; i < clients.size(); i++) {
+      replicas.add(new Replica(i, clients.get(i)));
+    }
+    this.backoff = TimeUnit.MILLISECONDS.toNanos(backoff);
+  }
+
+  /**
+   * Creates the read replicas of the specified verticle configuration, if any. Each replica
+   * inherits the primary settings that it does not override.
+   *
+   * @param vertx  the vertx instance
+   * @param config the verticle configuration
+   * @param shard  the shard of the store
+   * @return the created replicas, if configured
+   */
+  static Optional<ReadReplicas> fromConfig(final Vertx vertx, final JsonObject config,
+      final Shard shard) {
+    final JsonArray replicas = config.getJsonArray("read_replicas", new JsonArray());
+    if (replicas.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final List<JDBCClient> clients = new ArrayList<>(replicas.size());
+    for (int i = 0; i < replicas.size(); i++) {
+      final JsonObject replica = replicas.getJsonObject(i);
+      clients.add(JDBCClient.createShared(vertx,
+          new JsonObject()
+              .put("url", replica.getString("url"))
+              .put("driver_class", replica.getString("driver_class",
+                  config.getString("driver_class", "org.h2.Driver")))
+              .put("user", replica.getString("user", config.getString("user", "ushortx")))
+              .put("password", replica.getString("password",
+                  config.getString("password", "shall-not-be-used")))
+              .put("max_pool_size", replica.getInteger("max_pool_size",
+                  config.getInteger("max_pool_size", 20)))
+              .put("max_statements_per_connection",
+                  config.getInteger("statement_cache_size", 32))
+          , shard.qualify("ushortx-replica-ds-" + i)));
+    }
+    LOGGER.info("reading from " + clients.size() + " replicas for shard " + shard);
+    return Optional.of(new ReadReplicas(clients,
+        config.getLong("read_replica_backoff", 5_000L)));
+  }
+
+  /**
+   * Executes the specified query at the next healthy replica, calling the handler with its single
+   * result row, if any. The replica failures, or the lack of a healthy replica, are reported as
+   * an empty result as well.
+   *
+   * @param statement the statement name, for the metrics
+   * @param query     the query
+   * @param params    the query parameters
+   * @param handler   the handler to be called with the result row, if found
+   */
+  void find(final String statement, final String query, final JsonArray params,
+      final Handler<Optional<JsonObject>> handler) {
+    final Optional<Replica> next = nextReplica();
+    if (!next.isPresent()) {
+      PersistenceMetrics.replicaRead("skipped");
+      handler.handle(Optional.empty());
+      return;
+    }
+
+    final Replica replica = next.get();
+    replica.client.getConnection(PersistenceMetrics.timeConnection(connection -> {
+      if (connection.failed()) {
+        failed(replica, connection.cause(), handler);
+        return;
+      }
+      final SQLConnection sqlConnection = connection.result();
+      sqlConnection.queryWithParams(query, params, PersistenceMetrics.timeStatement(statement,
+          (AsyncResult<ResultSet> result) -> {
+            sqlConnection.close();
+            if (result.failed()) {
+              failed(replica, result.cause(), handler);
+              return;
+            }
+            if (replica.unhealthy) {
+              replica.unhealthy = false;
+              LOGGER.info("replica " + replica.index + " recovered");
+            }
+            if (result.result().getNumRows() == 1) {
+              PersistenceMetrics.replicaRead("hit");
+              handler.handle(Optional.of(result.result().getRows().get(0)));
+            } else {
+              PersistenceMetrics.replicaRead("miss");
+              handler.handle(Optional.empty());
+            }
+          }));
+    }));
+  }
+
+  /**
+   * Selects the next replica, in a round-robin fashion, skipping the unhealthy replicas until
+   * their backoff is over. An unhealthy replica is then selected once, to probe it.
+   *
+   * @return the selected replica, if any
+   */
+  private Optional<Replica> nextReplica() {
+    final long now = System.nanoTime();
+    for (int i = 0; i < replicas.size(); i++) {
+      final Replica replica = replicas.get(next);
+      next = (next + 1) % replicas.size();
+      if (!replica.unhealthy) {
+        return Optional.of(replica);
+      }
+      if (now - replica.retryAt >= 0) {
+        // skip it meanwhile, until the probe completes
+        replica.retryAt = now + backoff;
+        return Optional.of(replica);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Marks the specified replica as unhealthy and handles its failure as a miss
+   *
+   * @param replica the failed replica
+   * @param cause   the failure cause
+   * @param handler the handler to be called with the empty result
+   */
+  private void failed(final Replica replica, final Throwable cause,
+      final Handler<Optional<JsonObject>> handler) {
+    if (!replica.unhealthy) {
+      LOGGER.warn("replica " + replica.index + " lookup failed, falling back to the primary " +
+          "for " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms", cause);
+    } else {
+      LOGGER.warn("replica " + replica.index + " is still unavailable: " + cause);
+    }
+    replica.unhealthy = true;
+    replica.retryAt = System.nanoTime() + backoff;
+    PersistenceMetrics.replicaRead("failure");
+    handler.handle(Optional.empty());
+  }
+
+  /**
+   * Closes the replica clients
+   */
+  void close() {
+    replicas.forEach(replica -> replica.client.close());
+  }
+
+  /**
+   * A read replica, along with its health
+   */
+  private static final class Replica {
+
+    // the replica index, for the logs
+    private final int index;
+    // the replica client
+    private final JDBCClient client;
+    // whether or not the last lookup failed
+    private boolean unhealthy;
+    // the time, in nanoseconds, after which an unhealthy replica is probed
+    private long retryAt;
+
+    /**
+     * Creates a new replica
+     *
+     * @param index  the replica index
+     * @param client the replica client
+     */
+    private Replica(final int index, final JDBCClient client) {
+      this.index = index;
+      this.client = client;
+    }
+  }
+}
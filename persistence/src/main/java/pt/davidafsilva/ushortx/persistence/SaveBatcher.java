@@ -0,0 +1,474 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import pt.davidafsilva.ushortx.persistence.AdmissionControl.Priority;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The group-commit batcher for save requests. Save requests are collected until either the
+ * batch size is reached or the linger time expires, after which the batch is de-duplicated and
+ * written within a single transaction with one multi-row insert. Each waiting request is then
+ * completed with its own identifier (or failure). The urls are de-duplicated, and looked up, by
+ * their {@link UrlDigest}.
+ *
+ * Each batch goes through the {@link AdmissionControl} as a single operation, hence the batches
+ * are not capped by the number of saves admitted at once, and is rejected as a whole whenever
+ * the store is saturated.
+ *
+ * Whenever a batch cannot be committed (e.g. a concurrent insert of the same url or a digest
+ * collision), its requests are handed over to the single save path, one by one.
+ *
+ * This class is not thread-safe: it shall only be used from the owning verticle context.
+ *
+ * @author David Silva
+ */
+final class SaveBatcher {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(SaveBatcher.class);
+
+  // the find by digests query prefix
+  static final String FIND_BY_DIGESTS_QUERY =
+      "SELECT ID,URL,DIGEST FROM urls WHERE DIGEST IN (";
+  // the multi-row insert statement prefix
+  private static final String INSERT_URLS_STATEMENT = "INSERT INTO URLS(ID,DIGEST,URL) VALUES ";
+
+  // the vertx instance
+  private final Vertx vertx;
+  // the database client
+  private final JDBCClient client;
+  // the identifier allocator
+  private final IdAllocator idAllocator;
+  // the admission control, which admits each batch as a single operation
+  private final AdmissionControl admission;
+  // the single save path, used when a batch fails
+  private final BiConsumer<String, Handler<AsyncResult<UrlReply>>> singleSave;
+  // the maximum number of requests per batch
+  private final int maxBatchSize;
+  // the maximum time, in milliseconds, a request waits for its batch to fill up
+  private final long maxLinger;
+  // the maximum number of batches being written at the same time
+  private final int maxInFlight;
+
+  // the requests waiting for a batch
+  private final List<SaveRequest> pending = new ArrayList<>();
+  // the batch size distribution: index is the batch size, value the number of batches
+  private final long[] batchSizes;
+  // the linger timer identifier, -1 if not armed
+  private long lingerTimer = -1;
+  // the number of batches being written
+  private int inFlight;
+  // the handler to be called once the batches being written complete, set while closing
+  private Optional<Handler<Void>> closeHandler = Optional.empty();
+
+  /**
+   * Creates a new save batcher
+   *
+   * @param vertx        the vertx instance
+   * @param client       the database client
+   * @param idAllocator  the identifier allocator
+   * @param admission    the admission control of the batches
+   * @param singleSave   the single save path, used when a batch fails
+   * @param maxBatchSize the maximum number of requests per batch
+   * @param maxLinger    the maximum time, in milliseconds, a request waits for its batch
+   * @param maxInFlight  the maximum number of batches being written at the same time
+   */
+  SaveBatcher(final Vertx vertx, final JDBCClient client, final IdAllocator idAllocator,
+      final AdmissionControl admission,
+      final BiConsumer<String, Handler<AsyncResult<UrlReply>>> singleSave, final int maxBatchSize,
+      final long maxLinger, final int maxInFlight) {
+    this.vertx = vertx;
+    this.client = client;
+    this.idAllocator = idAllocator;
+    this.admission = admission;
+    this.singleSave = singleSave;
+    this.maxBatchSize = maxBatchSize;
+    this.maxLinger = maxLinger;
+    this.maxInFlight = maxInFlight;
+    this.batchSizes = new long[maxBatchSize + 1];
+  }
+
+  /**
+   * Adds a save request to the current batch, or rejects it if as many requests as the admission
+   * control queue are already waiting for a batch
+   *
+   * @param url     the url to save
+   * @param handler the handler to be called with the identifier and url of the stored entry
+   */
+  void add(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+    if (closeHandler.isPresent()) {
+      handler.handle(Future.failedFuture(closed()));
+      return;
+    } else if (pending.size() >= admission.maxQueue()) {
+      handler.handle(Future.failedFuture(StoreException.overloaded()));
+      return;
+    }
+    pending.add(new SaveRequest(url, handler));
+    if (pending.size() >= maxBatchSize) {
+      flush();
+    } else if (lingerTimer == -1) {
+      lingerTimer = vertx.setTimer(maxLinger, id -> {
+        lingerTimer = -1;
+        flush();
+      });
+    }
+  }
+
+  /**
+   * Returns the batch size distribution as a json object, keyed by batch size
+   *
+   * @return the batch size distribution
+   */
+  JsonObject batchSizes() {
+    final JsonObject json = new JsonObject();
+    for (int size = 1; size < batchSizes.length; size++) {
+      if (batchSizes[size] > 0) {
+        json.put(String.valueOf(size), batchSizes[size]);
+      }
+    }
+    return json;
+  }
+
+  /**
+   * Writes the next batch of pending requests, once admitted, if allowed by the in-flight limit
+   */
+  private void flush() {
+    if (pending.isEmpty() || inFlight >= maxInFlight) {
+      return;
+    }
+    if (lingerTimer != -1) {
+      vertx.cancelTimer(lingerTimer);
+      lingerTimer = -1;
+    }
+
+    // take the batch
+    final List<SaveRequest> batchView = pending.subList(0,
+        Math.min(maxBatchSize, pending.size()));
+    final List<SaveRequest> batch = new ArrayList<>(batchView);
+    batchView.clear();
+    batchSizes[batch.size()]++;
+    PersistenceMetrics.batchWritten(batch.size());
+    inFlight++;
+
+    final Runnable batchDone = () -> {
+      inFlight--;
+      if (closeHandler.isPresent()) {
+        completeClose();
+        return;
+      }
+      // requests that lingered while we were at the limit are flushed right away
+      if (pending.size() >= maxBatchSize || (!pending.isEmpty() && lingerTimer == -1)) {
+        flush();
+      }
+    };
+    admission.submit(Priority.SAVE, () -> {
+      fail(batch, StoreException.overloaded());
+      batchDone.run();
+    }, done -> write(batch, succeeded -> {
+      done.handle(succeeded);
+      batchDone.run();
+    }));
+  }
+
+  /**
+   * Writes the specified batch and completes each of its requests
+   *
+   * @param batch       the batch of requests
+   * @param doneHandler the handler to be called once the batch is completed, with whether or
+   *                    not it was written
+   */
+  private void write(final List<SaveRequest> batch, final Handler<Boolean> doneHandler) {
+    // de-duplicate the urls, by their normalized form
+    final Map<String, List<SaveRequest>> byUrl = new LinkedHashMap<>();
+    batch.forEach(request -> byUrl.computeIfAbsent(Urls.normalize(request.url),
+        url -> new ArrayList<>()).add(request));
+    LOGGER.debug(String.format("writing batch of %d requests (%d urls)", batch.size(),
+        byUrl.size()));
+
+    // allocate the identifiers before holding a connection
+    idAllocator.nextIds(byUrl.size(), idsResult -> {
+      if (idsResult.failed()) {
+        fail(batch, StoreException.unavailable(idsResult.cause()));
+        doneHandler.handle(false);
+        return;
+      }
+
+      client.getConnection(PersistenceMetrics.timeConnection(connectionResult -> {
+        if (connectionResult.failed()) {
+          LOGGER.error("unable to obtain a database connection", connectionResult.cause());
+          fail(batch, StoreException.unavailable(connectionResult.cause()));
+          doneHandler.handle(false);
+          return;
+        }
+
+        final SQLConnection connection = connectionResult.result();
+        connection.setAutoCommit(false, txResult -> {
+          if (txResult.failed()) {
+            abort(connection, batch, txResult.cause(), doneHandler);
+            return;
+          }
+          write(connection, byUrl, idsResult.result(), batch, doneHandler);
+        });
+      }));
+    });
+  }
+
+  /**
+   * Writes the de-duplicated urls within the (already started) transaction of the given
+   * connection.
+   *
+   * @param connection  the connection with an open transaction
+   * @param byUrl       the requests, grouped by normalized url
+   * @param ids         the identifiers allocated for the urls
+   * @param batch       the batch of requests
+   * @param doneHandler the handler to be called once the batch is completed, with whether or
+   *                    not it was written
+   */
+  private void write(final SQLConnection connection,
+      final Map<String, List<SaveRequest>> byUrl, final long[] ids,
+      final List<SaveRequest> batch, final Handler<Boolean> doneHandler) {
+    // lookup the already existent urls
+    final Map<String, Long> digests = new HashMap<>();
+    final JsonArray queryParams = new JsonArray();
+    byUrl.keySet().forEach(url -> {
+      final long digest = UrlDigest.digest(url);
+      digests.put(url, digest);
+      queryParams.add(digest);
+    });
+    connection.queryWithParams(FIND_BY_DIGESTS_QUERY + placeholders(byUrl.size(), "?") + ")",
+        queryParams, PersistenceMetrics.timeStatement("batch_find_by_digests", queryResult -> {
+          if (queryResult.failed()) {
+            abort(connection, batch, queryResult.cause(), doneHandler);
+            return;
+          }
+
+          // resolve the stored entry of each url
+          final Map<String, UrlReply> resolved = new HashMap<>();
+          for (final JsonArray row : queryResult.result().getResults()) {
+            final String url = Urls.normalize(row.getString(1));
+            if (!Long.valueOf(row.getLong(2)).equals(digests.get(url))) {
+              // a digest collision, which is left to the single save path
+              abort(connection, batch, null, doneHandler);
+              return;
+            }
+            resolved.put(url, new UrlReply(row.getLong(0), row.getString(1)));
+          }
+          final JsonArray insertParams = new JsonArray();
+          int index = 0;
+          for (final Map.Entry<String, List<SaveRequest>> entry : byUrl.entrySet()) {
+            final long id = ids[index++];
+            if (!resolved.containsKey(entry.getKey())) {
+              final String url = entry.getValue().get(0).url;
+              resolved.put(entry.getKey(), new UrlReply(id, url));
+              insertParams.add(id).add(digests.get(entry.getKey())).add(url);
+            }
+          }
+
+          // nothing new to insert
+          final int rows = insertParams.size() / 3;
+          if (rows == 0) {
+            commit(connection, byUrl, resolved, batch, doneHandler);
+            return;
+          }
+
+          connection.updateWithParams(INSERT_URLS_STATEMENT + placeholders(rows, "(?,?,?)"),
+              insertParams, PersistenceMetrics.timeStatement("batch_insert", updateResult -> {
+                if (updateResult.failed()) {
+                  abort(connection, batch, updateResult.cause(), doneHandler);
+                  return;
+                }
+                commit(connection, byUrl, resolved, batch, doneHandler);
+              }));
+        }));
+  }
+
+  /**
+   * Commits the transaction of the given connection and completes each request
+   *
+   * @param connection  the connection with an open transaction
+   * @param byUrl       the requests, grouped by normalized url
+   * @param resolved    the stored entry of each normalized url
+   * @param batch       the batch of requests
+   * @param doneHandler the handler to be called once the batch is completed, with whether or
+   *                    not it was written
+   */
+  private void commit(final SQLConnection connection,
+      final Map<String, List<SaveRequest>> byUrl, final Map<String, UrlReply> resolved,
+      final List<SaveRequest> batch, final Handler<Boolean> doneHandler) {
+    connection.commit(commitResult -> {
+      if (commitResult.failed()) {
+        abort(connection, batch, commitResult.cause(), doneHandler);
+        return;
+      }
+      release(connection);
+      byUrl.forEach((url, requests) -> requests.forEach(request ->
+          request.handler.handle(Future.succeededFuture(resolved.get(url)))));
+      doneHandler.handle(true);
+    });
+  }
+
+  /**
+   * Rolls back the transaction of the given connection and hands the batch requests over to the
+   * single save path, or fails them if closing, since the client is closed afterwards.
+   *
+   * @param connection  the connection with an open transaction
+   * @param batch       the batch of requests
+   * @param cause       the failure cause
+   * @param doneHandler the handler to be called once the batch is completed, with whether or
+   *                    not it was written
+   */
+  private void abort(final SQLConnection connection, final List<SaveRequest> batch,
+      final Throwable cause, final Handler<Boolean> doneHandler) {
+    LOGGER.warn("unable to write batch, falling back to single saves", cause);
+    connection.rollback(rollbackResult -> {
+      release(connection);
+      if (closeHandler.isPresent()) {
+        fail(batch, closed());
+      } else {
+        batch.forEach(request -> singleSave.accept(request.url, request.handler));
+      }
+      doneHandler.handle(cause == null);
+    });
+  }
+
+  /**
+   * Stops batching: the linger timer is cancelled, the requests waiting for a batch and the ones
+   * added afterwards are failed as unavailable, and the specified handler is called once the
+   * batches being written complete
+   *
+   * @param closeHandler the handler to be called once closed
+   */
+  void close(final Handler<Void> closeHandler) {
+    if (lingerTimer != -1) {
+      vertx.cancelTimer(lingerTimer);
+      lingerTimer = -1;
+    }
+    this.closeHandler = Optional.of(closeHandler);
+    final List<SaveRequest> waiting = new ArrayList<>(pending);
+    pending.clear();
+    fail(waiting, closed());
+    completeClose();
+  }
+
+  /**
+   * Calls the close handler, unless batches are still being written, in which case this is
+   * called again once each of them completes
+   */
+  private void completeClose() {
+    if (inFlight == 0) {
+      closeHandler.get().handle(null);
+    }
+  }
+
+  /**
+   * Creates the failure of the requests that are not written due to the batcher being closed
+   *
+   * @return the failure
+   */
+  private static StoreException closed() {
+    return StoreException.unavailable(new IllegalStateException("the store is closed"));
+  }
+
+  /**
+   * Fails each request of the specified batch
+   *
+   * @param batch the batch of requests
+   * @param cause the failure cause
+   */
+  private static void fail(final List<SaveRequest> batch, final Throwable cause) {
+    batch.forEach(request -> request.handler.handle(Future.failedFuture(cause)));
+  }
+
+  /**
+   * Restores the auto-commit mode of the given connection and closes it
+   *
+   * @param connection the connection to release
+   */
+  private static void release(final SQLConnection connection) {
+    connection.setAutoCommit(true, result -> connection.close());
+  }
+
+  /**
+   * Creates a comma separated list with the specified number of placeholders
+   *
+   * @param count       the number of placeholders
+   * @param placeholder the placeholder
+   * @return the placeholders list
+   */
+  static String placeholders(final int count, final String placeholder) {
+    final StringBuilder builder = new StringBuilder(count * (placeholder.length() + 1));
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(placeholder);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * A save request waiting for its batch
+   */
+  private static final class SaveRequest {
+
+    // the url to save
+    private final String url;
+    // the handler to be called with the stored entry
+    private final Handler<AsyncResult<UrlReply>> handler;
+
+    /**
+     * Creates a new save request
+     *
+     * @param url     the url to save
+     * @param handler the handler to be called with the stored entry
+     */
+    private SaveRequest(final String url, final Handler<AsyncResult<UrlReply>> handler) {
+      this.url = url;
+      this.handler = handler;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The identifier shard owned by a {@link DatabaseVerticle} instance. The identifiers are split
+ * by modulus: the shard {@code i} of {@code n} owns the identifiers {@code id % n == i}, which
+ * are mapped to a dense, shard-local, sequence ({@code id / n}) at its store. Hence each store
+ * allocates and looks up its identifiers as if it was the only one.
+ *
+ * Each shard listens on its own addresses and uses its own resources, both qualified with the
+ * shard index. A single shard keeps the unqualified names.
+ *
+ * @author David Silva
+ */
+final class Shard {
+
+  // the shard index
+  private final int index;
+  // the number of shards
+  private final int count;
+
+  /**
+   * Creates a new shard
+   *
+   * @param index the shard index
+   * @param count the number of shards
+   * @throws IllegalArgumentException if the index is not within {@code [0, count)}
+   */
+  Shard(final int index, final int count) {
+    if (count < 1 || index < 0 || index >= count) {
+      throw new IllegalArgumentException(String.format("invalid shard: %d of %d", index, count));
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * Creates a new shard based on the specified verticle configuration
+   *
+   * @param config the verticle configuration
+   * @return the created shard
+   * @throws IllegalArgumentException if the configured shard is invalid
+   */
+  static Shard fromConfig(final JsonObject config) {
+    return new Shard(config.getInteger("shard_index", 0), config.getInteger("shard_count", 1));
+  }
+
+  /**
+   * Qualifies the specified name (address, data source, etc.) with the shard index
+   *
+   * @param name the name to qualify
+   * @return the qualified name
+   */
+  String qualify(final String name) {
+    return count == 1 ? name : name + "-" + index;
+  }
+
+  /**
+   * Maps the specified identifier to its shard-local identifier
+   *
+   * @param id the identifier
+   * @return the local identifier, or {@code -1} if the identifier is not owned by this shard
+   */
+  long toLocal(final long id) {
+    return id >= 0 && id % count == index ? id / count : -1;
+  }
+
+  /**
+   * Maps the specified shard-local identifier to its identifier
+   *
+   * @param localId the local identifier
+   * @return the identifier
+   */
+  long toGlobal(final long localId) {
+    return localId * count + index;
+  }
+
+  /**
+   * Returns the first shard-local identifier whose identifier is equal or greater than the
+   * specified one
+   *
+   * @param id the identifier
+   * @return the local identifier
+   */
+  long ceilLocal(final long id) {
+    return id <= index ? 0 : (id - index + count - 1) / count;
+  }
+
+  /**
+   * Checks whether or not the saves of the specified url are routed to this shard, which the http
+   * module does by {@link Urls#shard}
+   *
+   * @param url the url
+   * @return {@code true} if routed to this shard, {@code false} otherwise
+   */
+  boolean ownsUrl(final String url) {
+    return Urls.shard(url, count) == index;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d of %d", index, count);
+  }
+}
@@ -0,0 +1,103 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import pt.davidafsilva.ushortx.protocol.Failure;
+
+/**
+ * The failure of an {@link UrlStore} operation, along with the failure code to reply with
+ *
+ * @author David Silva
+ */
+final class StoreException extends RuntimeException {
+
+  // the serialization version
+  private static final long serialVersionUID = 1L;
+
+  // the failure to reply with
+  private final Failure failure;
+
+  /**
+   * Creates a new store exception
+   *
+   * @param failure the failure to reply with
+   * @param message the failure message
+   * @param cause   the failure cause, may be {@code null}
+   */
+  StoreException(final Failure failure, final String message, final Throwable cause) {
+    super(message, cause);
+    this.failure = failure;
+  }
+
+  /**
+   * Creates a new store exception for unavailable resources
+   *
+   * @param cause the failure cause
+   * @return the created exception
+   */
+  static StoreException unavailable(final Throwable cause) {
+    return new StoreException(Failure.UNAVAILABLE, "unavailable resources", cause);
+  }
+
+  /**
+   * Creates a new store exception for operations rejected by the admission control
+   *
+   * @return the created exception
+   */
+  static StoreException overloaded() {
+    return new StoreException(Failure.OVERLOADED, "overloaded", null);
+  }
+
+  /**
+   * Creates a new store exception for invalid requests
+   *
+   * @param message the failure message
+   * @return the created exception
+   */
+  static StoreException invalidRequest(final String message) {
+    return new StoreException(Failure.INVALID_REQUEST, message, null);
+  }
+
+  /**
+   * Creates a new store exception for storage errors
+   *
+   * @param cause the failure cause
+   * @return the created exception
+   */
+  static StoreException storageError(final Throwable cause) {
+    return new StoreException(Failure.STORAGE_ERROR, "internal database error", cause);
+  }
+
+  /**
+   * Returns the failure to reply with
+   *
+   * @return the failure
+   */
+  Failure failure() {
+    return failure;
+  }
+}
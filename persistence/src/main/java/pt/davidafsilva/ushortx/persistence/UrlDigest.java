@@ -0,0 +1,69 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The url digests used as the deduplication keys of the stores. The digest is the leading 64
+ * bits of the SHA-256 of the normalized url, hence distinct urls may share the same digest and
+ * each digest match must be verified against the normalized url, see {@link Urls#normalize}.
+ *
+ * @author David Silva
+ */
+final class UrlDigest {
+
+  // the per-thread digest algorithm
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  // private constructor
+  private UrlDigest() {
+  }
+
+  /**
+   * Computes the digest of the specified normalized url
+   *
+   * @param normalizedUrl the normalized url
+   * @return the url digest
+   */
+  static long digest(final String normalizedUrl) {
+    final MessageDigest sha256 = SHA256.get();
+    return ByteBuffer.wrap(sha256.digest(normalizedUrl.getBytes(StandardCharsets.UTF_8)))
+        .getLong();
+  }
+}
@@ -0,0 +1,254 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only data file of the {@link LogUrlStore}, with one record per url:
+ * <pre>
+ *   [url length: int][id: long][url: utf-8 bytes][crc32 of the id and url: int]
+ * </pre>
+ * Records never span two segments: whenever a record does not fit the remainder of the current
+ * segment, the remainder is skipped (marked with a negative length, if there is room for it).
+ * The unused tail of the file is zero-filled, hence the log ends at the first record with a zero
+ * identifier or an invalid checksum.
+ *
+ * This class is not thread-safe, except for {@link #force()}.
+ *
+ * @author David Silva
+ */
+final class UrlLog implements Closeable {
+
+  // the maximum url length, in bytes
+  static final int MAX_URL_BYTES = 1 << 16;
+
+  // the segment size, as a power of two (64 MiB)
+  private static final int SEGMENT_SHIFT = 26;
+  // the record header size: url length and id
+  private static final int HEADER = Integer.BYTES + Long.BYTES;
+  // the record trailer size: checksum
+  private static final int TRAILER = Integer.BYTES;
+  // the url length that marks the skipped remainder of a segment
+  private static final int PADDING = -1;
+
+  // the mapped data file
+  private final MappedFile file;
+  // the record checksum
+  private final CRC32 crc = new CRC32();
+  // the read buffer of the url bytes
+  private byte[] scratch = new byte[256];
+  // the end position of the last record
+  private long length;
+
+  /**
+   * Opens (or creates) the data file at the specified path. The log is empty until it is
+   * recovered through {@link #replay(long, RecordHandler)}.
+   *
+   * @param path the data file path
+   * @throws IOException if the file cannot be opened
+   */
+  UrlLog(final Path path) throws IOException {
+    file = new MappedFile(path, SEGMENT_SHIFT);
+  }
+
+  /**
+   * Returns the end position of the last record
+   *
+   * @return the log length, in bytes
+   */
+  long length() {
+    return length;
+  }
+
+  /**
+   * Appends a new record to the log
+   *
+   * @param id  the url identifier
+   * @param url the url bytes, up to {@link #MAX_URL_BYTES}
+   * @return the record position
+   * @throws IOException if the record cannot be written
+   */
+  long append(final long id, final byte[] url) throws IOException {
+    final int size = HEADER + url.length + TRAILER;
+    long position = length;
+    final int remaining = file.segmentSize() - offset(position);
+    if (size > remaining) {
+      // skip the remainder of the segment
+      if (remaining >= Integer.BYTES) {
+        file.at(position).putInt(PADDING);
+      }
+      position += remaining;
+    }
+
+    final MappedByteBuffer segment = file.at(position);
+    segment.putInt(url.length).putLong(id).put(url).putInt(checksum(id, url, url.length));
+    length = position + size;
+    return position;
+  }
+
+  /**
+   * Reads the url of the record at the specified position
+   *
+   * @param position the record position
+   * @param id       the expected record identifier
+   * @return the record url, or {@code null} if there is no valid record with the given
+   * identifier at that position
+   * @throws IOException if the record cannot be read
+   */
+  String read(final long position, final long id) throws IOException {
+    final int urlLength = readRecord(position, length);
+    if (urlLength < 0 || file.getLong(position + Integer.BYTES) != id) {
+      return null;
+    }
+    return new String(scratch, 0, urlLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Replays the records from the specified position onwards, setting the log length at the end
+   * of the last valid record. Whatever follows it (e.g. a partially written record) is erased.
+   *
+   * @param from    the position of the first record to replay
+   * @param handler the handler of each replayed record
+   * @return the number of replayed records
+   * @throws IOException if the records cannot be read
+   */
+  long replay(final long from, final RecordHandler handler) throws IOException {
+    long position = from;
+    long records = 0;
+    while (position + HEADER + TRAILER <= file.mappedSize()) {
+      // skipped segment remainders
+      final int remaining = file.segmentSize() - offset(position);
+      if (remaining < HEADER + TRAILER || file.at(position).getInt() == PADDING) {
+        position += remaining;
+        continue;
+      }
+
+      final int urlLength = readRecord(position, file.mappedSize());
+      final long id = file.getLong(position + Integer.BYTES);
+      if (urlLength < 0 || id <= 0) {
+        break;
+      }
+      handler.handle(position, id, scratch, urlLength);
+      position += HEADER + urlLength + TRAILER;
+      records++;
+    }
+
+    // erase anything after the last valid record, so that it is never mistaken as a record
+    length = position;
+    file.zero(length, file.mappedSize());
+    return records;
+  }
+
+  /**
+   * Reads the record at the specified position into the scratch buffer, validating it
+   *
+   * @param position the record position
+   * @param limit    the (exclusive) limit position of the record
+   * @return the url length of the record, or {@code -1} if the record is not a valid one
+   * @throws IOException if the record cannot be read
+   */
+  private int readRecord(final long position, final long limit) throws IOException {
+    if (position < 0 || position + HEADER + TRAILER > limit) {
+      return -1;
+    }
+    final MappedByteBuffer segment = file.at(position);
+    final int urlLength = segment.getInt();
+    final long id = segment.getLong();
+    if (urlLength < 0 || urlLength > MAX_URL_BYTES ||
+        position + HEADER + urlLength + TRAILER > limit ||
+        offset(position) + HEADER + urlLength + TRAILER > file.segmentSize()) {
+      return -1;
+    }
+    if (scratch.length < urlLength) {
+      scratch = new byte[Math.max(urlLength, scratch.length * 2)];
+    }
+    segment.get(scratch, 0, urlLength);
+    return segment.getInt() == checksum(id, scratch, urlLength) ? urlLength : -1;
+  }
+
+  /**
+   * Computes the checksum of a record
+   *
+   * @param id        the record identifier
+   * @param url       the url bytes
+   * @param urlLength the url length
+   * @return the record checksum
+   */
+  private int checksum(final long id, final byte[] url, final int urlLength) {
+    crc.reset();
+    for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+      crc.update((int) (id >>> shift));
+    }
+    crc.update(url, 0, urlLength);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Returns the offset of the specified position within its segment
+   *
+   * @param position the absolute position
+   * @return the segment offset
+   */
+  private int offset(final long position) {
+    return (int) (position & (file.segmentSize() - 1));
+  }
+
+  /**
+   * Flushes the written records to the storage device
+   */
+  void force() {
+    file.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * The handler of the replayed records
+   */
+  interface RecordHandler {
+
+    /**
+     * Handles a replayed record
+     *
+     * @param position  the record position
+     * @param id        the record identifier
+     * @param url       the url bytes buffer
+     * @param urlLength the url length
+     * @throws IOException if the record cannot be handled
+     */
+    void handle(long position, long id, byte[] url, int urlLength) throws IOException;
+  }
+}
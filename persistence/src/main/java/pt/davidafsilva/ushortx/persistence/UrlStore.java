@@ -0,0 +1,140 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+
+/**
+ * The storage of the url mappings, used by the {@link DatabaseVerticle} consumers. The store
+ * instances are confined to the context of their verticle, hence every handler is called within
+ * that same context.
+ *
+ * The failures are reported as {@link StoreException}, which carry the failure code to reply
+ * with.
+ *
+ * @author David Silva
+ */
+interface UrlStore {
+
+  /**
+   * Opens the store, creating its data structures if required
+   *
+   * @param readyHandler the handler to be called once the store is ready to be used
+   */
+  void open(Handler<AsyncResult<Void>> readyHandler);
+
+  /**
+   * Looks up the url of the specified identifier
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the url, if existent
+   */
+  void findById(long id, Handler<AsyncResult<Optional<String>>> handler);
+
+  /**
+   * Saves the specified url, if non-existent. Otherwise the existent entry is used, whose url
+   * may be an equivalent spelling of the specified one.
+   *
+   * @param url     the url to save
+   * @param handler the handler to be called with the identifier and url of the stored entry
+   */
+  void save(String url, Handler<AsyncResult<UrlReply>> handler);
+
+  /**
+   * Checks whether or not the saves are batched by the store, in which case each batch goes
+   * through the admission control on its own, instead of each save
+   *
+   * @return {@code true} if the saves are batched, {@code false} otherwise
+   */
+  boolean batchesSaves();
+
+  /**
+   * Looks up the existent identifiers, in ascending order, starting at the specified one
+   *
+   * @param from    the first identifier to look up
+   * @param limit   the maximum number of identifiers
+   * @param handler the handler to be called with the identifiers
+   */
+  void findIds(long from, int limit, Handler<AsyncResult<List<Long>>> handler);
+
+  /**
+   * Looks up the most recently created urls, newest first
+   *
+   * @param limit   the maximum number of urls
+   * @param handler the handler to be called with the urls, by identifier
+   */
+  void findRecent(int limit, Handler<AsyncResult<Map<Long, String>>> handler);
+
+  /**
+   * Adds the specified redirect counts to the identifiers. The identifiers without url are
+   * ignored.
+   *
+   * @param ids     the url identifiers
+   * @param clicks  the number of clicks to add to each identifier
+   * @param handler the handler to be called once the counts are recorded
+   */
+  void recordClicks(long[] ids, long[] clicks, Handler<AsyncResult<Void>> handler);
+
+  /**
+   * Looks up the redirect count of the specified identifier
+   *
+   * @param id      the url identifier
+   * @param handler the handler to be called with the count, if the url is existent
+   */
+  void findClicks(long id, Handler<AsyncResult<Optional<Long>>> handler);
+
+  /**
+   * Returns the epoch of the stored data, a random identity generated along with the store data
+   * structures, hence a store recreated from scratch (e.g. in-memory) has a new epoch. Only
+   * available once the store is opened.
+   *
+   * @return the store epoch
+   */
+  long epoch();
+
+  /**
+   * Returns the store specific statistics
+   *
+   * @return the statistics json
+   */
+  JsonObject stats();
+
+  /**
+   * Closes the store, releasing its resources once the operations running on worker threads, if
+   * any, are completed. The operations still waiting on them are failed.
+   *
+   * @param closeHandler the handler to be called once the store is closed
+   */
+  void close(Handler<AsyncResult<Void>> closeHandler);
+}
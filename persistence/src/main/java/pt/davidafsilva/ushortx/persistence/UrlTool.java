@@ -0,0 +1,617 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import pt.davidafsilva.ushortx.protocol.Hash;
+import pt.davidafsilva.ushortx.protocol.HashCodec;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+/**
+ * The offline bulk import and export tool of the urls of a JDBC store, which uses the same
+ * configuration as the {@link DatabaseVerticle} of the shard. Both directions stream the rows,
+ * hence the memory in use is bounded by the batch sizes instead of the number of urls.
+ *
+ * The export writes a {@code id<TAB>hash<TAB>url} line per url, in ascending order of identifier.
+ * The import reads either such lines, which keep their identifier, or bare urls, which get a new
+ * identifier from the store sequence. The urls equivalent to an existing one are skipped, hence
+ * an import may be re-run safely. The lines with an identifier are imported first, while the
+ * bare urls are spooled to a temporary file and imported afterwards, so that the identifiers
+ * handed out to them never collide with the explicit ones.
+ *
+ * The tool is meant to run against a quiescent database: the verticles of the shard shall not be
+ * saving urls meanwhile.
+ *
+ * The http nodes only learn about the new identifiers saved by the persistence verticles. The
+ * imported ones beyond the highest identifier loaded by their filter are learned on its next
+ * refresh, while the explicit ones below it answer {@code 404} until the http nodes restart.
+ *
+ * @author David Silva
+ */
+public final class UrlTool {
+
+  // the logger
+  private static final Logger LOGGER = LoggerFactory.getLogger(UrlTool.class);
+
+  // the export query, in ascending order of identifier
+  private static final String EXPORT_QUERY = "SELECT ID,URL FROM urls ORDER BY ID";
+  // the find by identifiers query prefix
+  private static final String FIND_BY_IDS_QUERY = "SELECT ID,URL FROM urls WHERE ID IN (";
+  // the max identifier query
+  private static final String MAX_ID_QUERY = "SELECT MAX(ID) FROM urls";
+  // the next block query
+  private static final String NEXT_BLOCK_QUERY =
+      "SELECT NEXT VALUE FOR " + IdAllocator.SEQUENCE_NAME;
+  // the restart sequence statement format (start value)
+  private static final String RESTART_SEQUENCE_STATEMENT =
+      "ALTER SEQUENCE " + IdAllocator.SEQUENCE_NAME + " RESTART WITH %d";
+
+  // the interval between the import progress reports, in nanoseconds
+  private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  // the database connection
+  private final Connection connection;
+  // the owned identifier shard
+  private final Shard shard;
+  // the number of urls read and written at once
+  private final int batchSize;
+  // the number of urls written between commits
+  private final int commitSize;
+  // the number of identifiers reserved at once
+  private final int idBlockSize;
+
+  // the next identifier to hand out and the (exclusive) upper bound of its block
+  private long nextId;
+  private long idLimit;
+  // the max. explicit identifier imported
+  private long maxExplicitId = -1;
+
+  // the import counters
+  private long imported;
+  private long duplicates;
+  private long conflicts;
+  private long skipped;
+  private long invalid;
+
+  /**
+   * Creates a new tool over the specified connection
+   *
+   * @param connection the database connection
+   * @param config     the verticle configuration
+   * @param shard      the owned identifier shard
+   */
+  private UrlTool(final Connection connection, final JsonObject config, final Shard shard) {
+    this.connection = connection;
+    this.shard = shard;
+    this.batchSize = config.getInteger("import_batch_size", 1_000);
+    this.commitSize = config.getInteger("import_commit_size", 10_000);
+    this.idBlockSize = config.getInteger("id_block_size", 100);
+  }
+
+  /**
+   * Runs the tool: {@code (import|export) <file|-> [config.json]}
+   *
+   * @param args the command line arguments
+   * @throws Exception if the import or export fails
+   */
+  public static void main(final String[] args) throws Exception {
+    if (args.length < 2 || args.length > 3 ||
+        !("import".equals(args[0]) || "export".equals(args[0]))) {
+      System.err.println("usage: " + UrlTool.class.getName() +
+          " (import|export) <file|-> [config.json]");
+      System.exit(2);
+      return;
+    }
+
+    final JsonObject config = args.length == 3
+        ? new JsonObject(new String(Files.readAllBytes(Paths.get(args[2])),
+        StandardCharsets.UTF_8))
+        : new JsonObject();
+    final Shard shard = Shard.fromConfig(config);
+
+    // the tables and the identifier sequence are created just like the verticle does
+    createSchema(config, shard);
+
+    final JsonObject dataSource = JdbcUrlStore.dataSourceConfig(config, shard);
+    Class.forName(dataSource.getString("driver_class"));
+    try (final Connection connection = DriverManager.getConnection(dataSource.getString("url"),
+        dataSource.getString("user"), dataSource.getString("password"))) {
+      connection.setAutoCommit(false);
+      final UrlTool tool = new UrlTool(connection, config, shard);
+      if ("import".equals(args[0])) {
+        try (final Reader reader = "-".equals(args[1])
+            ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+            : Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+          tool.importUrls(new BufferedReader(reader));
+        }
+      } else {
+        try (final Writer writer = "-".equals(args[1])
+            ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+            : Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+          tool.exportUrls(new BufferedWriter(writer),
+              Hash.codec(config.getString("salt", Hash.DEFAULT_SALT)),
+              config.getInteger("export_fetch_size", 1_000));
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens (and closes) a {@link JdbcUrlStore} with the specified configuration, which creates
+   * or migrates the tables and the identifier sequence
+   *
+   * @param config the verticle configuration
+   * @param shard  the shard of the store
+   * @throws Exception if the store cannot be opened
+   */
+  private static void createSchema(final JsonObject config, final Shard shard)
+      throws Exception {
+    final Vertx vertx = Vertx.vertx();
+    try {
+      final UrlStore store = new JdbcUrlStore(vertx, config, shard,
+          AdmissionControl.fromConfig(vertx, config));
+      final CompletableFuture<Void> opened = new CompletableFuture<>();
+      store.open(result -> {
+        if (result.succeeded()) {
+          opened.complete(null);
+        } else {
+          opened.completeExceptionally(result.cause());
+        }
+      });
+      try {
+        opened.get();
+      } catch (final ExecutionException e) {
+        throw new IllegalStateException("unable to open the store", e.getCause());
+      } finally {
+        store.close(closed -> {
+        });
+      }
+    } finally {
+      vertx.close();
+    }
+  }
+
+  /**
+   * Exports every url of the shard to the specified writer, through a forward-only cursor
+   *
+   * @param writer    the export writer
+   * @param codec     the hash codec of the identifiers
+   * @param fetchSize the number of rows fetched at once
+   * @throws SQLException if the urls cannot be read
+   * @throws IOException  if the urls cannot be written
+   */
+  private void exportUrls(final Writer writer, final HashCodec codec, final int fetchSize)
+      throws SQLException, IOException {
+    final long start = System.nanoTime();
+    long exported = 0;
+    try (final Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY)) {
+      statement.setFetchSize(fetchSize);
+      try (final ResultSet urls = statement.executeQuery(EXPORT_QUERY)) {
+        while (urls.next()) {
+          final long id = shard.toGlobal(urls.getLong(1));
+          writer.write(Long.toString(id));
+          writer.write('\t');
+          writer.write(codec.encode(id));
+          writer.write('\t');
+          writer.write(urls.getString(2));
+          writer.write('\n');
+          exported++;
+        }
+      }
+    }
+    writer.flush();
+    LOGGER.info(String.format("exported %d urls of shard %s in %.1fs", exported, shard,
+        (System.nanoTime() - start) / 1e9));
+  }
+
+  /**
+   * Imports the urls read from the specified reader, one per line, in batches
+   *
+   * @param reader the import reader
+   * @throws SQLException if the urls cannot be written
+   * @throws IOException  if the urls cannot be read
+   */
+  private void importUrls(final BufferedReader reader) throws SQLException, IOException {
+    final long start = System.nanoTime();
+    final Path deferred = Files.createTempFile("ushortx-import-", ".urls");
+    try {
+      try (final BufferedWriter bareUrls = Files.newBufferedWriter(deferred,
+          StandardCharsets.UTF_8)) {
+        importLines(reader, Optional.of(bareUrls), start);
+      }
+
+      // the identifier sequence must be ahead of the imported identifiers
+      if (maxExplicitId >= 0) {
+        nextBlock();
+      }
+      try (final BufferedReader bareUrls = Files.newBufferedReader(deferred,
+          StandardCharsets.UTF_8)) {
+        importLines(bareUrls, Optional.empty(), start);
+      }
+      connection.commit();
+    } catch (final SQLException | IOException | RuntimeException e) {
+      connection.rollback();
+      report("aborted after importing", start);
+      throw e;
+    } finally {
+      Files.deleteIfExists(deferred);
+    }
+    report("imported", start);
+  }
+
+  /**
+   * Imports the rows read from the specified reader, one per line, in batches, deferring the
+   * bare urls to the given writer, if any
+   *
+   * @param reader   the import reader
+   * @param deferred the writer of the deferred bare urls, if they are to be deferred
+   * @param start    the import start time, in nanoseconds
+   * @throws SQLException if the urls cannot be written
+   * @throws IOException  if the urls cannot be read or deferred
+   */
+  private void importLines(final BufferedReader reader, final Optional<Writer> deferred,
+      final long start) throws SQLException, IOException {
+    long lastReport = System.nanoTime();
+    long uncommitted = 0;
+    final List<ImportRow> batch = new ArrayList<>(batchSize);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final Optional<ImportRow> row = parse(line);
+      if (!row.isPresent()) {
+        continue;
+      } else if (deferred.isPresent() && row.get().localId < 0) {
+        deferred.get().write(row.get().url + '\n');
+        continue;
+      }
+      batch.add(row.get());
+      if (batch.size() < batchSize) {
+        continue;
+      }
+
+      uncommitted += importBatch(batch);
+      batch.clear();
+      if (uncommitted >= commitSize) {
+        connection.commit();
+        uncommitted = 0;
+      }
+      if (System.nanoTime() - lastReport >= REPORT_INTERVAL) {
+        lastReport = System.nanoTime();
+        report("imported", start);
+      }
+    }
+    importBatch(batch);
+  }
+
+  /**
+   * Parses the specified import line, which is either an export line or a bare url
+   *
+   * @param line the import line
+   * @return the row to import, if valid and owned by the shard
+   */
+  private Optional<ImportRow> parse(final String line) {
+    final String trimmed = line.trim();
+    if (trimmed.isEmpty()) {
+      return Optional.empty();
+    }
+
+    // an export line: id, hash and url
+    final String[] columns = trimmed.split("\t");
+    if (columns.length > 1) {
+      final long localId;
+      try {
+        localId = columns.length == 3 ? shard.toLocal(Long.parseLong(columns[0])) : -1;
+      } catch (final NumberFormatException e) {
+        invalid++;
+        return Optional.empty();
+      }
+      if (columns.length != 3 || columns[2].isEmpty()) {
+        invalid++;
+        return Optional.empty();
+      } else if (localId < 0) {
+        skipped++;
+        return Optional.empty();
+      }
+      return Optional.of(new ImportRow(localId, columns[2]));
+    }
+
+    // a bare url, routed to the shards just like the saves, see RestVerticle#protocolify
+    final String url = trimmed.startsWith("http://") || trimmed.startsWith("https://")
+        ? trimmed : "http://" + trimmed;
+    if (trimmed.indexOf(' ') >= 0) {
+      invalid++;
+      return Optional.empty();
+    } else if (!shard.ownsUrl(url)) {
+      skipped++;
+      return Optional.empty();
+    }
+    return Optional.of(new ImportRow(-1, url));
+  }
+
+  /**
+   * Imports the specified batch of rows, skipping the urls equivalent to an existing one and the
+   * explicit identifiers already taken
+   *
+   * @param batch the rows to import
+   * @return the number of imported rows
+   * @throws SQLException if the rows cannot be written
+   */
+  private int importBatch(final List<ImportRow> batch) throws SQLException {
+    if (batch.isEmpty()) {
+      return 0;
+    }
+
+    // the identifiers handed out must be past every explicit one, even if not written yet
+    batch.stream().filter(row -> row.localId >= 0)
+        .forEach(row -> maxExplicitId = Math.max(maxExplicitId, row.localId));
+
+    // the explicit identifiers already there are either the same url or a conflict
+    final Map<Long, String> taken = findByIds(batch);
+    final Map<Long, String> digests = findByDigests(batch);
+    int inserted = 0;
+    try (final PreparedStatement insert = connection.prepareStatement(
+        JdbcUrlStore.INSERT_URL_STATEMENT);
+         final PreparedStatement findByDigest = connection.prepareStatement(
+             JdbcUrlStore.FIND_BY_DIGEST_QUERY)) {
+      for (final ImportRow row : batch) {
+        if (row.localId >= 0 && taken.containsKey(row.localId)) {
+          if (row.normalizedUrl.equals(taken.get(row.localId))) {
+            duplicates++;
+          } else {
+            conflicts++;
+          }
+          continue;
+        }
+
+        final Optional<Long> digest = freeDigest(row.normalizedUrl, digests, findByDigest);
+        if (!digest.isPresent()) {
+          duplicates++;
+          continue;
+        }
+
+        final long id = row.localId >= 0 ? row.localId : nextId();
+        taken.put(id, row.normalizedUrl);
+        digests.put(digest.get(), row.normalizedUrl);
+        insert.setLong(1, id);
+        insert.setLong(2, digest.get());
+        insert.setString(3, row.url);
+        insert.addBatch();
+        inserted++;
+      }
+      if (inserted > 0) {
+        insert.executeBatch();
+      }
+    }
+    imported += inserted;
+    return inserted;
+  }
+
+  /**
+   * Finds the normalized urls of the explicit identifiers of the specified rows
+   *
+   * @param batch the rows to import
+   * @return the normalized urls by (local) identifier
+   * @throws SQLException if the urls cannot be read
+   */
+  private Map<Long, String> findByIds(final List<ImportRow> batch) throws SQLException {
+    final List<Long> ids = new ArrayList<>();
+    batch.stream().filter(row -> row.localId >= 0).forEach(row -> ids.add(row.localId));
+    return findUrls(FIND_BY_IDS_QUERY, ids);
+  }
+
+  /**
+   * Finds the normalized urls at the base digests of the specified rows
+   *
+   * @param batch the rows to import
+   * @return the normalized urls by digest
+   * @throws SQLException if the urls cannot be read
+   */
+  private Map<Long, String> findByDigests(final List<ImportRow> batch) throws SQLException {
+    final List<Long> digests = new ArrayList<>(batch.size());
+    batch.forEach(row -> digests.add(UrlDigest.digest(row.normalizedUrl)));
+    return findUrls(SaveBatcher.FIND_BY_DIGESTS_QUERY, digests);
+  }
+
+  /**
+   * Executes the specified {@code IN} query prefix with the given keys, whose result rows start
+   * with the identifier and url columns, and optionally the digest
+   *
+   * @param queryPrefix the query prefix, up to the {@code IN} list
+   * @param keys        the keys to look up
+   * @return the normalized urls by key, which is the last column of the row
+   * @throws SQLException if the urls cannot be read
+   */
+  private Map<Long, String> findUrls(final String queryPrefix, final List<Long> keys)
+      throws SQLException {
+    final Map<Long, String> urls = new HashMap<>();
+    if (keys.isEmpty()) {
+      return urls;
+    }
+    try (final PreparedStatement query = connection.prepareStatement(
+        queryPrefix + SaveBatcher.placeholders(keys.size(), "?") + ")")) {
+      for (int i = 0; i < keys.size(); i++) {
+        query.setLong(i + 1, keys.get(i));
+      }
+      try (final ResultSet rows = query.executeQuery()) {
+        final int keyColumn = rows.getMetaData().getColumnCount() == 3 ? 3 : 1;
+        while (rows.next()) {
+          urls.put(rows.getLong(keyColumn), Urls.normalize(rows.getString(2)));
+        }
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * Probes the digests of the specified normalized url, as {@link JdbcUrlStore} does, until a
+   * free one is found
+   *
+   * @param normalizedUrl the normalized url
+   * @param digests       the known normalized urls by digest, which is updated with the probes
+   * @param findByDigest  the find by digest query
+   * @return the free digest, or empty if an equivalent url is there already
+   * @throws SQLException if every digest probe is taken
+   */
+  private static Optional<Long> freeDigest(final String normalizedUrl,
+      final Map<Long, String> digests, final PreparedStatement findByDigest) throws SQLException {
+    final long baseDigest = UrlDigest.digest(normalizedUrl);
+    for (int probe = 0; probe < JdbcUrlStore.MAX_DIGEST_PROBES; probe++) {
+      final long digest = baseDigest + probe;
+      if (probe > 0 && !digests.containsKey(digest)) {
+        findByDigest.setLong(1, digest);
+        try (final ResultSet row = findByDigest.executeQuery()) {
+          if (row.next()) {
+            digests.put(digest, Urls.normalize(row.getString(2)));
+          }
+        }
+      }
+
+      final String existing = digests.get(digest);
+      if (existing == null) {
+        return Optional.of(digest);
+      } else if (existing.equals(normalizedUrl)) {
+        return Optional.empty();
+      }
+    }
+    throw new SQLException("no free digest for " + normalizedUrl);
+  }
+
+  /**
+   * Hands out the next identifier of the current block, reserving a new block if required
+   *
+   * @return the identifier
+   * @throws SQLException if a block cannot be reserved
+   */
+  private long nextId() throws SQLException {
+    if (nextId >= idLimit || nextId <= maxExplicitId) {
+      nextBlock();
+    }
+    return nextId++;
+  }
+
+  /**
+   * Reserves a new block of identifiers from the store sequence, restarting the sequence after
+   * the imported identifiers, written or not, if required
+   *
+   * @throws SQLException if the block cannot be reserved
+   */
+  private void nextBlock() throws SQLException {
+    try (final Statement statement = connection.createStatement()) {
+      nextId = nextValue(statement);
+      if (nextId <= maxExplicitId) {
+        try (final ResultSet max = statement.executeQuery(MAX_ID_QUERY)) {
+          max.next();
+          statement.execute(String.format(RESTART_SEQUENCE_STATEMENT,
+              Math.max(max.getLong(1), maxExplicitId) + 1));
+        }
+        nextId = nextValue(statement);
+      }
+      idLimit = nextId + idBlockSize;
+    }
+  }
+
+  /**
+   * Reads the next value of the store sequence
+   *
+   * @param statement the statement to use
+   * @return the next value
+   * @throws SQLException if the value cannot be read
+   */
+  private static long nextValue(final Statement statement) throws SQLException {
+    try (final ResultSet value = statement.executeQuery(NEXT_BLOCK_QUERY)) {
+      value.next();
+      return value.getLong(1);
+    }
+  }
+
+  /**
+   * Reports the import progress
+   *
+   * @param action the import action
+   * @param start  the import start time, in nanoseconds
+   */
+  private void report(final String action, final long start) {
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    LOGGER.info(String.format("%s %d urls into shard %s in %.1fs (%.0f urls/s): " +
+            "%d duplicates, %d conflicts, %d skipped, %d invalid", action, imported, shard,
+        seconds, imported / Math.max(seconds, 1e-3), duplicates, conflicts, skipped, invalid));
+  }
+
+  /**
+   * An url to be imported
+   */
+  private static final class ImportRow {
+
+    // the explicit (local) identifier, -1 if none
+    private final long localId;
+    // the url
+    private final String url;
+    // the normalized url
+    private final String normalizedUrl;
+
+    /**
+     * Creates a new row
+     *
+     * @param localId the explicit (local) identifier, -1 if none
+     * @param url     the url
+     */
+    private ImportRow(final long localId, final String url) {
+      this.localId = localId;
+      this.url = url;
+      this.normalizedUrl = Urls.normalize(url);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.persistence.AdmissionControl.Priority;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the load shedding and of the limit adaptation of the {@link AdmissionControl}
+ *
+ * @author David Silva
+ */
+public class AdmissionControlTest {
+
+  // the vertx instance
+  private Vertx vertx;
+  // the context of the admission control
+  private Context context;
+  // the done handlers of the running operations
+  private List<Handler<Boolean>> running;
+
+  @Before
+  public void setup() {
+    vertx = Vertx.vertx();
+    context = vertx.getOrCreateContext();
+    running = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    final CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(result -> closed.complete(null));
+    closed.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void submit_shedsOnceTheQueueIsFull() throws Exception {
+    final AdmissionControl admission = onContext(() -> new AdmissionControl(vertx, 1, 1, 1,
+        60_000L));
+    final CompletableFuture<Void> rejected = new CompletableFuture<>();
+    final JsonObject stats = onContext(() -> {
+      admission.submit(Priority.LOOKUP, () -> rejected.complete(null), running::add);
+      admission.submit(Priority.LOOKUP, () -> rejected.complete(null), running::add);
+      admission.submit(Priority.LOOKUP, () -> rejected.complete(null), running::add);
+      return admission.stats();
+    });
+
+    assertTrue(rejected.isDone());
+    assertEquals(1, running.size());
+    assertEquals(1, (int) stats.getInteger("queued_lookups"));
+    assertEquals(1L, (long) stats.getLong("shed_lookups"));
+    onContext(admission::close);
+  }
+
+  @Test
+  public void submit_expiresTheWaitingOperations() throws Exception {
+    final AdmissionControl admission = onContext(() -> new AdmissionControl(vertx, 1, 1, 10,
+        50L));
+    final CompletableFuture<Void> rejected = new CompletableFuture<>();
+    onContext(() -> {
+      admission.submit(Priority.LOOKUP, () -> rejected.complete(null), running::add);
+      admission.submit(Priority.SAVE, () -> rejected.complete(null), running::add);
+    });
+
+    // the waiting save is rejected at its deadline, while the lookup keeps running
+    rejected.get(5, TimeUnit.SECONDS);
+    final JsonObject stats = onContext(admission::stats);
+    assertEquals(1, running.size());
+    assertEquals(0, (int) stats.getInteger("queued_saves"));
+    assertEquals(1L, (long) stats.getLong("shed_saves"));
+    assertEquals(1, (int) stats.getInteger("in_flight"));
+
+    // the expired save is not admitted once the lookup is done
+    onContext(() -> running.get(0).handle(true));
+    assertEquals(1, running.size());
+    assertEquals(0, (int) onContext(admission::stats).getInteger("in_flight"));
+    onContext(admission::close);
+  }
+
+  @Test
+  public void submit_admitsTheWaitingLookupsFirst() throws Exception {
+    final AdmissionControl admission = onContext(() -> new AdmissionControl(vertx, 1, 1, 10,
+        60_000L));
+    final List<Priority> order = new ArrayList<>();
+    onContext(() -> {
+      admission.submit(Priority.SAVE, () -> {
+      }, running::add);
+      admission.submit(Priority.SAVE, () -> {
+      }, done -> order.add(Priority.SAVE));
+      admission.submit(Priority.LOOKUP, () -> {
+      }, done -> {
+        order.add(Priority.LOOKUP);
+        done.handle(true);
+      });
+      running.get(0).handle(true);
+    });
+
+    assertEquals(Priority.LOOKUP, order.get(0));
+    assertEquals(Priority.SAVE, order.get(1));
+    onContext(admission::close);
+  }
+
+  @Test
+  public void run_leavesTheLimitOfUnsampledOperations() throws Exception {
+    final AdmissionControl admission = onContext(() -> new AdmissionControl(vertx, 10, 200,
+        10, 60_000L));
+    final JsonObject stats = onContext(() -> {
+      for (int i = 0; i < 100; i++) {
+        admission.submit(Priority.SAVE, () -> {
+        }, done -> done.handle(null));
+      }
+      return admission.stats();
+    });
+
+    assertEquals(10, (int) stats.getInteger("limit"));
+    assertEquals(0, (int) stats.getInteger("in_flight"));
+    onContext(admission::close);
+  }
+
+  @Test
+  public void run_shrinksTheLimitOnFailures() throws Exception {
+    final AdmissionControl admission = onContext(() -> new AdmissionControl(vertx, 10, 200,
+        10, 60_000L));
+    final JsonObject stats = onContext(() -> {
+      admission.submit(Priority.LOOKUP, () -> {
+      }, done -> done.handle(false));
+      return admission.stats();
+    });
+
+    assertTrue(stats.getInteger("limit") < 10);
+    onContext(admission::close);
+  }
+
+  /**
+   * Runs the specified action within the context of the admission control, waiting for it
+   *
+   * @param action the action to run
+   * @param <T>    the result type
+   * @return the action result
+   * @throws Exception if the action fails or times out
+   */
+  private <T> T onContext(final Supplier<T> action) throws Exception {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      try {
+        future.complete(action.get());
+      } catch (final RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future.get(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Runs the specified action within the context of the admission control, waiting for it
+   *
+   * @param action the action to run
+   * @throws Exception if the action fails or times out
+   */
+  private void onContext(final Runnable action) throws Exception {
+    onContext(() -> {
+      action.run();
+      return null;
+    });
+  }
+}
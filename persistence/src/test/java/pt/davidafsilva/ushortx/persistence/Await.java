@@ -0,0 +1,97 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+
+/**
+ * Runs the asynchronous operations of the tests within a vertx context, where the stores are
+ * confined, blocking the test thread until they complete
+ *
+ * @author David Silva
+ */
+final class Await {
+
+  // the max. time, in seconds, an operation is waited for
+  private static final long TIMEOUT = 10;
+
+  // private constructor
+  private Await() {
+  }
+
+  /**
+   * Runs the specified operation within the given context, waiting for its result
+   *
+   * @param context   the context of the operation
+   * @param operation the operation, which completes the given handler
+   * @param <T>       the result type
+   * @return the operation result
+   * @throws Exception the operation failure, if failed
+   */
+  static <T> T result(final Context context,
+      final Consumer<Handler<AsyncResult<T>>> operation) throws Exception {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    context.runOnContext(v -> operation.accept(result -> {
+      if (result.succeeded()) {
+        future.complete(result.result());
+      } else {
+        future.completeExceptionally(result.cause());
+      }
+    }));
+    try {
+      return future.get(TIMEOUT, TimeUnit.SECONDS);
+    } catch (final ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Runs the specified operation within the given context, waiting for its failure
+   *
+   * @param context   the context of the operation
+   * @param operation the operation, which completes the given handler
+   * @param <T>       the result type
+   * @return the operation failure
+   * @throws Exception if the operation does not fail
+   */
+  static <T> Throwable failure(final Context context,
+      final Consumer<Handler<AsyncResult<T>>> operation) throws Exception {
+    try {
+      result(context, operation);
+    } catch (final Exception e) {
+      return e;
+    }
+    throw new AssertionError("the operation did not fail");
+  }
+}
@@ -0,0 +1,308 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.Failure;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+import pt.davidafsilva.ushortx.protocol.Urls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the url deduplication and of the schema migration of the {@link JdbcUrlStore},
+ * against an in-memory H2 database
+ *
+ * @author David Silva
+ */
+public class JdbcUrlStoreTest {
+
+  // the vertx instance
+  private Vertx vertx;
+  // the context of the store
+  private Context context;
+  // the store configuration, with a database of its own
+  private JsonObject config;
+  // the store under test
+  private UrlStore store;
+
+  @Before
+  public void setup() {
+    vertx = Vertx.vertx();
+    context = vertx.getOrCreateContext();
+    config = new JsonObject()
+        .put("url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+        .put("id_block_size", 10);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (store != null) {
+      Await.<Void>result(context, store::close);
+    }
+    vertx.close();
+  }
+
+  /**
+   * Creates and opens a new store with the test configuration
+   *
+   * @return the opened store
+   * @throws Exception if the store cannot be opened
+   */
+  private UrlStore open() throws Exception {
+    store = new JdbcUrlStore(vertx, config, Shard.fromConfig(config),
+        AdmissionControl.fromConfig(vertx, config));
+    Await.<Void>result(context, store::open);
+    return store;
+  }
+
+  /**
+   * Opens a plain connection to the test database
+   *
+   * @return the database connection
+   * @throws SQLException if the connection cannot be opened
+   */
+  private Connection connect() throws SQLException {
+    return DriverManager.getConnection(config.getString("url"), "ushortx", "shall-not-be-used");
+  }
+
+  @Test
+  public void save_equivalentUrlsShareTheIdentifier() throws Exception {
+    open();
+    final long id = save("http://example.com").id();
+    final UrlReply equivalent = save("HTTP://Example.COM:80/");
+    assertEquals(id, equivalent.id());
+    assertEquals("http://example.com", equivalent.url());
+    assertNotEquals(id, save("http://example.com/other").id());
+    assertEquals(Optional.of("http://example.com"),
+        Await.<Optional<String>>result(context, h -> store.findById(id, h)));
+  }
+
+  @Test
+  public void save_batchedEquivalentUrlsReplyTheStoredUrl() throws Exception {
+    config.put("batch_size", 2).put("batch_linger", 10L);
+    open();
+    final UrlReply stored = save("http://example.com");
+    final UrlReply equivalent = save("HTTP://Example.COM:80/");
+    assertEquals(stored.id(), equivalent.id());
+    assertEquals("http://example.com", equivalent.url());
+  }
+
+  /**
+   * Saves the specified url at the store
+   *
+   * @param url the url to save
+   * @return the stored entry
+   * @throws Exception if the save fails
+   */
+  private UrlReply save(final String url) throws Exception {
+    return Await.<UrlReply>result(context, h -> store.save(url, h));
+  }
+
+  @Test
+  public void save_probesTheNextDigestOnCollision() throws Exception {
+    open();
+    // a distinct url that takes the digest of the saved one
+    final String url = "http://example.com/collision";
+    final long digest = UrlDigest.digest(Urls.normalize(url));
+    try (final Connection connection = connect();
+         final PreparedStatement insert = connection.prepareStatement(
+             "INSERT INTO urls(ID,DIGEST,URL) VALUES(1000000,?,'http://example.com/taken')")) {
+      insert.setLong(1, digest);
+      insert.executeUpdate();
+    }
+
+    final long id = save(url).id();
+    assertNotEquals(1_000_000L, id);
+    assertEquals(Long.valueOf(digest + 1), digestOf(id));
+    // the same url probes its way to the same entry
+    assertEquals(id, save(url).id());
+    assertEquals(Optional.of("http://example.com/taken"),
+        Await.<Optional<String>>result(context, h -> store.findById(1_000_000L, h)));
+  }
+
+  @Test
+  public void save_failsOnceTheProbesAreExhausted() throws Exception {
+    open();
+    final String url = "http://example.com/exhausted";
+    final long digest = UrlDigest.digest(Urls.normalize(url));
+    try (final Connection connection = connect();
+         final PreparedStatement insert = connection.prepareStatement(
+             "INSERT INTO urls(ID,DIGEST,URL) VALUES(?,?,?)")) {
+      for (int probe = 0; probe < JdbcUrlStore.MAX_DIGEST_PROBES; probe++) {
+        insert.setLong(1, 1_000_000L + probe);
+        insert.setLong(2, digest + probe);
+        insert.setString(3, "http://example.com/taken-" + probe);
+        insert.executeUpdate();
+      }
+    }
+
+    final Throwable failure = Await.<UrlReply>failure(context, h -> store.save(url, h));
+    assertEquals(Failure.STORAGE_ERROR, ((StoreException) failure).failure());
+  }
+
+  @Test
+  public void open_migratesTheDigestsOnce() throws Exception {
+    // a table created before the digests, with equivalent urls
+    try (final Connection connection = connect();
+         final Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE urls(ID BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+          "URL VARCHAR(255) NOT NULL UNIQUE)");
+      statement.execute("INSERT INTO urls(URL) VALUES('http://example.com'), " +
+          "('HTTP://EXAMPLE.COM/'), ('http://example.org/a')");
+    }
+
+    open();
+    assertEquals(Long.valueOf(UrlDigest.digest("http://example.com/")), digestOf(1));
+    assertNull(digestOf(2));
+    assertEquals(Long.valueOf(UrlDigest.digest("http://example.org/a")), digestOf(3));
+    // the urls are no longer limited
+    final String longUrl = "http://example.com/" + new String(new char[1000]).replace('\0', 'a');
+    final long longId = save(longUrl).id();
+    assertEquals(Optional.of(longUrl),
+        Await.<Optional<String>>result(context, h -> store.findById(longId, h)));
+
+    // an url without digest is no longer digested, as the migration is completed
+    try (final Connection connection = connect();
+         final Statement statement = connection.createStatement()) {
+      statement.execute("INSERT INTO urls(ID,URL) VALUES(1000000,'http://example.net/')");
+    }
+    Await.<Void>result(context, store::close);
+    open();
+    assertNull(digestOf(1_000_000L));
+    assertNull(digestOf(2));
+  }
+
+  @Test
+  public void open_resumesAnInterruptedMigration() throws Exception {
+    // a table migrated up to the digests, which were not computed yet
+    try (final Connection connection = connect();
+         final Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE urls(ID BIGINT NOT NULL PRIMARY KEY, DIGEST BIGINT, " +
+          "URL VARCHAR NOT NULL)");
+      statement.execute("INSERT INTO urls(ID,URL) VALUES(1,'http://example.com')");
+    }
+
+    open();
+    assertEquals(Long.valueOf(UrlDigest.digest("http://example.com/")), digestOf(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void create_rejectsOtherDatabases() {
+    config.put("url", "jdbc:postgresql://localhost/ushortx");
+    new JdbcUrlStore(vertx, config, Shard.fromConfig(config),
+        AdmissionControl.fromConfig(vertx, config));
+  }
+
+  @Test
+  public void close_failsTheLingeringSaves() throws Exception {
+    config.put("batch_size", 10).put("batch_linger", 60_000L);
+    open();
+    final CompletableFuture<AsyncResult<UrlReply>> lingering = new CompletableFuture<>();
+    final CompletableFuture<AsyncResult<Void>> closed = new CompletableFuture<>();
+    final UrlStore closing = store;
+    store = null;
+    context.runOnContext(v -> {
+      closing.save("http://example.com", lingering::complete);
+      closing.close(closed::complete);
+    });
+
+    assertTrue(closed.get(10, TimeUnit.SECONDS).succeeded());
+    final Throwable failure = lingering.get(10, TimeUnit.SECONDS).cause();
+    assertEquals(Failure.UNAVAILABLE, ((StoreException) failure).failure());
+    final Throwable late = Await.<UrlReply>failure(context, h -> closing.save("http://late.com", h));
+    assertEquals(Failure.UNAVAILABLE, ((StoreException) late).failure());
+  }
+
+  @Test
+  public void close_waitsForTheBatchBeingWritten() throws Exception {
+    config.put("batch_size", 2).put("batch_linger", 60_000L);
+    open();
+    final List<String> completions = new ArrayList<>();
+    final CompletableFuture<Void> closed = new CompletableFuture<>();
+    final UrlStore closing = store;
+    store = null;
+    context.runOnContext(v -> {
+      // a full batch, which is written right away
+      closing.save("http://example.com/1", r -> completions.add("1:" + r.succeeded()));
+      closing.save("http://example.com/2", r -> completions.add("2:" + r.succeeded()));
+      closing.close(r -> {
+        completions.add("closed:" + r.succeeded());
+        closed.complete(null);
+      });
+    });
+
+    closed.get(10, TimeUnit.SECONDS);
+    assertEquals(3, completions.size());
+    assertEquals("closed:true", completions.get(2));
+    assertTrue(completions.contains("1:true"));
+    assertTrue(completions.contains("2:true"));
+  }
+
+  /**
+   * Reads the digest of the specified identifier
+   *
+   * @param id the url identifier
+   * @return the url digest, {@code null} if absent
+   * @throws SQLException if the digest cannot be read
+   */
+  private Long digestOf(final long id) throws SQLException {
+    try (final Connection connection = connect();
+         final PreparedStatement query = connection.prepareStatement(
+             "SELECT DIGEST FROM urls WHERE ID=?")) {
+      query.setLong(1, id);
+      try (final ResultSet result = query.executeQuery()) {
+        assertTrue("no url " + id, result.next());
+        final long digest = result.getLong(1);
+        return result.wasNull() ? null : digest;
+      }
+    }
+  }
+}
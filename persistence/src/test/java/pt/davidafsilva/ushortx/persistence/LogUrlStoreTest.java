@@ -0,0 +1,241 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import pt.davidafsilva.ushortx.protocol.UrlReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the crash recovery and of the close of the {@link LogUrlStore}. A crash is
+ * simulated by copying the storage files of an open store, whose mapped contents are visible to
+ * the copy as if the process died right then.
+ *
+ * @author David Silva
+ */
+public class LogUrlStoreTest {
+
+  // the size of the record header (url length and identifier) and trailer (checksum)
+  private static final int RECORD_OVERHEAD = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  // the storage directories
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  // the vertx instance
+  private Vertx vertx;
+  // the context of the stores
+  private Context context;
+  // the opened stores, closed afterwards
+  private final List<UrlStore> stores = new ArrayList<>();
+
+  @Before
+  public void setup() {
+    vertx = Vertx.vertx();
+    context = vertx.getOrCreateContext();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (final UrlStore store : stores) {
+      Await.<Void>result(context, store::close);
+    }
+    vertx.close();
+  }
+
+  /**
+   * Creates and opens a new store at the specified storage directory
+   *
+   * @param directory the storage directory
+   * @param fsync     the fsync policy
+   * @return the opened store
+   * @throws Exception if the store cannot be opened
+   */
+  private UrlStore open(final Path directory, final String fsync) throws Exception {
+    final JsonObject config = new JsonObject()
+        .put("storage_path", directory.toString())
+        .put("storage_fsync", fsync)
+        .put("storage_expected_urls", 100L);
+    final UrlStore store = new LogUrlStore(vertx, config, Shard.fromConfig(config));
+    Await.<Void>result(context, store::open);
+    stores.add(store);
+    return store;
+  }
+
+  /**
+   * Closes the specified store
+   *
+   * @param store the store to close
+   * @throws Exception if the store cannot be closed
+   */
+  private void close(final UrlStore store) throws Exception {
+    stores.remove(store);
+    Await.<Void>result(context, store::close);
+  }
+
+  /**
+   * Copies the storage files of the specified directory, as left by a crash
+   *
+   * @param directory the storage directory
+   * @return the directory of the copy
+   * @throws Exception if the files cannot be copied
+   */
+  private Path crash(final Path directory) throws Exception {
+    final Path copy = folder.newFolder().toPath();
+    for (final String file : new String[]{"epoch", "urls.log", "urls.idx", "urls.dig",
+        "clicks.idx"}) {
+      Files.copy(directory.resolve(file), copy.resolve(file));
+    }
+    return copy;
+  }
+
+  /**
+   * Saves the specified url
+   *
+   * @param store the store
+   * @param url   the url to save
+   * @return the url identifier
+   * @throws Exception if the url cannot be saved
+   */
+  private long save(final UrlStore store, final String url) throws Exception {
+    return Await.<UrlReply>result(context, h -> store.save(url, h)).id();
+  }
+
+  /**
+   * Finds the url of the specified identifier
+   *
+   * @param store the store
+   * @param id    the url identifier
+   * @return the url, if any
+   * @throws Exception if the url cannot be read
+   */
+  private Optional<String> find(final UrlStore store, final long id) throws Exception {
+    return Await.<Optional<String>>result(context, h -> store.findById(id, h));
+  }
+
+  @Test
+  public void open_replaysTheRecordsAfterTheCheckpoint() throws Exception {
+    final Path directory = folder.newFolder().toPath();
+    UrlStore store = open(directory, "never");
+    assertEquals(1L, save(store, "http://example.com/1"));
+    assertEquals(2L, save(store, "http://example.com/2"));
+    // the close records a checkpoint past both records
+    final long epoch = store.epoch();
+    close(store);
+    store = open(directory, "never");
+    assertEquals(3L, save(store, "http://example.com/3"));
+
+    final UrlStore recovered = open(crash(directory), "never");
+    assertEquals(epoch, recovered.epoch());
+    assertEquals(3L, (long) recovered.stats().getLong("urls"));
+    assertEquals(Optional.of("http://example.com/3"), find(recovered, 3));
+    // the replayed record is indexed by digest as well as the checkpointed ones
+    assertEquals(3L, save(recovered, "HTTP://example.com:80/3"));
+    assertEquals("http://example.com/3", Await.<UrlReply>result(context,
+        h -> recovered.save("HTTP://example.com:80/3", h)).url());
+    assertEquals(1L, save(recovered, "http://example.com/1"));
+    assertEquals(4L, save(recovered, "http://example.com/4"));
+  }
+
+  @Test
+  public void open_discardsAPartiallyWrittenRecord() throws Exception {
+    final Path directory = folder.newFolder().toPath();
+    final UrlStore store = open(directory, "never");
+    final String[] urls = {"http://example.com/1", "http://example.com/2",
+        "http://example.com/3"};
+    long logLength = 0;
+    for (final String url : urls) {
+      save(store, url);
+      logLength += RECORD_OVERHEAD + url.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // tear the checksum of the last record
+    final Path copy = crash(directory);
+    try (final FileChannel log = FileChannel.open(copy.resolve("urls.log"),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer last = ByteBuffer.allocate(1);
+      log.read(last, logLength - 1);
+      last.put(0, (byte) ~last.get(0));
+      last.rewind();
+      log.write(last, logLength - 1);
+    }
+
+    final UrlStore recovered = open(copy, "never");
+    assertEquals(2L, (long) recovered.stats().getLong("urls"));
+    assertEquals(Optional.of("http://example.com/2"), find(recovered, 2));
+    assertEquals(Optional.empty(), find(recovered, 3));
+    // the stale digest entry of the lost record is not mistaken for the url
+    assertEquals(3L, save(recovered, "http://example.com/other"));
+    assertEquals(4L, save(recovered, "http://example.com/3"));
+    assertEquals(Optional.of("http://example.com/other"), find(recovered, 3));
+  }
+
+  @Test
+  public void close_waitsForTheRunningFlush() throws Exception {
+    final Path directory = folder.newFolder().toPath();
+    final UrlStore store = open(directory, "always");
+    stores.remove(store);
+    final CompletableFuture<AsyncResult<UrlReply>> flushed = new CompletableFuture<>();
+    final CompletableFuture<AsyncResult<UrlReply>> pending = new CompletableFuture<>();
+    final CompletableFuture<AsyncResult<Void>> closed = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      // the first save starts a flush, which the second one waits for
+      store.save("http://example.com/1", flushed::complete);
+      store.save("http://example.com/2", pending::complete);
+      store.close(closed::complete);
+    });
+
+    assertTrue(closed.get(10, TimeUnit.SECONDS).succeeded());
+    assertEquals(1L, flushed.get(10, TimeUnit.SECONDS).result().id());
+    assertTrue(pending.get(10, TimeUnit.SECONDS).failed());
+    final UrlStore reopened = open(directory, "always");
+    assertEquals(Optional.of("http://example.com/1"), find(reopened, 1));
+  }
+}
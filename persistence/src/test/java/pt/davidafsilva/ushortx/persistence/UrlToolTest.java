@@ -0,0 +1,134 @@
+package pt.davidafsilva.ushortx.persistence;
+
+/*
+ * #%L
+ * ushortx-persistence
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.vertx.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The tests of the {@link UrlTool} import of explicit identifiers mixed with bare urls, against
+ * an H2 database file
+ *
+ * @author David Silva
+ */
+public class UrlToolTest {
+
+  // the database and the import files
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Imports the specified lines with the given configuration file
+   *
+   * @param config the configuration file
+   * @param lines  the lines to import
+   * @throws Exception if the import fails
+   */
+  private void importLines(final Path config, final String... lines) throws Exception {
+    final Path file = folder.newFile().toPath();
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+    UrlTool.main(new String[]{"import", file.toString(), config.toString()});
+  }
+
+  /**
+   * Reads the urls of the database
+   *
+   * @param url the database url
+   * @return the urls, by identifier
+   * @throws Exception if the urls cannot be read
+   */
+  private static Map<Long, String> urls(final String url) throws Exception {
+    final Map<Long, String> urls = new HashMap<>();
+    try (final Connection connection = DriverManager.getConnection(url, "ushortx",
+        "shall-not-be-used");
+         final Statement statement = connection.createStatement();
+         final ResultSet rows = statement.executeQuery("SELECT ID,URL FROM urls")) {
+      while (rows.next()) {
+        urls.put(rows.getLong(1), rows.getString(2));
+      }
+    }
+    return urls;
+  }
+
+  @Test
+  public void import_mixedLinesGetUniqueIdentifiers() throws Exception {
+    final String url = "jdbc:h2:" + folder.getRoot().toPath().resolve("db");
+    final Path config = folder.newFile("config.json").toPath();
+    Files.write(config, new JsonObject()
+        .put("url", url)
+        .put("id_block_size", 2)
+        .put("import_batch_size", 4)
+        .encode().getBytes(StandardCharsets.UTF_8));
+
+    // the bare urls come before and after the explicit identifiers of the same batches
+    final String[] lines = {
+        "example.com/a",
+        "1\thash\thttp://example.com/1",
+        "example.com/b",
+        "2\thash\thttp://example.com/2",
+        "example.com/c",
+        "example.com/d",
+        "7\thash\thttp://example.com/7",
+        "example.com/e"
+    };
+    importLines(config, lines);
+
+    final Map<Long, String> urls = urls(url);
+    assertEquals(lines.length, urls.size());
+    assertEquals("http://example.com/1", urls.get(1L));
+    assertEquals("http://example.com/2", urls.get(2L));
+    assertEquals("http://example.com/7", urls.get(7L));
+    for (final Map.Entry<Long, String> entry : urls.entrySet()) {
+      assertTrue(entry.toString(), entry.getKey() > 7 || entry.getValue().endsWith(
+          "/" + entry.getKey()));
+    }
+
+    // a re-run imports nothing, and the sequence is ahead of every identifier
+    importLines(config, lines);
+    importLines(config, "example.com/f");
+    final Map<Long, String> rerun = urls(url);
+    assertEquals(lines.length + 1, rerun.size());
+    assertTrue(rerun.containsValue("http://example.com/f"));
+  }
+}
@@ -0,0 +1,124 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+
+/**
+ * The failures of the persistence requests, which are replied as the failure code of the
+ * request message.
+ *
+ * @author David Silva
+ */
+public enum Failure {
+
+  /**
+   * The persistence resources (e.g. database connections) are unavailable, as well as the
+   * persistence itself (no handlers or timeout)
+   */
+  UNAVAILABLE(1),
+  /**
+   * The request is not a valid one
+   */
+  INVALID_REQUEST(2),
+  /**
+   * The storage failed while handling the request
+   */
+  STORAGE_ERROR(3),
+  /**
+   * The requested url does not exist
+   */
+  NOT_FOUND(4),
+  /**
+   * The persistence is saturated and rejected the request without handling it, which may be
+   * retried later
+   */
+  OVERLOADED(5);
+
+  // the failure code
+  private final int code;
+
+  /**
+   * Creates a new failure
+   *
+   * @param code the failure code
+   */
+  Failure(final int code) {
+    this.code = code;
+  }
+
+  /**
+   * Returns the failure code
+   *
+   * @return the failure code
+   */
+  public int code() {
+    return code;
+  }
+
+  /**
+   * Fails the specified request message with this failure
+   *
+   * @param message the message to fail
+   * @param reason  the failure reason
+   */
+  public void reply(final Message<?> message, final String reason) {
+    message.fail(code, reason);
+  }
+
+  /**
+   * Resolves the failure of the specified request failure cause
+   *
+   * @param cause the request failure cause
+   * @return the failure, defaulting to a {@link #STORAGE_ERROR} for unknown failure codes
+   */
+  public static Failure of(final Throwable cause) {
+    if (!(cause instanceof ReplyException)) {
+      return STORAGE_ERROR;
+    }
+    final ReplyException exception = (ReplyException) cause;
+    if (exception.failureType() != ReplyFailure.RECIPIENT_FAILURE) {
+      return UNAVAILABLE;
+    }
+    return ofCode(exception.failureCode()).orElse(STORAGE_ERROR);
+  }
+
+  /**
+   * Resolves the failure of the specified code
+   *
+   * @param code the failure code
+   * @return the failure, if existent
+   */
+  public static Optional<Failure> ofCode(final int code) {
+    return Arrays.stream(values()).filter(failure -> failure.code == code).findFirst();
+  }
+}
@@ -0,0 +1,68 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * The request of the url of an identifier, sent to {@code ushortx-persistence-findById} and
+ * replied with an {@link UrlReply}.
+ *
+ * @author David Silva
+ */
+public final class FindUrlRequest {
+
+  // the codec: [id: long]
+  static final ImmutableCodec<FindUrlRequest> CODEC = new ImmutableCodec<>(
+      "ushortx-find-url-request",
+      (buffer, request) -> buffer.appendLong(request.id),
+      (buffer, position) -> new FindUrlRequest(buffer.getLong(position)));
+
+  // the url identifier
+  private final long id;
+
+  /**
+   * Creates a new request
+   *
+   * @param id the url identifier
+   */
+  public FindUrlRequest(final long id) {
+    this.id = id;
+  }
+
+  /**
+   * Returns the url identifier
+   *
+   * @return the url identifier
+   */
+  public long id() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return "FindUrlRequest{id=" + id + "}";
+  }
+}
@@ -1,8 +1,8 @@
-package pt.davidafsilva.ushortx.http;
+package pt.davidafsilva.ushortx.protocol;
 
 /*
  * #%L
- * ushortx-http
+ * ushortx-protocol
  * %%
  * Copyright (C) 2015 David Silva
  * %%
@@ -26,28 +26,26 @@ package pt.davidafsilva.ushortx.http;
  * #L%
  */
 
-import org.hashids.Hashids;
-
 import java.util.Optional;
-
-import io.vertx.core.logging.Logger;
-import io.vertx.core.logging.LoggerFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The hash utility class for generating and reverting hashes from and to integer. This is achieved
- * by using the {@link Hashids} facility.
+ * by using a {@link HashCodec} per salt, whose hashes are compatible with the
+ * <a href="http://hashids.org">Hashids</a> ones.
  *
  * @author David Silva
  */
 public final class Hash {
 
-  // the logger
-  private static final Logger LOGGER = LoggerFactory.getLogger(Hash.class);
-
+  /**
+   * The salt used when none is configured - should not be used in production!!!
+   */
+  public static final String DEFAULT_SALT = "Please change me!! I'll make you a sandwich!";
 
-  // the hash facility reference
-  // volatile here is required due to our locking/singleton instance retrieval/instantiation
-  private static volatile Hashids hashFacility;
+  // the hash codecs, by salt
+  private static final ConcurrentMap<String, HashCodec> CODECS = new ConcurrentHashMap<>();
 
   /**
    * Generates an unique hash the specified identifier
@@ -57,44 +55,31 @@ public final class Hash {
    * @return the generated hash
    */
   public static String generate(final String salt, final long id) {
-    return getHashFacility(salt).encode(id);
+    return codec(salt).encode(id);
   }
 
   /**
    * Reveres a previously generated hash with the given salt. If the specified hash was not
-   * generated with the given salt or another error occurs, an {@link Optional#empty()} reference
-   * is returned.
+   * generated with the given salt, an {@link Optional#empty()} reference is returned.
    *
    * @param salt the original salt that was used for the hash generation
    * @param hash the hash to be reversed
    * @return the original identifier, if applicable
    */
-  public static Optional<Long> reverse(final String salt, final String hash) {
-    try {
-      final long[] ids = getHashFacility(salt).decode(hash);
-      return (ids == null || ids.length != 1) ? Optional.empty() : Optional.of(ids[0]);
-    } catch (final Exception e) {
-      LOGGER.warn("invalid hash provided");
-      // invalid hash provided
-      return Optional.empty();
-    }
+  public static Optional<Long> reverse(final String salt, final CharSequence hash) {
+    final long id = codec(salt).decode(hash);
+    return id < 0 ? Optional.empty() : Optional.of(id);
   }
 
   /**
-   * Returns a valid instance of the hash facility.
-   * This method is thread-safe and return always the same instance.
+   * Returns the codec of the specified salt, creating it on its first usage.
+   * This method is thread-safe and returns always the same instance for the same salt.
    *
-   * @param salt the salt for the hash facility
-   * @return the hash facility instance
+   * @param salt the salt of the codec
+   * @return the codec instance
    */
-  private static Hashids getHashFacility(final String salt) {
-    if (hashFacility == null) {
-      synchronized (Hash.class) {
-        if (hashFacility == null) {
-          hashFacility = new Hashids(salt);
-        }
-      }
-    }
-    return hashFacility;
+  public static HashCodec codec(final String salt) {
+    final HashCodec codec = CODECS.get(salt);
+    return codec != null ? codec : CODECS.computeIfAbsent(salt, HashCodec::new);
   }
 }
@@ -0,0 +1,187 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * A short code codec for single, non-negative, identifiers, which produces the same codes as the
+ * <a href="http://hashids.org">Hashids</a> 1.0 algorithm with its default alphabet.
+ *
+ * Every salted alphabet shuffle that an encoding may use is computed once, at construction, hence
+ * encoding is a plain base conversion into a per-thread buffer and decoding is a table lookup per
+ * character, which rejects invalid codes without any exception.
+ *
+ * @author David Silva
+ */
+public final class HashCodec {
+
+  // the hashids default alphabet
+  private static final String DEFAULT_ALPHABET =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+  // the hashids default separators, which are never part of a single identifier code
+  private static final String SEPARATORS = "cfhistuCFHISTU";
+  // the ratio between the alphabet length and the number of guards
+  private static final int GUARD_DIVISOR = 12;
+  // the modulus used for selecting the lottery character
+  private static final int LOTTERY_MODULUS = 100;
+  // the marker of characters that are not part of an alphabet
+  private static final byte INVALID = -1;
+
+  // the per-thread encoding buffer: the lottery character plus the digits of the largest id
+  private static final ThreadLocal<char[]> BUFFER =
+      ThreadLocal.withInitial(() -> new char[1 + Long.SIZE]);
+
+  // the salted alphabet, from which the lottery character is picked
+  private final char[] alphabet;
+  // the index of each character within the salted alphabet
+  private final byte[] lotteryIndex = new byte[128];
+  // the digit alphabets, one per lottery character
+  private final char[][] digits;
+  // the value of each character within each of the digit alphabets
+  private final byte[][] digitValues;
+
+  /**
+   * Creates a new codec for the specified salt
+   *
+   * @param salt the codec salt
+   */
+  HashCodec(final String salt) {
+    // the alphabet without the separators, shuffled with the salt and without the guards
+    final StringBuilder base = new StringBuilder(DEFAULT_ALPHABET.length());
+    DEFAULT_ALPHABET.chars().filter(c -> SEPARATORS.indexOf(c) < 0).forEach(
+        c -> base.append((char) c));
+    final char[] shuffled = base.toString().toCharArray();
+    shuffle(shuffled, salt);
+    final int guards = (shuffled.length + GUARD_DIVISOR - 1) / GUARD_DIVISOR;
+    alphabet = Arrays.copyOfRange(shuffled, guards, shuffled.length);
+
+    // the digit alphabet of each lottery character
+    final String alphabetString = new String(alphabet);
+    Arrays.fill(lotteryIndex, INVALID);
+    digits = new char[alphabet.length][];
+    digitValues = new byte[alphabet.length][];
+    for (int lottery = 0; lottery < alphabet.length; lottery++) {
+      lotteryIndex[alphabet[lottery]] = (byte) lottery;
+      digits[lottery] = alphabet.clone();
+      shuffle(digits[lottery], (alphabet[lottery] + salt + alphabetString)
+          .substring(0, alphabet.length));
+      digitValues[lottery] = new byte[128];
+      Arrays.fill(digitValues[lottery], INVALID);
+      for (int digit = 0; digit < alphabet.length; digit++) {
+        digitValues[lottery][digits[lottery][digit]] = (byte) digit;
+      }
+    }
+  }
+
+  /**
+   * Encodes the specified identifier
+   *
+   * @param id the identifier to encode
+   * @return the identifier code
+   * @throws IllegalArgumentException if the identifier is negative
+   */
+  public String encode(final long id) {
+    if (id < 0) {
+      throw new IllegalArgumentException("the identifier must not be negative: " + id);
+    }
+    final int lottery = lottery(id);
+    final char[] lotteryDigits = digits[lottery];
+    final char[] buffer = BUFFER.get();
+    int start = buffer.length;
+    long remaining = id;
+    do {
+      buffer[--start] = lotteryDigits[(int) (remaining % lotteryDigits.length)];
+      remaining /= lotteryDigits.length;
+    } while (remaining > 0);
+    buffer[--start] = alphabet[lottery];
+    return new String(buffer, start, buffer.length - start);
+  }
+
+  /**
+   * Decodes the specified code
+   *
+   * @param code the code to decode
+   * @return the decoded identifier, or {@code -1} if the code is not a valid one
+   */
+  public long decode(final CharSequence code) {
+    final int length = code.length();
+    if (length < 2 || code.charAt(0) >= lotteryIndex.length) {
+      return -1;
+    }
+    final int lottery = lotteryIndex[code.charAt(0)];
+    if (lottery == INVALID) {
+      return -1;
+    }
+
+    final byte[] values = digitValues[lottery];
+    final int base = alphabet.length;
+    long id = 0;
+    for (int i = 1; i < length; i++) {
+      final char c = code.charAt(i);
+      final int digit = c < values.length ? values[c] : INVALID;
+      // unknown characters, leading zeros and overflows are never produced by the encoding
+      if (digit == INVALID || (digit == 0 && i == 1 && length > 2) ||
+          id > (Long.MAX_VALUE - digit) / base) {
+        return -1;
+      }
+      id = id * base + digit;
+    }
+    return lottery(id) == lottery ? id : -1;
+  }
+
+  /**
+   * Returns the lottery character index of the specified identifier
+   *
+   * @param id the identifier
+   * @return the lottery character index
+   */
+  private int lottery(final long id) {
+    return (int) (id % LOTTERY_MODULUS) % alphabet.length;
+  }
+
+  /**
+   * Shuffles, in place, the specified alphabet with the given salt, as hashids does
+   *
+   * @param alphabet the alphabet to shuffle
+   * @param salt     the shuffle salt
+   */
+  private static void shuffle(final char[] alphabet, final String salt) {
+    if (salt.isEmpty()) {
+      return;
+    }
+    for (int i = alphabet.length - 1, v = 0, p = 0; i > 0; i--, v++) {
+      v %= salt.length();
+      final int integer = salt.charAt(v);
+      p += integer;
+      final int j = (integer + v + p) % i;
+      final char swap = alphabet[j];
+      alphabet[j] = alphabet[i];
+      alphabet[i] = swap;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * The event bus codec of an immutable message type. Since the messages are immutable, the local
+ * deliveries (within the same JVM) share the sent instance, without any copy.
+ *
+ * @param <T> the message type
+ * @author David Silva
+ */
+final class ImmutableCodec<T> implements MessageCodec<T, T> {
+
+  // the codec name
+  private final String name;
+  // the wire encoder
+  private final BiConsumer<Buffer, T> encoder;
+  // the wire decoder, from the message position within the buffer
+  private final BiFunction<Buffer, Integer, T> decoder;
+
+  /**
+   * Creates a new codec
+   *
+   * @param name    the codec name, unique within the cluster
+   * @param encoder the wire encoder
+   * @param decoder the wire decoder, from the message position within the buffer
+   */
+  ImmutableCodec(final String name, final BiConsumer<Buffer, T> encoder,
+      final BiFunction<Buffer, Integer, T> decoder) {
+    this.name = name;
+    this.encoder = encoder;
+    this.decoder = decoder;
+  }
+
+  @Override
+  public void encodeToWire(final Buffer buffer, final T message) {
+    encoder.accept(buffer, message);
+  }
+
+  @Override
+  public T decodeFromWire(final int position, final Buffer buffer) {
+    return decoder.apply(buffer, position);
+  }
+
+  @Override
+  public T transform(final T message) {
+    return message;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public byte systemCodecID() {
+    return -1;
+  }
+}
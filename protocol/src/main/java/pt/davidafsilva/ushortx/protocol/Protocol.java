@@ -0,0 +1,74 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * The persistence protocol, which is shared by both the http and the persistence modules. The
+ * lookup, save and click requests, and their replies, are sent as binary messages with the
+ * codecs of this protocol, which must be registered on both sides.
+ *
+ * @author David Silva
+ */
+public final class Protocol {
+
+  // private constructor
+  private Protocol() {
+  }
+
+  /**
+   * Registers the protocol codecs as the default codecs of their message types. The codecs that
+   * are already registered (e.g. by another verticle of the same instance) are kept.
+   *
+   * @param eventBus the event bus to register the codecs at
+   */
+  public static void registerCodecs(final EventBus eventBus) {
+    register(eventBus, FindUrlRequest.class, FindUrlRequest.CODEC);
+    register(eventBus, SaveUrlRequest.class, SaveUrlRequest.CODEC);
+    register(eventBus, UrlReply.class, UrlReply.CODEC);
+    register(eventBus, RecordClicksRequest.class, RecordClicksRequest.CODEC);
+  }
+
+  /**
+   * Registers the specified default codec, unless already registered
+   *
+   * @param eventBus the event bus to register the codec at
+   * @param type     the message type
+   * @param codec    the message codec
+   * @param <T>      the message type
+   */
+  private static <T> void register(final EventBus eventBus, final Class<T> type,
+      final MessageCodec<T, ?> codec) {
+    try {
+      eventBus.registerDefaultCodec(type, codec);
+    } catch (final IllegalStateException e) {
+      // already registered
+    }
+  }
+}
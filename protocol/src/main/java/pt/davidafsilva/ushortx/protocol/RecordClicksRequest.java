@@ -0,0 +1,113 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Arrays;
+
+/**
+ * The request to add the redirect counts of a set of identifiers, sent to
+ * {@code ushortx-persistence-clicks} and replied with an empty message once recorded.
+ *
+ * @author David Silva
+ */
+public final class RecordClicksRequest {
+
+  // the codec: [count: int]([id: long][clicks: long])*
+  static final ImmutableCodec<RecordClicksRequest> CODEC = new ImmutableCodec<>(
+      "ushortx-record-clicks-request",
+      (buffer, request) -> {
+        buffer.appendInt(request.ids.length);
+        for (int i = 0; i < request.ids.length; i++) {
+          buffer.appendLong(request.ids[i]).appendLong(request.clicks[i]);
+        }
+      },
+      (buffer, position) -> {
+        final int count = buffer.getInt(position);
+        final long[] ids = new long[count];
+        final long[] clicks = new long[count];
+        for (int i = 0, offset = position + Integer.BYTES; i < count; i++, offset += 16) {
+          ids[i] = buffer.getLong(offset);
+          clicks[i] = buffer.getLong(offset + Long.BYTES);
+        }
+        return new RecordClicksRequest(ids, clicks);
+      });
+
+  // the url identifiers
+  private final long[] ids;
+  // the number of clicks to add to each identifier
+  private final long[] clicks;
+
+  /**
+   * Creates a new request. The arrays are owned by the request afterwards.
+   *
+   * @param ids    the url identifiers
+   * @param clicks the number of clicks to add to each identifier
+   * @throws IllegalArgumentException if the arrays lengths differ
+   */
+  public RecordClicksRequest(final long[] ids, final long[] clicks) {
+    if (ids.length != clicks.length) {
+      throw new IllegalArgumentException("mismatched ids and clicks");
+    }
+    this.ids = ids;
+    this.clicks = clicks;
+  }
+
+  /**
+   * Returns the number of identifiers
+   *
+   * @return the number of identifiers
+   */
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Returns the url identifier at the specified index
+   *
+   * @param index the index
+   * @return the url identifier
+   */
+  public long id(final int index) {
+    return ids[index];
+  }
+
+  /**
+   * Returns the number of clicks to add to the identifier at the specified index
+   *
+   * @param index the index
+   * @return the number of clicks
+   */
+  public long clicks(final int index) {
+    return clicks[index];
+  }
+
+  @Override
+  public String toString() {
+    return "RecordClicksRequest{ids=" + Arrays.toString(ids) + ", clicks=" +
+        Arrays.toString(clicks) + "}";
+  }
+}
@@ -0,0 +1,68 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * The request to save an url, sent to {@code ushortx-persistence-save} and replied with an
+ * {@link UrlReply}.
+ *
+ * @author David Silva
+ */
+public final class SaveUrlRequest {
+
+  // the codec: [url length: int][url: utf-8 bytes]
+  static final ImmutableCodec<SaveUrlRequest> CODEC = new ImmutableCodec<>(
+      "ushortx-save-url-request",
+      (buffer, request) -> Wire.appendString(buffer, request.url),
+      (buffer, position) -> new SaveUrlRequest(Wire.getString(buffer, position)));
+
+  // the url
+  private final String url;
+
+  /**
+   * Creates a new request
+   *
+   * @param url the url to save
+   */
+  public SaveUrlRequest(final String url) {
+    this.url = url;
+  }
+
+  /**
+   * Returns the url to save
+   *
+   * @return the url
+   */
+  public String url() {
+    return url;
+  }
+
+  @Override
+  public String toString() {
+    return "SaveUrlRequest{url=" + url + "}";
+  }
+}
@@ -0,0 +1,101 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * The url utility class for the equivalences shared by the modules: the normalization, under
+ * which the urls are deduplicated, and the shard that deduplicates each url.
+ *
+ * The normalization only applies the equivalences of RFC 3986 that never change the resource:
+ * the scheme and the host are lower-cased, the default port is removed and an empty path
+ * becomes {@code /}. The shard of an url is given by the CRC32 of its normalized form, hence the
+ * equivalent spellings of an url are always deduplicated by the same shard.
+ *
+ * @author David Silva
+ */
+public final class Urls {
+
+  // private constructor
+  private Urls() {
+  }
+
+  /**
+   * Normalizes the specified url
+   *
+   * @param url the url to normalize
+   * @return the normalized url, or the url itself if it has no scheme
+   */
+  public static String normalize(final String url) {
+    final int schemeEnd = url.indexOf("://");
+    if (schemeEnd <= 0) {
+      return url;
+    }
+    final String scheme = url.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+    final int authorityStart = schemeEnd + 3;
+    int authorityEnd = authorityStart;
+    while (authorityEnd < url.length() && "/?#".indexOf(url.charAt(authorityEnd)) < 0) {
+      authorityEnd++;
+    }
+
+    // lower-case the host, but not the user info
+    final String authority = url.substring(authorityStart, authorityEnd);
+    final int hostStart = authority.lastIndexOf('@') + 1;
+    String host = authority.substring(hostStart).toLowerCase(Locale.ROOT);
+    if (("http".equals(scheme) && host.endsWith(":80")) ||
+        ("https".equals(scheme) && host.endsWith(":443"))) {
+      host = host.substring(0, host.lastIndexOf(':'));
+    }
+
+    final StringBuilder normalized = new StringBuilder(url.length() + 1)
+        .append(scheme).append("://")
+        .append(authority, 0, hostStart).append(host);
+    if (authorityEnd == url.length() || url.charAt(authorityEnd) != '/') {
+      normalized.append('/');
+    }
+    return normalized.append(url, authorityEnd, url.length()).toString();
+  }
+
+  /**
+   * Returns the index of the shard that deduplicates the specified url
+   *
+   * @param url        the url
+   * @param shardCount the number of shards
+   * @return the shard index
+   */
+  public static int shard(final String url, final int shardCount) {
+    if (shardCount == 1) {
+      return 0;
+    }
+    final CRC32 digest = new CRC32();
+    digest.update(normalize(url).getBytes(StandardCharsets.UTF_8));
+    return (int) (digest.getValue() % shardCount);
+  }
+}
@@ -0,0 +1,69 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * The wire encoding of the message fields that are shared by the codecs
+ *
+ * @author David Silva
+ */
+final class Wire {
+
+  // private constructor
+  private Wire() {
+  }
+
+  /**
+   * Appends the specified string, as its utf-8 length followed by its utf-8 bytes
+   *
+   * @param buffer the buffer to append to
+   * @param value  the string to append
+   * @return the buffer
+   */
+  static Buffer appendString(final Buffer buffer, final String value) {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    return buffer.appendInt(bytes.length).appendBytes(bytes);
+  }
+
+  /**
+   * Reads the string at the specified position, as written by
+   * {@link #appendString(Buffer, String)}
+   *
+   * @param buffer   the buffer to read from
+   * @param position the string position
+   * @return the string
+   */
+  static String getString(final Buffer buffer, final int position) {
+    final int length = buffer.getInt(position);
+    return new String(buffer.getBytes(position + Integer.BYTES, position + Integer.BYTES + length),
+        StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,160 @@
+package pt.davidafsilva.ushortx.protocol;
+
+/*
+ * #%L
+ * ushortx-protocol
+ * %%
+ * Copyright (C) 2015 David Silva
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.hashids.Hashids;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The compatibility tests of the {@link HashCodec} with the hashids 1.0.1 codes, which every
+ * existent short url depends on
+ *
+ * @author David Silva
+ */
+public class HashCodecTest {
+
+  // the salts under test
+  private static final String[] SALTS = {
+      Hash.DEFAULT_SALT, "", "ushortx", "this is my salt"
+  };
+
+  // the identifiers under test
+  private static final long[] IDS = {
+      0, 1, 2, 41, 99, 100, 12345, 1L << 31, 987654321098L, 9007199254740992L
+  };
+
+  // the codes produced by hashids 1.0.1, by salt and identifier
+  private static final String[][] CODES = {
+      {"7R", "Pp", "n4", "RW", "WJD", "7Pa", "Pvgx", "Bnk22zE", "8xkkdRM3Q", "BZgJJnJYDBm"},
+      {"gY", "jR", "k5", "8m", "wjR", "g56", "j0gW", "m8RBB69", "vollEDYJn", "mNWyy8yjQYE"},
+      {"O2", "yP", "3b", "Zr", "RWO", "O6E", "yDwZ", "YQ8EEvy", "o8KK4D0NB", "Yz5GGQG0DqY"},
+      {"5x", "NV", "6m", "MB", "kKg", "5ge", "NkK9", "21OjjRK", "a1QQkZzBe", "262mm1m4J9Z"},
+  };
+
+  @Test
+  public void encode_matchesHashids() {
+    for (int s = 0; s < SALTS.length; s++) {
+      final HashCodec codec = new HashCodec(SALTS[s]);
+      for (int i = 0; i < IDS.length; i++) {
+        assertEquals("salt '" + SALTS[s] + "', id " + IDS[i], CODES[s][i], codec.encode(IDS[i]));
+      }
+    }
+  }
+
+  @Test
+  public void decode_matchesHashids() {
+    for (int s = 0; s < SALTS.length; s++) {
+      final HashCodec codec = new HashCodec(SALTS[s]);
+      for (int i = 0; i < IDS.length; i++) {
+        assertEquals("salt '" + SALTS[s] + "', code " + CODES[s][i], IDS[i],
+            codec.decode(CODES[s][i]));
+      }
+    }
+  }
+
+  @Test
+  public void encodeDecode_matchesHashidsLibrary() {
+    final Random random = new Random(42);
+    for (final String salt : SALTS) {
+      final HashCodec codec = new HashCodec(salt);
+      final Hashids hashids = new Hashids(salt);
+      for (long id = 0; id < 20_000; id++) {
+        assertCompatible(codec, hashids, id);
+      }
+      // hashids does not encode identifiers beyond 2^53
+      for (int i = 0; i < 20_000; i++) {
+        assertCompatible(codec, hashids, (random.nextLong() >>> 1) % (1L << 53));
+      }
+    }
+  }
+
+  /**
+   * Asserts that the codec and hashids produce, and decode, the same code for the given id
+   *
+   * @param codec   the codec under test
+   * @param hashids the reference implementation
+   * @param id      the identifier
+   */
+  private static void assertCompatible(final HashCodec codec, final Hashids hashids,
+      final long id) {
+    final String code = hashids.encode(id);
+    assertEquals("id " + id, code, codec.encode(id));
+    assertEquals("code " + code, id, codec.decode(code));
+  }
+
+  @Test
+  public void encodeDecode_beyondHashidsRange() {
+    final HashCodec codec = new HashCodec(Hash.DEFAULT_SALT);
+    for (final long id : new long[]{(1L << 53) + 1, Long.MAX_VALUE / 2, Long.MAX_VALUE}) {
+      assertEquals(id, codec.decode(codec.encode(id)));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void encode_negativeId() {
+    new HashCodec(Hash.DEFAULT_SALT).encode(-1);
+  }
+
+  @Test
+  public void decode_rejectsInvalidCodes() {
+    // the codes rejected by hashids 1.0.1 with the "this is my salt" salt, in which the guards
+    // are "AdG0", the separators "UHuhtcITCsFifS" and 12345 is encoded as "NkK9"
+    final String[] invalid = {
+        // too short
+        "", "N",
+        // characters out of the alphabet
+        "Nk!9", "Né", "NkK9é", "NkcK9", "cNkK9",
+        // guards
+        "ANkK9", "NkK9A", "ANkK9A", "dNkK9", "N0",
+        // lottery characters that do not match the identifier
+        "kkK9", "5kK9", "NkK", "Nx",
+        // leading zero digit, as 44 is encoded as "58x"
+        "5x8x",
+        // concatenated codes
+        "NkK9NkK9",
+    };
+    final HashCodec codec = new HashCodec("this is my salt");
+    final Hashids hashids = new Hashids("this is my salt");
+    for (final String code : invalid) {
+      assertEquals("code '" + code + "'", -1, codec.decode(code));
+      if (code.chars().allMatch(c -> c < 128)) {
+        assertEquals("hashids code '" + code + "'", 0, hashids.decode(code).length);
+      }
+    }
+  }
+
+  @Test
+  public void decode_overflow() {
+    final HashCodec codec = new HashCodec(Hash.DEFAULT_SALT);
+    final String max = codec.encode(Long.MAX_VALUE);
+    assertEquals(-1, codec.decode(max + max.charAt(max.length() - 1)));
+  }
+}